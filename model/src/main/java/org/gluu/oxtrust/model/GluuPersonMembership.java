@@ -0,0 +1,61 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.model;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+
+import org.gluu.persist.model.base.Entry;
+import org.gluu.persist.annotation.AttributeName;
+import org.gluu.persist.annotation.DataEntry;
+import org.gluu.persist.annotation.ObjectClass;
+
+/**
+ * Person entry with memberOf and modification time attributes only. Allows to
+ * update group membership without rewriting other person attributes
+ */
+@DataEntry
+@ObjectClass(value = "gluuPerson")
+public class GluuPersonMembership extends Entry implements Serializable {
+
+	private static final long serialVersionUID = 3427095563294178164L;
+
+	@AttributeName(name = "memberOf")
+	private List<String> memberOf;
+
+	@AttributeName
+	private Date updatedAt;
+
+	@AttributeName
+	private String oxTrustMetaLastModified;
+
+	public List<String> getMemberOf() {
+		return memberOf;
+	}
+
+	public void setMemberOf(List<String> memberOf) {
+		this.memberOf = memberOf;
+	}
+
+	public Date getUpdatedAt() {
+		return updatedAt;
+	}
+
+	public void setUpdatedAt(Date updatedAt) {
+		this.updatedAt = updatedAt;
+	}
+
+	public String getOxTrustMetaLastModified() {
+		return oxTrustMetaLastModified;
+	}
+
+	public void setOxTrustMetaLastModified(String oxTrustMetaLastModified) {
+		this.oxTrustMetaLastModified = oxTrustMetaLastModified;
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.model;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress and timing of memberOf synchronization of one group. Counters are
+ * updated concurrently by sync workers
+ */
+public class GroupMembershipSyncStatistics implements Serializable {
+
+	private static final long serialVersionUID = -4316702417916418046L;
+
+	private final String groupDn;
+	private final int totalCount;
+	private final long startTime;
+	private volatile long endTime;
+
+	private final AtomicInteger addedCount = new AtomicInteger();
+	private final AtomicInteger removedCount = new AtomicInteger();
+	private final AtomicInteger skippedCount = new AtomicInteger();
+	private final AtomicInteger failedCount = new AtomicInteger();
+
+	public GroupMembershipSyncStatistics(String groupDn, int totalCount) {
+		this.groupDn = groupDn;
+		this.totalCount = totalCount;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	public String getGroupDn() {
+		return groupDn;
+	}
+
+	/**
+	 * @return Number of persons which were added to group or removed from it
+	 */
+	public int getTotalCount() {
+		return totalCount;
+	}
+
+	public int getProcessedCount() {
+		return addedCount.get() + removedCount.get() + skippedCount.get() + failedCount.get();
+	}
+
+	public int getAddedCount() {
+		return addedCount.get();
+	}
+
+	public int getRemovedCount() {
+		return removedCount.get();
+	}
+
+	/**
+	 * @return Number of persons which already had expected memberOf value or
+	 *         don't exist
+	 */
+	public int getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	public int getFailedCount() {
+		return failedCount.get();
+	}
+
+	public void incrementAdded() {
+		addedCount.incrementAndGet();
+	}
+
+	public void incrementRemoved() {
+		removedCount.incrementAndGet();
+	}
+
+	public void incrementSkipped() {
+		skippedCount.incrementAndGet();
+	}
+
+	public void incrementFailed(int count) {
+		failedCount.addAndGet(count);
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public boolean isFinished() {
+		return endTime > 0;
+	}
+
+	public void finish() {
+		this.endTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return Duration of finished synchronization or elapsed time of running one
+	 *         in milliseconds
+	 */
+	public long getDuration() {
+		return (isFinished() ? endTime : System.currentTimeMillis()) - startTime;
+	}
+
+	@Override
+	public String toString() {
+		return "GroupMembershipSyncStatistics [groupDn=" + groupDn + ", totalCount=" + totalCount + ", addedCount="
+				+ addedCount + ", removedCount=" + removedCount + ", skippedCount=" + skippedCount + ", failedCount="
+				+ failedCount + ", duration=" + getDuration() + "]";
+	}
+
+}
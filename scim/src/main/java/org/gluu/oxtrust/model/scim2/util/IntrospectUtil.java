@@ -26,9 +26,13 @@ import javax.lang.model.type.NullType;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides miscelaneous routines to query classes/objects properties using reflection mechanisms. Additionally, this
@@ -42,6 +46,25 @@ public class IntrospectUtil {
 
     private static Logger log = LogManager.getLogger(IntrospectUtil.class);
 
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    /*
+     * Reflection metadata is immutable for a given class, so lookups are resolved once and reused by the SCIM read/write
+     * paths (resource transfer, validation, PATCH). Declared before the static initializer below since it uses them
+     */
+    //Class -> (path -> field). Absent fields are stored as an empty Optional so that failed lookups are not repeated.
+    //Paths may come from requests (eg. PATCH), so the number of entries cached per class is bounded
+    private static final int MAX_CACHED_PATHS = 2048;
+    private static final Map<Class<?>, Map<String, Optional<Field>>> fieldsByPath = new ConcurrentHashMap<>();
+
+    //Class -> (property name -> descriptor), as returned by the bean introspector
+    private static final Map<Class<?>, Map<String, PropertyDescriptor>> propertiesByClass = new ConcurrentHashMap<>();
+
+    //Accessor methods -> handles adapted to Object signatures, so they can be called via invokeExact
+    private static final Map<Method, MethodHandle> getterHandles = new ConcurrentHashMap<>();
+    private static final Map<Method, MethodHandle> setterHandles = new ConcurrentHashMap<>();
+
     private IntrospectUtil() {}
 
     /**
@@ -84,6 +107,27 @@ public class IntrospectUtil {
      */
     public static Field findFieldFromPath(Class<?> initcls, String path){
 
+        Map<String, Optional<Field>> fields = fieldsByPath.get(initcls);
+        if (fields == null) {
+            fields = new ConcurrentHashMap<>();
+            Map<String, Optional<Field>> existing = fieldsByPath.putIfAbsent(initcls, fields);
+            if (existing != null)
+                fields = existing;
+        }
+
+        Optional<Field> field = fields.get(path);
+        if (field == null) {
+            field = Optional.ofNullable(lookupFieldFromPath(initcls, path));
+            //Paths leading to a field are finitely many, so those are always kept
+            if (field.isPresent() || fields.size() < MAX_CACHED_PATHS)
+                fields.put(path, field);
+        }
+        return field.orElse(null);
+
+    }
+
+    private static Field lookupFieldFromPath(Class<?> initcls, String path){
+
         Class cls=initcls;
         Field f=null;
 
@@ -161,7 +205,7 @@ public class IntrospectUtil {
                             }
                         }
                         else {
-                            Object val=getters.get(index).invoke(value);
+                            Object val=invokeGetter(getters.get(index), value);
                             traverse(val, index+1);
                         }
                     }
@@ -183,34 +227,97 @@ public class IntrospectUtil {
 
     /**
      * Inspects a class that represents a Java Bean and tries to find the setter <code>Method</code> associated to the
-     * class field whose name is passed as parameter.
+     * class field whose name is passed as parameter. Introspection results are cached per class.
      * @param fieldName The name of the field whose setter needs to be found
      * @param clazz The Class to introspect
      * @return A Method object, null if the lookup is not successful
      * @throws Exception Upon introspection error
      */
     public static Method getSetter(String fieldName, Class clazz) throws Exception{
-        PropertyDescriptor[] props = Introspector.getBeanInfo(clazz).getPropertyDescriptors();
-        for (PropertyDescriptor p : props)
-            if (p.getName().equals(fieldName))
-                return p.getWriteMethod();
-        return null;
+        PropertyDescriptor p = getProperties(clazz).get(fieldName);
+        return p==null ? null : p.getWriteMethod();
     }
 
     /**
      * Inspects a class that represents a Java Bean and tries to find the getter <code>Method</code> associated to the
-     * class field whose name is passed as parameter.
+     * class field whose name is passed as parameter. Introspection results are cached per class.
      * @param fieldName The name of the field whose getter needs to be found
      * @param clazz The Class to introspect
      * @return A Method object, null if the lookup is not successful
      * @throws Exception Upon introspection error
      */
     public static Method getGetter(String fieldName, Class clazz) throws Exception{
-        PropertyDescriptor[] props = Introspector.getBeanInfo(clazz).getPropertyDescriptors();
-        for (PropertyDescriptor p : props)
-            if (p.getName().equals(fieldName))
-                return p.getReadMethod();
-        return null;
+        PropertyDescriptor p = getProperties(clazz).get(fieldName);
+        return p==null ? null : p.getReadMethod();
+    }
+
+    /**
+     * Calls a getter method on the object passed. Unlike <code>Method.invoke</code>, this uses a method handle resolved
+     * once per method, avoiding the access checks and argument array creation of reflective calls.
+     * @param getter A getter method (eg. as returned by {@link #getGetter(String, Class) getGetter})
+     * @param bean Object whose property is read
+     * @return The value returned by the getter
+     * @throws Exception Any exception thrown by the getter itself, or upon introspection error
+     */
+    public static Object invokeGetter(Method getter, Object bean) throws Exception{
+
+        MethodHandle handle = getterHandles.get(getter);
+        if (handle == null) {
+            handle = MethodHandles.publicLookup().unreflect(getter).asType(GETTER_TYPE);
+            getterHandles.put(getter, handle);
+        }
+        try {
+            return handle.invokeExact(bean);
+        }
+        catch (Exception | Error e){
+            throw e;
+        }
+        catch (Throwable e){
+            throw new Exception(e);
+        }
+
+    }
+
+    /**
+     * Calls a setter method on the object passed using a method handle resolved once per method. See
+     * {@link #invokeGetter(Method, Object) invokeGetter}.
+     * @param setter A setter method (eg. as returned by {@link #getSetter(String, Class) getSetter})
+     * @param bean Object whose property is set
+     * @param value Value to set (primitive-typed properties are unboxed)
+     * @throws Exception Any exception thrown by the setter itself, or upon introspection error
+     */
+    public static void invokeSetter(Method setter, Object bean, Object value) throws Exception{
+
+        MethodHandle handle = setterHandles.get(setter);
+        if (handle == null) {
+            handle = MethodHandles.publicLookup().unreflect(setter).asType(SETTER_TYPE);
+            setterHandles.put(setter, handle);
+        }
+        try {
+            handle.invokeExact(bean, value);
+        }
+        catch (Exception | Error e){
+            throw e;
+        }
+        catch (Throwable e){
+            throw new Exception(e);
+        }
+
+    }
+
+    private static Map<String, PropertyDescriptor> getProperties(Class<?> clazz) throws Exception{
+
+        Map<String, PropertyDescriptor> properties = propertiesByClass.get(clazz);
+        if (properties == null) {
+            properties = new HashMap<>();
+            for (PropertyDescriptor p : Introspector.getBeanInfo(clazz).getPropertyDescriptors())
+                properties.put(p.getName(), p);
+
+            properties = Collections.unmodifiableMap(properties);
+            propertiesByClass.put(clazz, properties);
+        }
+        return properties;
+
     }
 
     /**
@@ -479,10 +479,10 @@ public class ScimResourceUtil {
                                 int trues = 0;
 
                                 for (Object item : list) {
-                                    Object primaryVal = getter.invoke(item);
+                                    Object primaryVal = IntrospectUtil.invokeGetter(getter, item);
                                     trues += primaryVal != null && primaryVal.toString().equals("true") ? 1 : 0;
                                     if (trues > 1) {  //Revert to false
-                                        setter.invoke(item, false);
+                                        IntrospectUtil.invokeSetter(setter, item, false);
                                         log.info("adjustPrimarySubAttributes. Setting primary = false for an item (a previous one was already primary = true)");
                                     }
                                 }
@@ -21,11 +21,11 @@ import org.gluu.config.oxtrust.AppConfiguration;
 import org.gluu.model.GluuStatus;
 import org.gluu.oxtrust.model.GluuMetadataSourceType;
 import org.gluu.oxtrust.model.GluuSAMLTrustRelationship;
+import org.gluu.oxtrust.service.MetadataEntityIdIndex;
 import org.gluu.oxtrust.service.OrganizationService;
 import org.gluu.oxtrust.service.Shibboleth3ConfService;
 import org.gluu.oxtrust.service.TrustService;
 import org.gluu.oxtrust.util.OxTrustConstants;
-import org.gluu.saml.metadata.SAMLMetadataParser;
 import org.gluu.service.security.Secure;
 import org.gluu.util.StringHelper;
 import org.slf4j.Logger;
@@ -67,6 +67,9 @@ public class FederationDeconstructionAction implements Serializable {
 	@Inject
 	private AppConfiguration appConfiguration;
 
+	@Inject
+	private MetadataEntityIdIndex metadataEntityIdIndex;
+
 	public String initFederationDeconstructions(GluuSAMLTrustRelationship trustRelationship) {
 		this.trustRelationship = trustRelationship;
 
@@ -179,7 +182,7 @@ public class FederationDeconstructionAction implements Serializable {
 			String idpMetadataFolder = appConfiguration.getShibboleth3IdpRootDir() + File.separator
 					+ Shibboleth3ConfService.SHIB3_IDP_METADATA_FOLDER + File.separator;
 			File metadataFile = new File(idpMetadataFolder + trustRelationship.getSpMetaDataFN());
-			for (String entity : SAMLMetadataParser.getEntityIdFromMetadataFile(metadataFile)) {
+			for (String entity : metadataEntityIdIndex.getEntityIds(metadataFile)) {
 				if (entity.toLowerCase().contains(filterString.toLowerCase())) {
 					filteredEntities.add(entity);
 				}
@@ -0,0 +1,69 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+/**
+ * 128 bit digest of source entry content
+ */
+public class CacheEntryDigest {
+
+	private final long high;
+	private final long low;
+
+	// Hash code used by text snapshots. It's needed only to compare entry with
+	// snapshot converted from text format
+	private final int legacyHashCode;
+
+	public CacheEntryDigest(long high, long low) {
+		this(high, low, 0);
+	}
+
+	public CacheEntryDigest(long high, long low, int legacyHashCode) {
+		this.high = high;
+		this.low = low;
+		this.legacyHashCode = legacyHashCode;
+	}
+
+	public static CacheEntryDigest fromLegacyHashCode(int legacyHashCode) {
+		return new CacheEntryDigest(0L, legacyHashCode, legacyHashCode);
+	}
+
+	public long getHigh() {
+		return high;
+	}
+
+	public long getLow() {
+		return low;
+	}
+
+	public int getLegacyHashCode() {
+		return legacyHashCode;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (high ^ (high >>> 32) ^ low ^ (low >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		CacheEntryDigest other = (CacheEntryDigest) obj;
+		return (high == other.high) && (low == other.low);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", high, low);
+	}
+
+}
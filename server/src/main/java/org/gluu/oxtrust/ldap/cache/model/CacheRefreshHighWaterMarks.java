@@ -0,0 +1,73 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Highest values of change tracking attribute (modifyTimestamp, uSNChanged,
+ * etc.) loaded from each source server
+ */
+public class CacheRefreshHighWaterMarks {
+
+	private String attributeName;
+	private long lastFullReconciliation;
+	private final Map<String, String> sourceHighWaterMarks;
+
+	public CacheRefreshHighWaterMarks(String attributeName) {
+		this.attributeName = attributeName;
+		this.sourceHighWaterMarks = new HashMap<String, String>();
+	}
+
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	public long getLastFullReconciliation() {
+		return lastFullReconciliation;
+	}
+
+	public void setLastFullReconciliation(long lastFullReconciliation) {
+		this.lastFullReconciliation = lastFullReconciliation;
+	}
+
+	public synchronized Map<String, String> getSourceHighWaterMarks() {
+		return new HashMap<String, String>(sourceHighWaterMarks);
+	}
+
+	public synchronized String getHighWaterMark(String sourceServerName) {
+		return sourceHighWaterMarks.get(sourceServerName);
+	}
+
+	public synchronized void setHighWaterMark(String sourceServerName, String value) {
+		sourceHighWaterMarks.put(sourceServerName, value);
+	}
+
+	/**
+	 * Store value if it's greater than current source server high water mark
+	 */
+	public synchronized void update(String sourceServerName, String value) {
+		String currentValue = sourceHighWaterMarks.get(sourceServerName);
+		if ((currentValue == null) || (compare(value, currentValue) > 0)) {
+			sourceHighWaterMarks.put(sourceServerName, value);
+		}
+	}
+
+	/**
+	 * Numeric values (uSNChanged) are compared as numbers. Other values
+	 * (generalized time) are compared as strings
+	 */
+	public static int compare(String value1, String value2) {
+		try {
+			return Long.compare(Long.parseLong(value1), Long.parseLong(value2));
+		} catch (NumberFormatException ex) {
+			return value1.compareTo(value2);
+		}
+	}
+
+}
@@ -0,0 +1,424 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.gluu.model.GluuStatus;
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKey;
+import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
+
+/**
+ * Local store of compound key to inum mapping.
+ *
+ * Store is an append only log of put/remove records. Entries are indexed in
+ * memory by compound key and by inum when log is replayed. Store also keeps
+ * source DN of each entry which was seen during previous runs. Updates append
+ * records to the end of log. Log is rewritten with live entries only when it
+ * contains too many obsolete records.
+ * <pre>
+ * header: magic (int), version (int)
+ * record: payload length (int), payload CRC32 (int), payload
+ * </pre>
+ */
+public class CacheRefreshInumStore {
+
+	private static final int MAGIC = 0x43524953;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 2 * 4;
+
+	private static final byte OPERATION_PUT = 1;
+	private static final byte OPERATION_REMOVE = 2;
+	private static final byte OPERATION_SOURCE_DN = 3;
+
+	private static final int MIN_COMPACTION_RECORDS_COUNT = 10000;
+	private static final String TMP_FILE_SUFFIX = ".tmp";
+
+	private final File file;
+	private final boolean created;
+
+	private final Map<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap;
+	private final Map<String, GluuInumMap> inumInumMap;
+	private final Map<String, String> inumSourceDnMap;
+
+	private DataOutputStream log;
+	private long recordsCount;
+
+	private CacheRefreshInumStore(File file, boolean created) {
+		this.file = file;
+		this.created = created;
+		this.primaryKeyAttrValueInumMap = new HashMap<CacheCompoundKey, GluuInumMap>();
+		this.inumInumMap = new HashMap<String, GluuInumMap>();
+		this.inumSourceDnMap = new HashMap<String, String>();
+	}
+
+	/**
+	 * Open store and load entries from file. New empty store is created if file
+	 * not exists
+	 */
+	public static CacheRefreshInumStore open(File file) throws IOException {
+		boolean created = !file.exists() || (file.length() < HEADER_SIZE);
+		CacheRefreshInumStore inumStore = new CacheRefreshInumStore(file, created);
+		int version = VERSION;
+		if (created) {
+			inumStore.writeLogFile(file);
+		} else {
+			version = inumStore.replay();
+		}
+		inumStore.openLog();
+
+		if (version != VERSION) {
+			// Rewrite log of older version with current header
+			inumStore.compact();
+		}
+
+		return inumStore;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return True if store file was created during opening
+	 */
+	public boolean isCreated() {
+		return created;
+	}
+
+	public int size() {
+		return inumInumMap.size();
+	}
+
+	public GluuInumMap get(CacheCompoundKey cacheCompoundKey) {
+		return primaryKeyAttrValueInumMap.get(cacheCompoundKey);
+	}
+
+	public GluuInumMap getByInum(String inum) {
+		return inumInumMap.get(inum);
+	}
+
+	/**
+	 * @return Source DN stored for entry with specified inum or null if it's
+	 *         unknown
+	 */
+	public String getSourceDn(String inum) {
+		return inumSourceDnMap.get(inum);
+	}
+
+	public Map<CacheCompoundKey, GluuInumMap> getPrimaryKeyAttrValueInumMap() {
+		return Collections.unmodifiableMap(primaryKeyAttrValueInumMap);
+	}
+
+	public Collection<GluuInumMap> values() {
+		return Collections.unmodifiableCollection(inumInumMap.values());
+	}
+
+	public void putAll(Collection<GluuInumMap> inumMaps) throws IOException {
+		for (GluuInumMap inumMap : inumMaps) {
+			appendRecord(toPutRecord(inumMap));
+			putEntry(inumMap);
+		}
+		log.flush();
+	}
+
+	/**
+	 * Store source DNs of existing entries. Source DNs of unknown inums are
+	 * ignored
+	 */
+	public void putSourceDns(Map<String, String> inumSourceDns) throws IOException {
+		for (Map.Entry<String, String> inumSourceDn : inumSourceDns.entrySet()) {
+			if (inumInumMap.containsKey(inumSourceDn.getKey())) {
+				appendRecord(toSourceDnRecord(inumSourceDn.getKey(), inumSourceDn.getValue()));
+				inumSourceDnMap.put(inumSourceDn.getKey(), inumSourceDn.getValue());
+			}
+		}
+		log.flush();
+	}
+
+	public void removeAll(Collection<String> inums) throws IOException {
+		for (String inum : inums) {
+			appendRecord(toRemoveRecord(inum));
+			removeEntry(inum);
+		}
+		log.flush();
+	}
+
+	/**
+	 * Rewrite log with live entries only if it contains too many obsolete records
+	 *
+	 * @return True if log was compacted
+	 */
+	public boolean compactIfNeeded() throws IOException {
+		if ((recordsCount < MIN_COMPACTION_RECORDS_COUNT)
+				|| (recordsCount <= 2L * (size() + inumSourceDnMap.size()))) {
+			return false;
+		}
+
+		compact();
+
+		return true;
+	}
+
+	public void compact() throws IOException {
+		IOUtils.closeQuietly(log);
+
+		File tmpFile = new File(file.getAbsolutePath() + TMP_FILE_SUFFIX);
+		try {
+			writeLogFile(tmpFile);
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			FileUtils.deleteQuietly(tmpFile);
+			openLog();
+		}
+	}
+
+	public void close() {
+		IOUtils.closeQuietly(log);
+	}
+
+	private void putEntry(GluuInumMap inumMap) {
+		removeEntry(inumMap.getInum());
+
+		inumInumMap.put(inumMap.getInum(), inumMap);
+		primaryKeyAttrValueInumMap.put(new CacheCompoundKey(inumMap.getPrimaryKeyValues(),
+				inumMap.getSecondaryKeyValues(), inumMap.getTertiaryKeyValues()), inumMap);
+	}
+
+	private void removeEntry(String inum) {
+		inumSourceDnMap.remove(inum);
+		GluuInumMap inumMap = inumInumMap.remove(inum);
+		if (inumMap != null) {
+			CacheCompoundKey cacheCompoundKey = new CacheCompoundKey(inumMap.getPrimaryKeyValues(),
+					inumMap.getSecondaryKeyValues(), inumMap.getTertiaryKeyValues());
+			if (primaryKeyAttrValueInumMap.get(cacheCompoundKey) == inumMap) {
+				primaryKeyAttrValueInumMap.remove(cacheCompoundKey);
+			}
+		}
+	}
+
+	private void openLog() throws IOException {
+		this.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+	}
+
+	private void writeLogFile(File logFile) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile), 64 * 1024));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			for (GluuInumMap inumMap : inumInumMap.values()) {
+				writeRecord(dos, toPutRecord(inumMap));
+			}
+			for (Map.Entry<String, String> inumSourceDn : inumSourceDnMap.entrySet()) {
+				writeRecord(dos, toSourceDnRecord(inumSourceDn.getKey(), inumSourceDn.getValue()));
+			}
+			dos.flush();
+		} finally {
+			IOUtils.closeQuietly(dos);
+		}
+
+		this.recordsCount = inumInumMap.size() + inumSourceDnMap.size();
+	}
+
+	/**
+	 * @return Version of replayed log
+	 */
+	private int replay() throws IOException {
+		long validLength = HEADER_SIZE;
+		int version;
+
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			int magic = dis.readInt();
+			version = dis.readInt();
+			// Version 1 has no source DN records
+			if ((magic != MAGIC) || ((version != VERSION) && (version != 1))) {
+				throw new IOException(String.format("File '%s' isn't supported inum store file", file.getAbsolutePath()));
+			}
+
+			while (true) {
+				byte[] payload;
+				try {
+					int length = dis.readInt();
+					int crc = dis.readInt();
+					if (length <= 0) {
+						break;
+					}
+
+					payload = new byte[length];
+					dis.readFully(payload);
+					if (crc != calculateCrc(payload)) {
+						break;
+					}
+				} catch (EOFException ex) {
+					break;
+				}
+
+				applyRecord(payload);
+				recordsCount++;
+				validLength += 8 + payload.length;
+			}
+		} finally {
+			IOUtils.closeQuietly(dis);
+		}
+
+		// Drop partially written records at the end of log
+		if (validLength < file.length()) {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				randomAccessFile.setLength(validLength);
+			} finally {
+				IOUtils.closeQuietly(randomAccessFile);
+			}
+		}
+
+		return version;
+	}
+
+	private void applyRecord(byte[] payload) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+		byte operation = dis.readByte();
+		if (operation == OPERATION_PUT) {
+			GluuInumMap inumMap = new GluuInumMap();
+			inumMap.setDn(readString(dis));
+			inumMap.setInum(readString(dis));
+			inumMap.setPrimaryKeyAttrName(readString(dis));
+			inumMap.setPrimaryKeyValues(readStrings(dis));
+			inumMap.setSecondaryKeyAttrName(readString(dis));
+			inumMap.setSecondaryKeyValues(readStrings(dis));
+			inumMap.setTertiaryKeyAttrName(readString(dis));
+			inumMap.setTertiaryKeyValues(readStrings(dis));
+			String status = readString(dis);
+			inumMap.setStatus(status == null ? null : GluuStatus.getByValue(status));
+
+			putEntry(inumMap);
+		} else if (operation == OPERATION_REMOVE) {
+			removeEntry(readString(dis));
+		} else if (operation == OPERATION_SOURCE_DN) {
+			String inum = readString(dis);
+			if (inumInumMap.containsKey(inum)) {
+				inumSourceDnMap.put(inum, readString(dis));
+			}
+		} else {
+			throw new IOException(String.format("Unknown operation '%d' in inum store file '%s'", operation,
+					file.getAbsolutePath()));
+		}
+	}
+
+	private void appendRecord(byte[] payload) throws IOException {
+		writeRecord(log, payload);
+		recordsCount++;
+	}
+
+	private void writeRecord(DataOutputStream dos, byte[] payload) throws IOException {
+		dos.writeInt(payload.length);
+		dos.writeInt(calculateCrc(payload));
+		dos.write(payload);
+	}
+
+	private byte[] toPutRecord(GluuInumMap inumMap) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeByte(OPERATION_PUT);
+		writeString(dos, inumMap.getDn());
+		writeString(dos, inumMap.getInum());
+		writeString(dos, inumMap.getPrimaryKeyAttrName());
+		writeStrings(dos, inumMap.getPrimaryKeyValues());
+		writeString(dos, inumMap.getSecondaryKeyAttrName());
+		writeStrings(dos, inumMap.getSecondaryKeyValues());
+		writeString(dos, inumMap.getTertiaryKeyAttrName());
+		writeStrings(dos, inumMap.getTertiaryKeyValues());
+		writeString(dos, inumMap.getStatus() == null ? null : inumMap.getStatus().getValue());
+		dos.flush();
+
+		return bos.toByteArray();
+	}
+
+	private byte[] toRemoveRecord(String inum) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeByte(OPERATION_REMOVE);
+		writeString(dos, inum);
+		dos.flush();
+
+		return bos.toByteArray();
+	}
+
+	private byte[] toSourceDnRecord(String inum, String sourceDn) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeByte(OPERATION_SOURCE_DN);
+		writeString(dos, inum);
+		writeString(dos, sourceDn);
+		dos.flush();
+
+		return bos.toByteArray();
+	}
+
+	private void writeString(DataOutputStream dos, String value) throws IOException {
+		dos.writeBoolean(value != null);
+		if (value != null) {
+			dos.writeUTF(value);
+		}
+	}
+
+	private String readString(DataInputStream dis) throws IOException {
+		return dis.readBoolean() ? dis.readUTF() : null;
+	}
+
+	private void writeStrings(DataOutputStream dos, String[] values) throws IOException {
+		dos.writeInt(values == null ? -1 : values.length);
+		if (values != null) {
+			for (String value : values) {
+				writeString(dos, value);
+			}
+		}
+	}
+
+	private String[] readStrings(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		String[] values = new String[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = readString(dis);
+		}
+
+		return values;
+	}
+
+	private int calculateCrc(byte[] payload) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(payload, 0, payload.length);
+
+		return (int) crc32.getValue();
+	}
+
+}
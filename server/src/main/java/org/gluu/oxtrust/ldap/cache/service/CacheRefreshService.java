@@ -7,7 +7,14 @@
 package org.gluu.oxtrust.ldap.cache.service;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -19,6 +26,7 @@ import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.gluu.oxtrust.ldap.cache.model.CacheEntryDigest;
 import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
 import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
 import org.gluu.oxtrust.model.GluuCustomAttribute;
@@ -45,6 +53,8 @@ public class CacheRefreshService implements Serializable {
 
 	private static final long serialVersionUID = -2225880517520443390L;
 
+	private static final String ENTRY_DIGEST_ALGORITHM = "SHA-256";
+
 	@Inject
 	private Logger log;
 
@@ -173,4 +183,68 @@ public class CacheRefreshService implements Serializable {
 		}
 	}
 
+	/**
+	 * Calculate 128 bit digest of entry DN and attributes. Attributes and values
+	 * order doesn't affect result
+	 * 
+	 * @param legacyHashCode
+	 *            Hash code to compare entry with snapshots converted from text format
+	 */
+	public CacheEntryDigest calculateEntryDigest(GluuSimplePerson person, int legacyHashCode) {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance(ENTRY_DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("Failed to create entry digest", ex);
+		}
+
+		updateDigest(messageDigest, StringHelper.toLowerCase(person.getDn()));
+
+		List<GluuCustomAttribute> customAttributes = new ArrayList<GluuCustomAttribute>(person.getCustomAttributes());
+		Collections.sort(customAttributes, new Comparator<GluuCustomAttribute>() {
+			@Override
+			public int compare(GluuCustomAttribute attribute1, GluuCustomAttribute attribute2) {
+				return StringHelper.toLowerCase(attribute1.getName()).compareTo(StringHelper.toLowerCase(attribute2.getName()));
+			}
+		});
+
+		for (GluuCustomAttribute customAttribute : customAttributes) {
+			updateDigest(messageDigest, StringHelper.toLowerCase(customAttribute.getName()));
+
+			String[] values = customAttribute.getValues();
+			String[] sortedValues = values == null ? new String[0] : ArrayHelper.arrayClone(values);
+			Arrays.sort(sortedValues, new Comparator<String>() {
+				@Override
+				public int compare(String value1, String value2) {
+					if (value1 == null) {
+						return value2 == null ? 0 : -1;
+					}
+
+					return value2 == null ? 1 : value1.compareTo(value2);
+				}
+			});
+
+			messageDigest.update(ByteBuffer.allocate(4).putInt(sortedValues.length).array());
+			for (String value : sortedValues) {
+				updateDigest(messageDigest, value);
+			}
+		}
+
+		ByteBuffer digest = ByteBuffer.wrap(messageDigest.digest());
+
+		return new CacheEntryDigest(digest.getLong(), digest.getLong(), legacyHashCode);
+	}
+
+	private void updateDigest(MessageDigest messageDigest, String value) {
+		if (value == null) {
+			messageDigest.update((byte) 0);
+			return;
+		}
+
+		byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+		messageDigest.update((byte) 1);
+		messageDigest.update(ByteBuffer.allocate(4).putInt(valueBytes.length).array());
+		messageDigest.update(valueBytes);
+	}
+
 }
@@ -0,0 +1,225 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.gluu.oxtrust.ldap.cache.model.CacheEntryDigest;
+
+/**
+ * Read only memory mapped snapshot of source entries in binary format.
+ *
+ * File contains records sorted by inum, offsets table and footer:
+ * <pre>
+ * record: inum length (short), inum (UTF-8), digest high (long), digest low (long)
+ * offsets: record position (int) * count
+ * footer: count (int), offsets position (int), flags (int), version (int), magic (int)
+ * </pre>
+ * Sorted records allow to compare snapshots with sequential merge and offsets
+ * table allows to lookup entry by inum with binary search. Mapping is released
+ * when snapshot is garbage collected.
+ */
+public class CacheRefreshSnapshot {
+
+	private static final int MAGIC = 0x43525348;
+	private static final int VERSION = 1;
+	private static final int FOOTER_SIZE = 5 * 4;
+
+	private static final int FLAG_LEGACY_HASH_CODES = 1;
+
+	private final File file;
+	private final ByteBuffer buffer;
+	private final int count;
+	private final int offsetsPosition;
+	private final boolean legacyHashCodes;
+
+	private CacheRefreshSnapshot(File file, ByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+
+		int footerPosition = buffer.limit() - FOOTER_SIZE;
+		if (footerPosition < 0) {
+			throw new IOException(String.format("Snapshot file '%s' is too short", file.getAbsolutePath()));
+		}
+
+		this.count = buffer.getInt(footerPosition);
+		this.offsetsPosition = buffer.getInt(footerPosition + 4);
+		int flags = buffer.getInt(footerPosition + 8);
+		int version = buffer.getInt(footerPosition + 12);
+		int magic = buffer.getInt(footerPosition + 16);
+
+		if ((magic != MAGIC) || (version != VERSION)) {
+			throw new IOException(String.format("File '%s' isn't supported snapshot file", file.getAbsolutePath()));
+		}
+
+		if ((count < 0) || (offsetsPosition < 0) || (offsetsPosition + 4L * count != footerPosition)) {
+			throw new IOException(String.format("Snapshot file '%s' is corrupted", file.getAbsolutePath()));
+		}
+
+		this.legacyHashCodes = (flags & FLAG_LEGACY_HASH_CODES) != 0;
+	}
+
+	public static CacheRefreshSnapshot open(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			return new CacheRefreshSnapshot(file, buffer);
+		} finally {
+			IOUtils.closeQuietly(randomAccessFile);
+		}
+	}
+
+	/**
+	 * Write snapshot sorted by inum into file
+	 */
+	public static void write(File file, Map<String, CacheEntryDigest> inumWithEntryDigestMap, boolean legacyHashCodes)
+			throws IOException {
+		String[] inums = inumWithEntryDigestMap.keySet().toArray(new String[0]);
+		Arrays.sort(inums);
+
+		int[] offsets = new int[inums.length];
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		try {
+			for (int i = 0; i < inums.length; i++) {
+				offsets[i] = dos.size();
+
+				byte[] inumBytes = inums[i].getBytes(StandardCharsets.UTF_8);
+				CacheEntryDigest digest = inumWithEntryDigestMap.get(inums[i]);
+
+				dos.writeShort(inumBytes.length);
+				dos.write(inumBytes);
+				dos.writeLong(digest.getHigh());
+				dos.writeLong(digest.getLow());
+			}
+
+			int offsetsPosition = dos.size();
+			for (int offset : offsets) {
+				dos.writeInt(offset);
+			}
+
+			dos.writeInt(inums.length);
+			dos.writeInt(offsetsPosition);
+			dos.writeInt(legacyHashCodes ? FLAG_LEGACY_HASH_CODES : 0);
+			dos.writeInt(VERSION);
+			dos.writeInt(MAGIC);
+			dos.flush();
+		} finally {
+			IOUtils.closeQuietly(dos);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Digests in snapshot converted from text format are hash codes which
+	 * PersistenceEntryManager.getHashCode returns
+	 */
+	public boolean isLegacyHashCodes() {
+		return legacyHashCodes;
+	}
+
+	public String getInum(int index) {
+		int position = getRecordPosition(index);
+		int length = buffer.getShort(position) & 0xFFFF;
+
+		byte[] inumBytes = new byte[length];
+		ByteBuffer recordBuffer = buffer.duplicate();
+		recordBuffer.position(position + 2);
+		recordBuffer.get(inumBytes);
+
+		return new String(inumBytes, StandardCharsets.UTF_8);
+	}
+
+	public CacheEntryDigest getDigest(int index) {
+		int position = getRecordPosition(index);
+		int digestPosition = position + 2 + (buffer.getShort(position) & 0xFFFF);
+
+		return new CacheEntryDigest(buffer.getLong(digestPosition), buffer.getLong(digestPosition + 8));
+	}
+
+	public int indexOf(String inum) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int compareResult = getInum(middle).compareTo(inum);
+			if (compareResult < 0) {
+				low = middle + 1;
+			} else if (compareResult > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+
+		return -1;
+	}
+
+	public boolean contains(String inum) {
+		return indexOf(inum) >= 0;
+	}
+
+	public CacheEntryDigest getDigest(String inum) {
+		int index = indexOf(inum);
+		if (index < 0) {
+			return null;
+		}
+
+		return getDigest(index);
+	}
+
+	/**
+	 * Check if entry digest differs from digest stored in snapshot at specified
+	 * index
+	 */
+	public boolean isChanged(int index, CacheEntryDigest digest) {
+		CacheEntryDigest prevDigest = getDigest(index);
+		if (legacyHashCodes) {
+			return prevDigest.getLow() != digest.getLegacyHashCode();
+		}
+
+		return !prevDigest.equals(digest);
+	}
+
+	public boolean isChanged(String inum, CacheEntryDigest digest) {
+		int index = indexOf(inum);
+		if (index < 0) {
+			return true;
+		}
+
+		return isChanged(index, digest);
+	}
+
+	private int getRecordPosition(int index) {
+		if ((index < 0) || (index >= count)) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		}
+
+		return buffer.getInt(offsetsPosition + 4 * index);
+	}
+
+}
@@ -10,9 +10,15 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -22,6 +28,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
 import java.util.Set;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -29,9 +36,12 @@ import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.gluu.config.oxtrust.CacheRefreshConfiguration;
+import org.gluu.oxtrust.ldap.cache.model.CacheEntryDigest;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshHighWaterMarks;
 import org.gluu.util.ArrayHelper;
 import org.slf4j.Logger;
 
@@ -48,7 +58,14 @@ public class CacheRefreshSnapshotFileService {
 	private Logger log;
 
 	private static final String SNAPSHOT_FILE_NAME_PATTERN = "inum-snapshot-%s.txt";
+	private static final String BINARY_SNAPSHOT_FILE_NAME_EXTENSION = ".bin";
+	private static final String BINARY_SNAPSHOT_FILE_NAME_PATTERN = "inum-snapshot-%s" + BINARY_SNAPSHOT_FILE_NAME_EXTENSION;
+	private static final String TMP_FILE_SUFFIX = ".tmp";
 	private static final String PROBLEM_LIST_FILE_NAME = "problem-inum-list.txt";
+	private static final String HIGH_WATER_MARKS_FILE_NAME = "source-high-water-marks.properties";
+	private static final String HIGH_WATER_MARKS_ATTRIBUTE_NAME = "attributeName";
+	private static final String HIGH_WATER_MARKS_LAST_FULL_RECONCILIATION = "lastFullReconciliation";
+	private static final String HIGH_WATER_MARKS_SOURCE_PREFIX = "source.";
 	private static final String SNAPSHOT_FILE_NAME_DATE_PATTERN = "yyyy-MM-dd-HH-mm";
 
 	public boolean prepareSnapshotsFolder(CacheRefreshConfiguration cacheRefreshConfiguration) {
@@ -67,33 +84,31 @@ public class CacheRefreshSnapshotFileService {
 		return true;
 	}
 
-	public boolean createSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, Map<String, Integer> inumWithEntryHashCodeMap) {
+	public boolean createSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration,
+			Map<String, CacheEntryDigest> inumWithEntryDigestMap) {
 		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
 			return false;
 		}
 
 		DateFormat fileNameDateFormat = new SimpleDateFormat(SNAPSHOT_FILE_NAME_DATE_PATTERN);
-		String snapshotFileName = String.format(SNAPSHOT_FILE_NAME_PATTERN, fileNameDateFormat.format(new Date()));
+		String snapshotFileName = String.format(BINARY_SNAPSHOT_FILE_NAME_PATTERN,
+				fileNameDateFormat.format(new Date()));
 
-		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + snapshotFileName);
-		BufferedWriter bos;
-		try {
-			bos = new BufferedWriter(new FileWriter(file));
-		} catch (IOException ex) {
-			log.error("Failed to create snapshot file '{}'", file.getAbsolutePath(), ex);
-			return false;
-		}
+		return writeBinarySnapshot(cacheRefreshConfiguration, snapshotFileName, inumWithEntryDigestMap, false);
+	}
 
+	private boolean writeBinarySnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, String snapshotFileName,
+			Map<String, CacheEntryDigest> inumWithEntryDigestMap, boolean legacyHashCodes) {
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + snapshotFileName);
+		File tmpFile = new File(file.getAbsolutePath() + TMP_FILE_SUFFIX);
 		try {
-			for (Entry<String, Integer> entry : inumWithEntryHashCodeMap.entrySet()) {
-				bos.write(String.format("%s:%d\n", entry.getKey(), entry.getValue()));
-			}
-			bos.flush();
+			CacheRefreshSnapshot.write(tmpFile, inumWithEntryDigestMap, legacyHashCodes);
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
 		} catch (IOException ex) {
 			log.error("Failed to create snapshot file '{}'", file.getAbsolutePath(), ex);
+			FileUtils.deleteQuietly(tmpFile);
 			return false;
-		} finally {
-			IOUtils.closeQuietly(bos);
 		}
 
 		return true;
@@ -144,22 +159,66 @@ public class CacheRefreshSnapshotFileService {
 		return result;
 	}
 
-	public Map<String, Integer> readLastSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration) {
+	public CacheRefreshSnapshot readLastSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration) {
 		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
 			return null;
 		}
 
-		String[] snapshots = getSnapshotsList(cacheRefreshConfiguration);
+		String[] snapshots = getSnapshotsList(cacheRefreshConfiguration, BINARY_SNAPSHOT_FILE_NAME_PATTERN);
 		if (ArrayHelper.isEmpty(snapshots)) {
+			// Convert last snapshot in text format if there is one
+			String[] textSnapshots = getSnapshotsList(cacheRefreshConfiguration, SNAPSHOT_FILE_NAME_PATTERN);
+			if (ArrayHelper.isEmpty(textSnapshots)) {
+				return null;
+			}
+
+			String binarySnapshot = convertTextSnapshot(cacheRefreshConfiguration, textSnapshots[textSnapshots.length - 1]);
+			if (binarySnapshot == null) {
+				return null;
+			}
+
+			snapshots = new String[] { binarySnapshot };
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + snapshots[snapshots.length - 1]);
+		try {
+			return CacheRefreshSnapshot.open(file);
+		} catch (IOException ex) {
+			log.error("Failed to load snapshot file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Convert snapshot from "inum:hash" text format into binary format
+	 * 
+	 * @return Name of binary snapshot file
+	 */
+	public String convertTextSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, String snapshotFileName) {
+		Map<String, Integer> inumWithEntryHashCodeMap = readSnapshot(cacheRefreshConfiguration, snapshotFileName);
+		if (inumWithEntryHashCodeMap == null) {
 			return null;
 		}
 
-		return readSnapshot(cacheRefreshConfiguration, snapshots[snapshots.length - 1]);
+		Map<String, CacheEntryDigest> inumWithEntryDigestMap = new HashMap<String, CacheEntryDigest>(
+				inumWithEntryHashCodeMap.size());
+		for (Entry<String, Integer> entry : inumWithEntryHashCodeMap.entrySet()) {
+			inumWithEntryDigestMap.put(entry.getKey(), CacheEntryDigest.fromLegacyHashCode(entry.getValue()));
+		}
+
+		String binarySnapshotFileName = FilenameUtils.getBaseName(snapshotFileName) + BINARY_SNAPSHOT_FILE_NAME_EXTENSION;
+		if (!writeBinarySnapshot(cacheRefreshConfiguration, binarySnapshotFileName, inumWithEntryDigestMap, true)) {
+			return null;
+		}
+		log.info("Converted snapshot '{}' with '{}' entries into binary format", snapshotFileName,
+				inumWithEntryDigestMap.size());
+
+		return binarySnapshotFileName;
 	}
 
-	private String[] getSnapshotsList(CacheRefreshConfiguration cacheRefreshConfiguration) {
+	private String[] getSnapshotsList(CacheRefreshConfiguration cacheRefreshConfiguration, String fileNamePattern) {
 		File file = new File(cacheRefreshConfiguration.getSnapshotFolder());
-		String[] files = file.list(new WildcardFileFilter(String.format(SNAPSHOT_FILE_NAME_PATTERN, "*")));
+		String[] files = file.list(new WildcardFileFilter(String.format(fileNamePattern, "*")));
 		Arrays.sort(files);
 
 		return files;
@@ -170,21 +229,31 @@ public class CacheRefreshSnapshotFileService {
 			return false;
 		}
 
-		String[] snapshots = getSnapshotsList(cacheRefreshConfiguration);
+		String[] snapshots = getSnapshotsList(cacheRefreshConfiguration, BINARY_SNAPSHOT_FILE_NAME_PATTERN);
 		if (ArrayHelper.isEmpty(snapshots)) {
 			return true;
 		}
 
 		for (int i = 0; i < snapshots.length - count; i++) {
-			File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + snapshots[i]);
-			if (!file.delete()) {
-				log.error("Failed to remove snaphost file '{}'", file.getAbsolutePath());
-			}
+			removeSnapshot(cacheRefreshConfiguration, snapshots[i]);
+		}
+
+		// Snapshots in text format aren't needed after conversion
+		String[] textSnapshots = getSnapshotsList(cacheRefreshConfiguration, SNAPSHOT_FILE_NAME_PATTERN);
+		for (String textSnapshot : textSnapshots) {
+			removeSnapshot(cacheRefreshConfiguration, textSnapshot);
 		}
 
 		return true;
 	}
 
+	private void removeSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, String snapshotFileName) {
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + snapshotFileName);
+		if (!file.delete()) {
+			log.error("Failed to remove snaphost file '{}'", file.getAbsolutePath());
+		}
+	}
+
 	public List<String> readProblemList(CacheRefreshConfiguration cacheRefreshConfiguration) {
 		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
 			return null;
@@ -248,4 +317,81 @@ public class CacheRefreshSnapshotFileService {
 		return true;
 	}
 
+	public CacheRefreshHighWaterMarks readHighWaterMarks(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return null;
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + HIGH_WATER_MARKS_FILE_NAME);
+		if (!file.exists()) {
+			return null;
+		}
+
+		Properties properties = new Properties();
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			properties.load(is);
+		} catch (IOException ex) {
+			log.error("Failed to load high water marks from file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+
+		CacheRefreshHighWaterMarks result = new CacheRefreshHighWaterMarks(
+				properties.getProperty(HIGH_WATER_MARKS_ATTRIBUTE_NAME));
+		try {
+			result.setLastFullReconciliation(
+					Long.parseLong(properties.getProperty(HIGH_WATER_MARKS_LAST_FULL_RECONCILIATION, "0")));
+		} catch (NumberFormatException ex) {
+			log.error("Failed to parse last full reconciliation time in file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		}
+
+		for (String propertyName : properties.stringPropertyNames()) {
+			if (propertyName.startsWith(HIGH_WATER_MARKS_SOURCE_PREFIX)) {
+				result.setHighWaterMark(propertyName.substring(HIGH_WATER_MARKS_SOURCE_PREFIX.length()),
+						properties.getProperty(propertyName));
+			}
+		}
+
+		return result;
+	}
+
+	public boolean writeHighWaterMarks(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshHighWaterMarks highWaterMarks) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return false;
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty(HIGH_WATER_MARKS_ATTRIBUTE_NAME, highWaterMarks.getAttributeName());
+		properties.setProperty(HIGH_WATER_MARKS_LAST_FULL_RECONCILIATION,
+				String.valueOf(highWaterMarks.getLastFullReconciliation()));
+		for (Entry<String, String> sourceHighWaterMark : highWaterMarks.getSourceHighWaterMarks().entrySet()) {
+			properties.setProperty(HIGH_WATER_MARKS_SOURCE_PREFIX + sourceHighWaterMark.getKey(),
+					sourceHighWaterMark.getValue());
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + HIGH_WATER_MARKS_FILE_NAME);
+		File tmpFile = new File(file.getAbsolutePath() + TMP_FILE_SUFFIX);
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(tmpFile);
+			properties.store(os, null);
+			os.close();
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			log.error("Failed to write high water marks to file '{}'", file.getAbsolutePath(), ex);
+			FileUtils.deleteQuietly(tmpFile);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(os);
+		}
+
+		return true;
+	}
+
 }
@@ -6,6 +6,8 @@
 
 package org.gluu.oxtrust.ldap.cache.service;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
@@ -16,12 +18,17 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -31,6 +38,7 @@ import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.apache.commons.beanutils.BeanUtilsBean2;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.gluu.config.oxtrust.AppConfiguration;
 import org.gluu.config.oxtrust.CacheRefreshAttributeMapping;
@@ -41,6 +49,8 @@ import org.gluu.model.custom.script.model.bind.BindCredentials;
 import org.gluu.model.ldap.GluuLdapConfiguration;
 import org.gluu.oxtrust.config.ConfigurationFactory;
 import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKey;
+import org.gluu.oxtrust.ldap.cache.model.CacheEntryDigest;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshHighWaterMarks;
 import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
 import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
 import org.gluu.oxtrust.model.GluuConfiguration;
@@ -52,8 +62,10 @@ import org.gluu.oxtrust.service.ConfigurationService;
 import org.gluu.oxtrust.service.EncryptionService;
 import org.gluu.oxtrust.service.InumService;
 import org.gluu.oxtrust.service.PersonService;
+import org.gluu.oxtrust.service.WorkerPoolService;
 import org.gluu.oxtrust.service.cdi.event.CacheRefreshEvent;
 import org.gluu.oxtrust.service.external.ExternalCacheRefreshService;
+import org.gluu.oxtrust.util.DnUtil;
 import org.gluu.oxtrust.util.OxTrustConstants;
 import org.gluu.oxtrust.util.PropertyUtil;
 import org.gluu.persist.PersistenceEntryManager;
@@ -63,6 +75,8 @@ import org.gluu.persist.exception.EntryPersistenceException;
 import org.gluu.persist.exception.operation.SearchException;
 import org.gluu.persist.ldap.impl.LdapEntryManager;
 import org.gluu.persist.ldap.impl.LdapEntryManagerFactory;
+import org.gluu.persist.model.BatchOperation;
+import org.gluu.persist.model.ProcessBatchOperation;
 import org.gluu.persist.model.SearchScope;
 import org.gluu.persist.model.base.GluuDummyEntry;
 import org.gluu.persist.operation.PersistenceOperationService;
@@ -95,6 +109,26 @@ public class CacheRefreshTimer {
 
 	private static final int DEFAULT_INTERVAL = 60;
 
+	private static final String STREAMING_MODE_PROPERTY = "cacheRefreshStreamingMode";
+	private static final String STREAMING_PAGE_SIZE_PROPERTY = "cacheRefreshStreamingPageSize";
+	private static final int DEFAULT_STREAMING_PAGE_SIZE = 1000;
+	// Source DN stored in inum store for keys which belong to more than one entry
+	private static final String NON_DETERMINISTIC_KEY_SOURCE_DN = "";
+
+	private static final String SOURCE_LOAD_THREADS_PROPERTY = "cacheRefreshSourceLoadThreads";
+	private static final String SOURCE_SERVER_MAX_CONCURRENCY_PROPERTY = "cacheRefreshSourceServerMaxConcurrency";
+	private static final int DEFAULT_SOURCE_LOAD_THREADS = 1;
+	private static final int DEFAULT_SOURCE_SERVER_MAX_CONCURRENCY = 4;
+
+	private static final String TARGET_WRITE_THREADS_PROPERTY = "cacheRefreshTargetWriteThreads";
+	private static final String TARGET_WRITE_BATCH_SIZE_PROPERTY = "cacheRefreshTargetWriteBatchSize";
+	private static final int DEFAULT_TARGET_WRITE_THREADS = 1;
+	private static final int DEFAULT_TARGET_WRITE_BATCH_SIZE = 100;
+
+	private static final String INCREMENTAL_ATTRIBUTE_PROPERTY = "cacheRefreshIncrementalAttribute";
+	private static final String FULL_RECONCILIATION_INTERVAL_PROPERTY = "cacheRefreshFullReconciliationInterval";
+	private static final int DEFAULT_FULL_RECONCILIATION_INTERVAL = 60;
+
 	@Inject
 	private Logger log;
 
@@ -143,20 +177,29 @@ public class CacheRefreshTimer {
 	@Inject
 	private ObjectSerializationService objectSerializationService;
 
+	@Inject
+	private WorkerPoolService workerPoolService;
+
 	private AtomicBoolean isActive;
 	private long lastFinishedTime;
 
+	private CacheRefreshInumStore inumStore;
+
+	private final Object externalScriptsLock = new Object();
+
 	public void initTimer() {
 		log.info("Initializing Cache Refresh Timer");
 		this.isActive = new AtomicBoolean(false);
 
-		// Clean up previous Inum cache
+		// Clean up previous Inum cache. Inum server could be updated while this node
+		// wasn't running cache refresh, so inum store should be reloaded from it
 		CacheRefreshConfiguration cacheRefreshConfiguration = configurationFactory.getCacheRefreshConfiguration();
 		if (cacheRefreshConfiguration != null) {
 			String snapshotFolder = cacheRefreshConfiguration.getSnapshotFolder();
 			if (StringHelper.isNotEmpty(snapshotFolder)) {
 				String inumCachePath = getInumCachePath(cacheRefreshConfiguration);
 				objectSerializationService.cleanup(inumCachePath);
+				removeInumStore(cacheRefreshConfiguration);
 			}
 		}
 
@@ -297,8 +340,17 @@ public class CacheRefreshTimer {
 					|| (isVdsUpdate && (targetServerConnection == null))) {
 				log.error("Skipping cache refresh due to invalid server configuration");
 			} else {
-				detectChangedEntries(cacheRefreshConfiguration, currentConfiguration, sourceServerConnections,
-						inumDbServerConnection, targetServerConnection, updateMethod);
+				boolean completed = false;
+				try {
+					detectChangedEntries(cacheRefreshConfiguration, currentConfiguration, sourceServerConnections,
+							inumDbServerConnection, targetServerConnection, updateMethod);
+					completed = true;
+				} finally {
+					if (!completed) {
+						// Inum server may contain entries which weren't stored into inum store
+						removeInumStore(cacheRefreshConfiguration);
+					}
+				}
 			}
 		} finally {
 			// Close connections to LDAP servers
@@ -327,13 +379,34 @@ public class CacheRefreshTimer {
 		return;
 	}
 
-	@SuppressWarnings("unchecked")
 	private boolean detectChangedEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
 			GluuConfiguration currentConfiguration, LdapServerConnection[] sourceServerConnections,
 			LdapServerConnection inumDbServerConnection, LdapServerConnection targetServerConnection,
 			CacheRefreshUpdateMethod updateMethod) throws SearchException {
 		boolean isVDSMode = CacheRefreshUpdateMethod.VDS.equals(updateMethod);
 
+		CacheRefreshHighWaterMarks highWaterMarks = prepareHighWaterMarks();
+		if (highWaterMarks != null) {
+			CacheRefreshHighWaterMarks prevHighWaterMarks = cacheRefreshSnapshotFileService
+					.readHighWaterMarks(cacheRefreshConfiguration);
+			if (isIncrementalRun(highWaterMarks, prevHighWaterMarks)) {
+				CacheRefreshSnapshot prevSnapshot = cacheRefreshSnapshotFileService
+						.readLastSnapshot(cacheRefreshConfiguration);
+				if ((prevSnapshot != null) && !prevSnapshot.isLegacyHashCodes()) {
+					return detectChangedEntriesIncremental(cacheRefreshConfiguration, currentConfiguration,
+							sourceServerConnections, inumDbServerConnection, targetServerConnection, isVDSMode,
+							prevSnapshot, prevHighWaterMarks);
+				}
+			}
+			log.info("Starting full reconciliation with source server");
+		}
+
+		if (isStreamingMode()) {
+			return detectChangedEntriesStreaming(cacheRefreshConfiguration, currentConfiguration,
+					sourceServerConnections, inumDbServerConnection, targetServerConnection, updateMethod,
+					highWaterMarks);
+		}
+
 		// Load all entries from Source servers
 		log.info("Attempting to load entries from source server");
 		List<GluuSimplePerson> sourcePersons;
@@ -345,34 +418,25 @@ public class CacheRefreshTimer {
 		}
 
 		log.info("Found '{}' entries in source server", sourcePersons.size());
+		updateHighWaterMarks(cacheRefreshConfiguration, highWaterMarks, sourcePersons);
 
 		Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap = getSourcePersonCompoundKeyMap(
 				cacheRefreshConfiguration, sourcePersons);
 		log.info("Found '{}' unique entries in source server", sourcePersonCacheCompoundKeyMap.size());
 
-		// Load all inum entries
-		List<GluuInumMap> inumMaps = null;
-
-		// Load all inum entries from local disk cache
-		String inumCachePath = getInumCachePath(cacheRefreshConfiguration);
-		Object loadedObject = objectSerializationService.loadObject(inumCachePath);
-		if (loadedObject != null) {
-			try {
-				inumMaps = (List<GluuInumMap>) loadedObject;
-				log.debug("Found '{}' entries in inum objects disk cache", inumMaps.size());
-			} catch (Exception ex) {
-				log.error("Failed to convert to GluuInumMap list", ex);
-				objectSerializationService.cleanup(inumCachePath);
-			}
+		// Create snapshots cache folder if needed
+		boolean result = cacheRefreshSnapshotFileService.prepareSnapshotsFolder(cacheRefreshConfiguration);
+		if (!result) {
+			return false;
 		}
 
-		if (inumMaps == null) {
-			// Load all inum entries from LDAP
-			inumMaps = loadInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection);
-			log.info("Found '{}' entries in inum server", inumMaps.size());
+		// Load all inum entries
+		CacheRefreshInumStore inumStore = openInumStore(cacheRefreshConfiguration, inumDbServerConnection);
+		if (inumStore == null) {
+			return false;
 		}
 
-		HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap = getPrimaryKeyAttrValueInumMap(inumMaps);
+		Map<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap = inumStore.getPrimaryKeyAttrValueInumMap();
 
 		// Go through Source entries and create new InumMap entries if needed
 		HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap = addNewInumServerEntries(
@@ -383,9 +447,57 @@ public class CacheRefreshTimer {
 				primaryKeyAttrValueInumMap, addedPrimaryKeyAttrValueInumMap);
 		log.debug("Count actual inum entries '{}' after updating inum server", allPrimaryKeyAttrValueInumMap.size());
 
-		HashMap<String, Integer> currInumWithEntryHashCodeMap = getSourcePersonsHashCodesMap(inumDbServerConnection,
-				sourcePersonCacheCompoundKeyMap, allPrimaryKeyAttrValueInumMap);
-		log.debug("Count actual source entries '{}' after calculating hash code", currInumWithEntryHashCodeMap.size());
+		// Load last snapshot
+		CacheRefreshSnapshot prevSnapshot = cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration);
+
+		HashMap<String, CacheEntryDigest> currInumWithEntryDigestMap = getSourcePersonsDigestsMap(
+				inumDbServerConnection, sourcePersonCacheCompoundKeyMap, allPrimaryKeyAttrValueInumMap, prevSnapshot);
+		log.debug("Count actual source entries '{}' after calculating digest", currInumWithEntryDigestMap.size());
+
+		// Compare 2 snapshot and invoke update if needed
+		Set<String> changedInums = getChangedInums(currInumWithEntryDigestMap, prevSnapshot, isVDSMode);
+		log.info("Found '{}' changed entries", changedInums.size());
+
+		// Load problem list from disk and add to changedInums
+		List<String> problemInums = cacheRefreshSnapshotFileService.readProblemList(cacheRefreshConfiguration);
+		if (problemInums != null) {
+			log.info("Loaded '{}' problem entries from problem file", problemInums.size());
+			// Process inums from problem list too
+			changedInums.addAll(problemInums);
+		}
+
+		List<String> updatedInums = null;
+		if (isVDSMode) {
+			// Update request to VDS to update entries on target server
+			updatedInums = updateTargetEntriesViaVDS(cacheRefreshConfiguration, targetServerConnection, changedInums);
+		} else {
+			updatedInums = updateTargetEntriesViaCopy(cacheRefreshConfiguration, sourcePersonCacheCompoundKeyMap,
+					allPrimaryKeyAttrValueInumMap, changedInums);
+		}
+
+		result = applyDetectedChanges(cacheRefreshConfiguration, currentConfiguration, inumDbServerConnection,
+				inumStore, addedPrimaryKeyAttrValueInumMap, currInumWithEntryDigestMap, prevSnapshot,
+				changedInums, updatedInums, Collections.<String>emptySet());
+		if (result) {
+			writeHighWaterMarks(cacheRefreshConfiguration, highWaterMarks);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Streaming variant of change detection. Source entries are processed page by
+	 * page: compound keys, inums and digests are calculated per page, compared
+	 * with previous snapshot and changed entries are sent to target server before
+	 * next page is loaded. Only inum and digest of each entry are kept in memory.
+	 * Entries which key belonged to entry with another source DN are processed
+	 * after last page, when it's known whether their key is still unique.
+	 */
+	private boolean detectChangedEntriesStreaming(CacheRefreshConfiguration cacheRefreshConfiguration,
+			GluuConfiguration currentConfiguration, LdapServerConnection[] sourceServerConnections,
+			LdapServerConnection inumDbServerConnection, LdapServerConnection targetServerConnection,
+			CacheRefreshUpdateMethod updateMethod, CacheRefreshHighWaterMarks highWaterMarks) throws SearchException {
+		boolean isVDSMode = CacheRefreshUpdateMethod.VDS.equals(updateMethod);
 
 		// Create snapshots cache folder if needed
 		boolean result = cacheRefreshSnapshotFileService.prepareSnapshotsFolder(cacheRefreshConfiguration);
@@ -393,21 +505,126 @@ public class CacheRefreshTimer {
 			return false;
 		}
 
-		// Load last snapshot into memory
-		Map<String, Integer> prevInumWithEntryHashCodeMap = cacheRefreshSnapshotFileService
-				.readLastSnapshot(cacheRefreshConfiguration);
+		// Load all inum entries
+		CacheRefreshInumStore inumStore = openInumStore(cacheRefreshConfiguration, inumDbServerConnection);
+		if (inumStore == null) {
+			return false;
+		}
+
+		// Load last snapshot
+		CacheRefreshSnapshot prevSnapshot = cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration);
 
-		// Compare 2 snapshot and invoke update if needed
-		Set<String> changedInums = getChangedInums(currInumWithEntryHashCodeMap, prevInumWithEntryHashCodeMap,
-				isVDSMode);
+		// Load problem list from disk
+		List<String> problemInums = cacheRefreshSnapshotFileService.readProblemList(cacheRefreshConfiguration);
+		if (problemInums != null) {
+			log.info("Loaded '{}' problem entries from problem file", problemInums.size());
+		}
+
+		StreamingChangeDetector changeDetector = new StreamingChangeDetector(cacheRefreshConfiguration,
+				inumDbServerConnection, targetServerConnection, isVDSMode, inumStore, prevSnapshot, problemInums);
+		if (!changeDetector.prepare()) {
+			return false;
+		}
+
+		int pageSize = getStreamingPageSize();
+		log.info("Attempting to load entries from source server using page size '{}'", pageSize);
+		loadSourceServerEntries(cacheRefreshConfiguration, sourceServerConnections, pageSize, changeDetector,
+				highWaterMarks);
+		changeDetector.finish();
+
+		log.info("Found '{}' unique entries in source server", changeDetector.getCurrInumWithEntryDigestMap().size());
+		log.info("Found '{}' changed entries", changeDetector.getChangedInums().size());
+
+		result = applyDetectedChanges(cacheRefreshConfiguration, currentConfiguration, inumDbServerConnection,
+				inumStore, changeDetector.getAddedPrimaryKeyAttrValueInumMap(),
+				changeDetector.getCurrInumWithEntryDigestMap(), prevSnapshot,
+				changeDetector.getChangedInums(), changeDetector.getUpdatedInums(),
+				changeDetector.getDuplicateInums());
+		if (result) {
+			// Source DNs are stored after added and removed inum entries were applied
+			updateInumStoreSourceDns(inumStore, changeDetector.getInumSourceDnMap());
+			writeHighWaterMarks(cacheRefreshConfiguration, highWaterMarks);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Incremental variant of change detection. Only entries which were modified
+	 * after high water marks of previous run are loaded from source servers.
+	 * Removed entries are detected during periodic full reconciliation.
+	 */
+	private boolean detectChangedEntriesIncremental(CacheRefreshConfiguration cacheRefreshConfiguration,
+			GluuConfiguration currentConfiguration, LdapServerConnection[] sourceServerConnections,
+			LdapServerConnection inumDbServerConnection, LdapServerConnection targetServerConnection,
+			boolean isVDSMode, CacheRefreshSnapshot prevSnapshot, CacheRefreshHighWaterMarks prevHighWaterMarks)
+			throws SearchException {
+		CacheRefreshHighWaterMarks highWaterMarks = new CacheRefreshHighWaterMarks(
+				prevHighWaterMarks.getAttributeName());
+		highWaterMarks.setLastFullReconciliation(prevHighWaterMarks.getLastFullReconciliation());
+		for (Entry<String, String> sourceHighWaterMark : prevHighWaterMarks.getSourceHighWaterMarks().entrySet()) {
+			highWaterMarks.setHighWaterMark(sourceHighWaterMark.getKey(), sourceHighWaterMark.getValue());
+		}
+
+		// Load modified entries from Source servers
+		log.info("Attempting to load entries modified after last run from source server");
+		String[] keyAttributeStarts = cacheRefreshConfiguration.isUseSearchLimit() ? createTwoLettersArray()
+				: new String[] { "" };
+		List<GluuSimplePerson> sourcePersons = loadSourceServerEntries(cacheRefreshConfiguration,
+				sourceServerConnections, keyAttributeStarts, prevHighWaterMarks);
+		log.info("Found '{}' modified entries in source server", sourcePersons.size());
+		updateHighWaterMarks(cacheRefreshConfiguration, highWaterMarks, sourcePersons);
+
+		Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap = getSourcePersonCompoundKeyMap(
+				cacheRefreshConfiguration, sourcePersons);
+
+		// Load all inum entries
+		CacheRefreshInumStore inumStore = openInumStore(cacheRefreshConfiguration, inumDbServerConnection);
+		if (inumStore == null) {
+			return false;
+		}
+
+		// Go through Source entries and create new InumMap entries if needed
+		HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap = addNewInumServerEntries(
+				cacheRefreshConfiguration, inumDbServerConnection, sourcePersonCacheCompoundKeyMap,
+				inumStore.getPrimaryKeyAttrValueInumMap());
+
+		HashMap<CacheCompoundKey, GluuInumMap> loadedPrimaryKeyAttrValueInumMap = new HashMap<CacheCompoundKey, GluuInumMap>();
+		for (CacheCompoundKey cacheCompoundKey : sourcePersonCacheCompoundKeyMap.keySet()) {
+			GluuInumMap inumMap = addedPrimaryKeyAttrValueInumMap.get(cacheCompoundKey);
+			if (inumMap == null) {
+				inumMap = inumStore.get(cacheCompoundKey);
+			}
+			loadedPrimaryKeyAttrValueInumMap.put(cacheCompoundKey, inumMap);
+		}
+
+		HashMap<String, CacheEntryDigest> loadedInumWithEntryDigestMap = getSourcePersonsDigestsMap(
+				inumDbServerConnection, sourcePersonCacheCompoundKeyMap, loadedPrimaryKeyAttrValueInumMap,
+				prevSnapshot);
+
+		// Compare with last snapshot
+		HashMap<String, CacheEntryDigest> changedInumWithEntryDigestMap = new HashMap<String, CacheEntryDigest>();
+		for (Entry<String, CacheEntryDigest> loadedInumWithEntryDigest : loadedInumWithEntryDigestMap.entrySet()) {
+			if (prevSnapshot.isChanged(loadedInumWithEntryDigest.getKey(), loadedInumWithEntryDigest.getValue())) {
+				changedInumWithEntryDigestMap.put(loadedInumWithEntryDigest.getKey(),
+						loadedInumWithEntryDigest.getValue());
+			}
+		}
+		Set<String> changedInums = new HashSet<String>(changedInumWithEntryDigestMap.keySet());
 		log.info("Found '{}' changed entries", changedInums.size());
 
-		// Load problem list from disk and add to changedInums
+		// Entries from problem list can be copied only if they were loaded in this run
+		Set<String> postponedProblemInums = new HashSet<String>();
 		List<String> problemInums = cacheRefreshSnapshotFileService.readProblemList(cacheRefreshConfiguration);
 		if (problemInums != null) {
 			log.info("Loaded '{}' problem entries from problem file", problemInums.size());
-			// Process inums from problem list too
-			changedInums.addAll(problemInums);
+			for (String problemInum : problemInums) {
+				if (isVDSMode || loadedInumWithEntryDigestMap.containsKey(problemInum)) {
+					changedInums.add(problemInum);
+				} else {
+					postponedProblemInums.add(problemInum);
+				}
+			}
 		}
 
 		List<String> updatedInums = null;
@@ -416,16 +633,198 @@ public class CacheRefreshTimer {
 			updatedInums = updateTargetEntriesViaVDS(cacheRefreshConfiguration, targetServerConnection, changedInums);
 		} else {
 			updatedInums = updateTargetEntriesViaCopy(cacheRefreshConfiguration, sourcePersonCacheCompoundKeyMap,
-					allPrimaryKeyAttrValueInumMap, changedInums);
+					loadedPrimaryKeyAttrValueInumMap, changedInums);
 		}
+		log.info("Updated '{}' entries", updatedInums.size());
+		changedInums.removeAll(updatedInums);
+		changedInums.addAll(postponedProblemInums);
+		log.info("Failed to update '{}' entries", changedInums.size());
 
+		// Store added inum entries into local inum store
+		addToInumStore(inumStore, addedPrimaryKeyAttrValueInumMap);
+
+		// Persist snapshot to cache folder if there are changed entries
+		if (!changedInumWithEntryDigestMap.isEmpty()) {
+			HashMap<String, CacheEntryDigest> currInumWithEntryDigestMap = new HashMap<String, CacheEntryDigest>(
+					prevSnapshot.size() + changedInumWithEntryDigestMap.size());
+			for (int i = 0; i < prevSnapshot.size(); i++) {
+				currInumWithEntryDigestMap.put(prevSnapshot.getInum(i), prevSnapshot.getDigest(i));
+			}
+			currInumWithEntryDigestMap.putAll(changedInumWithEntryDigestMap);
+
+			boolean result = cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration,
+					currInumWithEntryDigestMap);
+			if (!result) {
+				return false;
+			}
+
+			// Retain only specified number of snapshots
+			cacheRefreshSnapshotFileService.retainSnapshots(cacheRefreshConfiguration,
+					cacheRefreshConfiguration.getSnapshotMaxCount());
+		}
+
+		// Save changedInums as problem list to disk
+		currentConfiguration.setVdsCacheRefreshProblemCount(String.valueOf(changedInums.size()));
+		cacheRefreshSnapshotFileService.writeProblemList(cacheRefreshConfiguration, changedInums);
+
+		currentConfiguration.setVdsCacheRefreshLastUpdateCount(String.valueOf(updatedInums.size()));
+
+		writeHighWaterMarks(cacheRefreshConfiguration, highWaterMarks);
+
+		return true;
+	}
+
+	private CacheRefreshHighWaterMarks prepareHighWaterMarks() {
+		String attributeName = getIncrementalAttribute();
+		if (StringHelper.isEmpty(attributeName)) {
+			return null;
+		}
+
+		CacheRefreshHighWaterMarks highWaterMarks = new CacheRefreshHighWaterMarks(attributeName);
+		highWaterMarks.setLastFullReconciliation(System.currentTimeMillis());
+
+		return highWaterMarks;
+	}
+
+	private boolean isIncrementalRun(CacheRefreshHighWaterMarks highWaterMarks,
+			CacheRefreshHighWaterMarks prevHighWaterMarks) {
+		if (prevHighWaterMarks == null) {
+			return false;
+		}
+
+		if (!StringHelper.equalsIgnoreCase(highWaterMarks.getAttributeName(), prevHighWaterMarks.getAttributeName())) {
+			log.info("Incremental attribute was changed from '{}' to '{}'", prevHighWaterMarks.getAttributeName(),
+					highWaterMarks.getAttributeName());
+			return false;
+		}
+
+		long fullReconciliationInterval = getFullReconciliationInterval() * 60 * 1000L;
+
+		return highWaterMarks.getLastFullReconciliation()
+				- prevHighWaterMarks.getLastFullReconciliation() < fullReconciliationInterval;
+	}
+
+	/**
+	 * Update high water marks with incremental attribute values of source entries.
+	 * Attribute is removed from entries if it's not in source attributes list to
+	 * not affect entries digests
+	 */
+	private void updateHighWaterMarks(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshHighWaterMarks highWaterMarks, List<GluuSimplePerson> sourcePersons) {
+		if (highWaterMarks == null) {
+			return;
+		}
+
+		String attributeName = highWaterMarks.getAttributeName();
+		boolean removeAttribute = !containsIgnoreCase(getSourceAttributes(cacheRefreshConfiguration), attributeName);
+		for (GluuSimplePerson sourcePerson : sourcePersons) {
+			for (Iterator<GluuCustomAttribute> it = sourcePerson.getCustomAttributes().iterator(); it.hasNext();) {
+				GluuCustomAttribute customAttribute = it.next();
+				if (!attributeName.equalsIgnoreCase(customAttribute.getName())) {
+					continue;
+				}
+
+				String value = customAttribute.getValue();
+				if (StringHelper.isNotEmpty(value)) {
+					highWaterMarks.update(sourcePerson.getSourceServerName(), value);
+				}
+
+				if (removeAttribute) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private void writeHighWaterMarks(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshHighWaterMarks highWaterMarks) {
+		if (highWaterMarks == null) {
+			return;
+		}
+
+		log.debug("Storing high water marks: '{}'", highWaterMarks.getSourceHighWaterMarks());
+		cacheRefreshSnapshotFileService.writeHighWaterMarks(cacheRefreshConfiguration, highWaterMarks);
+	}
+
+	private boolean containsIgnoreCase(String[] values, String value) {
+		for (String currentValue : values) {
+			if (StringHelper.equalsIgnoreCase(currentValue, value)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Open local inum store. Store is filled from old serialized inum cache or
+	 * from inum server when it's created
+	 */
+	private CacheRefreshInumStore openInumStore(CacheRefreshConfiguration cacheRefreshConfiguration,
+			LdapServerConnection inumDbServerConnection) {
+		File inumStoreFile = new File(getInumStorePath(cacheRefreshConfiguration));
+		if ((this.inumStore != null) && this.inumStore.getFile().equals(inumStoreFile)) {
+			return this.inumStore;
+		}
+		closeInumStore();
+
+		CacheRefreshInumStore inumStore;
+		try {
+			inumStore = CacheRefreshInumStore.open(inumStoreFile);
+			log.debug("Found '{}' entries in inum store", inumStore.size());
+		} catch (IOException ex) {
+			log.error("Failed to open inum store '{}'", inumStoreFile, ex);
+			FileUtils.deleteQuietly(inumStoreFile);
+			return null;
+		}
+
+		if (inumStore.isCreated()) {
+			// Load all inum entries from LDAP
+			List<GluuInumMap> inumMaps = loadInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection);
+			log.info("Found '{}' entries in inum server", inumMaps.size());
+
+			try {
+				inumStore.putAll(inumMaps);
+			} catch (IOException ex) {
+				log.error("Failed to store inum entries into inum store '{}'", inumStoreFile, ex);
+				inumStore.close();
+				FileUtils.deleteQuietly(inumStoreFile);
+				return null;
+			}
+		}
+
+		this.inumStore = inumStore;
+
+		return inumStore;
+	}
+
+	private void closeInumStore() {
+		if (this.inumStore != null) {
+			this.inumStore.close();
+			this.inumStore = null;
+		}
+	}
+
+	private void removeInumStore(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		closeInumStore();
+		FileUtils.deleteQuietly(new File(getInumStorePath(cacheRefreshConfiguration)));
+	}
+
+	private boolean applyDetectedChanges(CacheRefreshConfiguration cacheRefreshConfiguration,
+			GluuConfiguration currentConfiguration, LdapServerConnection inumDbServerConnection,
+			CacheRefreshInumStore inumStore, HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap,
+			HashMap<String, CacheEntryDigest> currInumWithEntryDigestMap, CacheRefreshSnapshot prevSnapshot,
+			Set<String> changedInums, List<String> updatedInums, Set<String> retainedInums) {
 		log.info("Updated '{}' entries", updatedInums.size());
 		changedInums.removeAll(updatedInums);
 		log.info("Failed to update '{}' entries", changedInums.size());
 
+		// Store added inum entries into local inum store
+		addToInumStore(inumStore, addedPrimaryKeyAttrValueInumMap);
+
 		// Persist snapshot to cache folder
-		result = cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration,
-				currInumWithEntryHashCodeMap);
+		boolean result = cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration,
+				currInumWithEntryDigestMap);
 		if (!result) {
 			return false;
 		}
@@ -445,7 +844,7 @@ public class CacheRefreshTimer {
 		log.debug("Keep external persons: '{}'", keepExternalPerson);
 		if (keepExternalPerson) {
 			// Determine entries which need to remove
-			personsForRemoval = getRemovedPersons(currInumWithEntryHashCodeMap, prevInumWithEntryHashCodeMap);
+			personsForRemoval = getRemovedPersons(currInumWithEntryDigestMap, prevSnapshot);
 		} else {
 			// Process entries which don't exist in source server
 
@@ -454,24 +853,19 @@ public class CacheRefreshTimer {
 			log.info("Found '{}' entries in target server", targetPersons.size());
 
 			// Detect entries which need to remove
-			personsForRemoval = processTargetPersons(targetPersons, currInumWithEntryHashCodeMap);
+			personsForRemoval = processTargetPersons(targetPersons, currInumWithEntryDigestMap);
 		}
 		log.debug("Count entries '{}' for removal from target server", personsForRemoval.size());
 
 		// Remove entries from target server
-		HashMap<String, GluuInumMap> inumInumMap = getInumInumMap(inumMaps);
 		Pair<List<String>, List<String>> removeTargetEntriesResult = removeTargetEntries(inumDbServerConnection,
-				ldapEntryManager, personsForRemoval, inumInumMap);
+				ldapEntryManager, personsForRemoval, inumStore, retainedInums);
 		List<String> removedPersonInums = removeTargetEntriesResult.getFirst();
 		List<String> removedGluuInumMaps = removeTargetEntriesResult.getSecond();
 		log.info("Removed '{}' persons from target server", removedPersonInums.size());
 
-		// Prepare list of inum for serialization
-		ArrayList<GluuInumMap> currentInumMaps = applyChangesToInumMap(inumInumMap, addedPrimaryKeyAttrValueInumMap,
-				removedGluuInumMaps);
-
-		// Strore all inum entries into local disk cache
-		objectSerializationService.saveObject(inumCachePath, currentInumMaps);
+		// Store removed inum entries into local inum store
+		removeFromInumStore(inumStore, removedGluuInumMaps);
 
 		currentConfiguration
 				.setVdsCacheRefreshLastUpdateCount(String.valueOf(updatedInums.size() + removedPersonInums.size()));
@@ -479,65 +873,121 @@ public class CacheRefreshTimer {
 		return true;
 	}
 
-	private ArrayList<GluuInumMap> applyChangesToInumMap(HashMap<String, GluuInumMap> inumInumMap,
-			HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap, List<String> removedGluuInumMaps) {
-		log.info("There are '{}' entries before updating inum list", inumInumMap.size());
-		for (String removedGluuInumMap : removedGluuInumMaps) {
-			inumInumMap.remove(removedGluuInumMap);
+	private void addToInumStore(CacheRefreshInumStore inumStore,
+			HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap) {
+		try {
+			inumStore.putAll(addedPrimaryKeyAttrValueInumMap.values());
+			log.info("There are '{}' entries after adding '{}' entries", inumStore.size(),
+					addedPrimaryKeyAttrValueInumMap.size());
+		} catch (IOException ex) {
+			log.error("Failed to update inum store '{}'", inumStore.getFile(), ex);
+			// Inum store will be filled from inum server on next run
+			closeInumStore();
+			FileUtils.deleteQuietly(inumStore.getFile());
 		}
-		log.info("There are '{}' entries after removal '{}' entries", inumInumMap.size(), removedGluuInumMaps.size());
+	}
 
-		ArrayList<GluuInumMap> currentInumMaps = new ArrayList<GluuInumMap>(inumInumMap.values());
-		currentInumMaps.addAll(addedPrimaryKeyAttrValueInumMap.values());
-		log.info("There are '{}' entries after adding '{}' entries", currentInumMaps.size(),
-				addedPrimaryKeyAttrValueInumMap.size());
+	private void updateInumStoreSourceDns(CacheRefreshInumStore inumStore, Map<String, String> inumSourceDnMap) {
+		if (inumStore != this.inumStore) {
+			// Inum store was removed after failed update
+			return;
+		}
 
-		return currentInumMaps;
+		try {
+			inumStore.putSourceDns(inumSourceDnMap);
+			log.debug("Updated '{}' source DNs in inum store", inumSourceDnMap.size());
+		} catch (IOException ex) {
+			log.error("Failed to update inum store '{}'", inumStore.getFile(), ex);
+			// Inum store will be filled from inum server on next run
+			closeInumStore();
+			FileUtils.deleteQuietly(inumStore.getFile());
+		}
 	}
 
-	private Set<String> getChangedInums(HashMap<String, Integer> currInumWithEntryHashCodeMap,
-			Map<String, Integer> prevInumWithEntryHashCodeMap, boolean includeDeleted) {
-		// Find chaged inums
-		Set<String> changedInums = null;
+	private void removeFromInumStore(CacheRefreshInumStore inumStore, List<String> removedGluuInumMaps) {
+		if (inumStore != this.inumStore) {
+			// Inum store was removed after failed update
+			return;
+		}
+
+		try {
+			inumStore.removeAll(removedGluuInumMaps);
+			log.info("There are '{}' entries after removal '{}' entries", inumStore.size(), removedGluuInumMaps.size());
+
+			if (inumStore.compactIfNeeded()) {
+				log.info("Compacted inum store '{}'", inumStore.getFile());
+			}
+		} catch (IOException ex) {
+			log.error("Failed to update inum store '{}'", inumStore.getFile(), ex);
+			// Inum store will be filled from inum server on next run
+			closeInumStore();
+			FileUtils.deleteQuietly(inumStore.getFile());
+		}
+	}
+
+	private Set<String> getChangedInums(HashMap<String, CacheEntryDigest> currInumWithEntryDigestMap,
+			CacheRefreshSnapshot prevSnapshot, boolean includeDeleted) {
 		// First time run
-		if (prevInumWithEntryHashCodeMap == null) {
-			changedInums = new HashSet<String>(currInumWithEntryHashCodeMap.keySet());
-		} else {
-			changedInums = new HashSet<String>();
+		if (prevSnapshot == null) {
+			return new HashSet<String>(currInumWithEntryDigestMap.keySet());
+		}
 
-			// Add all inums which not exist in new snapshot
-			if (includeDeleted) {
-				for (String prevInumKey : prevInumWithEntryHashCodeMap.keySet()) {
-					if (!currInumWithEntryHashCodeMap.containsKey(prevInumKey)) {
-						changedInums.add(prevInumKey);
-					}
-				}
+		// Find chaged inums
+		Set<String> changedInums = new HashSet<String>();
+
+		String[] currInums = currInumWithEntryDigestMap.keySet().toArray(new String[0]);
+		Arrays.sort(currInums);
+
+		// Merge sorted inums of current entries and previous snapshot
+		int currIndex = 0;
+		int prevIndex = 0;
+		int prevSize = prevSnapshot.size();
+		while ((currIndex < currInums.length) || (prevIndex < prevSize)) {
+			int compareResult;
+			if (currIndex >= currInums.length) {
+				compareResult = 1;
+			} else if (prevIndex >= prevSize) {
+				compareResult = -1;
+			} else {
+				compareResult = currInums[currIndex].compareTo(prevSnapshot.getInum(prevIndex));
 			}
 
-			// Add all new inums and changed inums
-			for (Entry<String, Integer> currEntry : currInumWithEntryHashCodeMap.entrySet()) {
-				String currInumKey = currEntry.getKey();
-				Integer prevHashCode = prevInumWithEntryHashCodeMap.get(currInumKey);
-				if ((prevHashCode == null)
-						|| ((prevHashCode != null) && !(prevHashCode.equals(currEntry.getValue())))) {
-					changedInums.add(currInumKey);
+			if (compareResult < 0) {
+				// Add new inum
+				changedInums.add(currInums[currIndex]);
+				currIndex++;
+			} else if (compareResult > 0) {
+				// Add inum which not exist in new snapshot
+				if (includeDeleted) {
+					changedInums.add(prevSnapshot.getInum(prevIndex));
+				}
+				prevIndex++;
+			} else {
+				// Add changed inum
+				String currInum = currInums[currIndex];
+				if (prevSnapshot.isChanged(prevIndex, currInumWithEntryDigestMap.get(currInum))) {
+					changedInums.add(currInum);
 				}
+				currIndex++;
+				prevIndex++;
 			}
 		}
+
 		return changedInums;
 	}
 
-	private List<GluuSimplePerson> getRemovedPersons(HashMap<String, Integer> currInumWithEntryHashCodeMap,
-			Map<String, Integer> prevInumWithEntryHashCodeMap) {
+	private List<GluuSimplePerson> getRemovedPersons(HashMap<String, CacheEntryDigest> currInumWithEntryDigestMap,
+			CacheRefreshSnapshot prevSnapshot) {
 		// First time run
-		if (prevInumWithEntryHashCodeMap == null) {
+		if (prevSnapshot == null) {
 			return new ArrayList<GluuSimplePerson>(0);
 		}
 
 		// Add all inums which not exist in new snapshot
 		Set<String> deletedInums = new HashSet<String>();
-		for (String prevInumKey : prevInumWithEntryHashCodeMap.keySet()) {
-			if (!currInumWithEntryHashCodeMap.containsKey(prevInumKey)) {
+		for (int i = 0; i < prevSnapshot.size(); i++) {
+			String prevInumKey = prevSnapshot.getInum(i);
+			if (!currInumWithEntryDigestMap.containsKey(prevInumKey)) {
 				deletedInums.add(prevInumKey);
 			}
 		}
@@ -594,6 +1044,7 @@ public class CacheRefreshTimer {
 			return result;
 		}
 
+		Map<String, GluuSimplePerson> targetInumSourcePersonMap = new LinkedHashMap<String, GluuSimplePerson>();
 		for (String targetInum : changedInums) {
 			CacheCompoundKey compoundKey = inumCacheCompoundKeyMap.get(targetInum);
 			if (compoundKey == null) {
@@ -605,9 +1056,102 @@ public class CacheRefreshTimer {
 				continue;
 			}
 
-			if (updateTargetEntryViaCopy(sourcePerson, targetInum, customObjectClasses,
-					targetServerAttributesMapping)) {
-				result.add(targetInum);
+			targetInumSourcePersonMap.put(targetInum, sourcePerson);
+		}
+
+		return updateTargetEntriesViaCopy(targetInumSourcePersonMap, customObjectClasses,
+				targetServerAttributesMapping);
+	}
+
+	/**
+	 * Copy source entries to target server. Entries are processed in batches.
+	 * Existing target persons of each batch are loaded by one search request and
+	 * then updates are executed in worker pool if it's enabled
+	 */
+	private List<String> updateTargetEntriesViaCopy(Map<String, GluuSimplePerson> targetInumSourcePersonMap,
+			final String[] customObjectClasses, final Map<String, String> targetServerAttributesMapping) {
+		List<String> result = new ArrayList<String>();
+		if (targetInumSourcePersonMap.isEmpty()) {
+			return result;
+		}
+
+		int batchSize = getTargetWriteBatchSize();
+		int threadsCount = Math.min(getTargetWriteThreadsCount(), batchSize);
+
+		List<String> targetInums = new ArrayList<String>(targetInumSourcePersonMap.keySet());
+		for (int batchStart = 0; batchStart < targetInums.size(); batchStart += batchSize) {
+			long startTime = System.currentTimeMillis();
+			List<String> batchTargetInums = targetInums.subList(batchStart,
+					Math.min(batchStart + batchSize, targetInums.size()));
+
+			final Map<String, GluuCustomPerson> existingTargetPersons = loadExistingTargetPersons(batchTargetInums);
+
+			List<Callable<Boolean>> updateTasks = new ArrayList<Callable<Boolean>>(batchTargetInums.size());
+			for (final String targetInum : batchTargetInums) {
+				final GluuSimplePerson sourcePerson = targetInumSourcePersonMap.get(targetInum);
+				updateTasks.add(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						return updateTargetEntryViaCopy(sourcePerson, targetInum, existingTargetPersons,
+								customObjectClasses, targetServerAttributesMapping);
+					}
+				});
+			}
+
+			List<Boolean> updateResults = executeTargetUpdateTasks(updateTasks, threadsCount);
+			int updatedCount = 0;
+			for (int i = 0; i < batchTargetInums.size(); i++) {
+				if (Boolean.TRUE.equals(updateResults.get(i))) {
+					result.add(batchTargetInums.get(i));
+					updatedCount++;
+				}
+			}
+
+			long duration = Math.max(System.currentTimeMillis() - startTime, 1);
+			log.info("Updated '{}' of '{}' entries in batch in '{}' ms ({} entries/sec)", updatedCount,
+					batchTargetInums.size(), duration, batchTargetInums.size() * 1000L / duration);
+		}
+
+		return result;
+	}
+
+	private Map<String, GluuCustomPerson> loadExistingTargetPersons(List<String> targetInums) {
+		List<GluuCustomPerson> targetPersons;
+		try {
+			targetPersons = personService.findPersonsByInums(targetInums, null);
+		} catch (BasePersistenceException ex) {
+			log.error("Failed to load batch of target persons. Falling back to per-entry lookup", ex);
+			return null;
+		}
+
+		Map<String, GluuCustomPerson> result = new HashMap<String, GluuCustomPerson>();
+		for (GluuCustomPerson targetPerson : targetPersons) {
+			result.put(targetPerson.getInum(), targetPerson);
+		}
+
+		return result;
+	}
+
+	private List<Boolean> executeTargetUpdateTasks(List<Callable<Boolean>> updateTasks, int threadsCount) {
+		List<Boolean> result = new ArrayList<Boolean>(updateTasks.size());
+
+		List<Future<Boolean>> futures;
+		try {
+			futures = workerPoolService.invokeAll(updateTasks, threadsCount);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new EntryPersistenceException("Interrupted while updating entries on target server", ex);
+		}
+
+		for (Future<Boolean> future : futures) {
+			try {
+				result.add(future.get());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new EntryPersistenceException("Interrupted while updating entries on target server", ex);
+			} catch (ExecutionException ex) {
+				log.error("Failed to update target entry", ex.getCause());
+				result.add(Boolean.FALSE);
 			}
 		}
 
@@ -688,18 +1232,24 @@ public class CacheRefreshTimer {
 	}
 
 	private boolean updateTargetEntryViaCopy(GluuSimplePerson sourcePerson, String targetInum,
-			String[] targetCustomObjectClasses, Map<String, String> targetServerAttributesMapping) {
+			Map<String, GluuCustomPerson> existingTargetPersons, String[] targetCustomObjectClasses,
+			Map<String, String> targetServerAttributesMapping) {
 		String targetPersonDn = personService.getDnForPerson(targetInum);
 		GluuCustomPerson targetPerson = null;
-		boolean updatePerson;
-		if (personService.contains(targetPersonDn)) {
+		if (existingTargetPersons != null) {
+			targetPerson = existingTargetPersons.get(targetInum);
+		} else if (personService.contains(targetPersonDn)) {
 			try {
 				targetPerson = personService.findPersonByDn(targetPersonDn);
-				log.debug("Found person by inum '{}'", targetInum);
 			} catch (EntryPersistenceException ex) {
 				log.error("Failed to find person '{}'", targetInum, ex);
 				return false;
 			}
+		}
+
+		boolean updatePerson;
+		if (targetPerson != null) {
+			log.debug("Found person by inum '{}'", targetInum);
 			updatePerson = true;
 		} else {
 			targetPerson = new GluuCustomPerson();
@@ -715,8 +1265,11 @@ public class CacheRefreshTimer {
 
 		cacheRefreshService.setTargetEntryAttributes(sourcePerson, targetServerAttributesMapping, targetPerson);
 
-		// Execute interceptor script
-		boolean executionResult = externalCacheRefreshService.executeExternalUpdateUserMethods(targetPerson);
+		// Execute interceptor script. Scripts may be not thread safe
+		boolean executionResult;
+		synchronized (externalScriptsLock) {
+			executionResult = externalCacheRefreshService.executeExternalUpdateUserMethods(targetPerson);
+		}
 		if (!executionResult) {
 			log.error("Failed to execute Cache Refresh scripts for person '{}'", targetInum);
 			return false;
@@ -752,7 +1305,7 @@ public class CacheRefreshTimer {
 
 	private Pair<List<String>, List<String>> removeTargetEntries(LdapServerConnection inumDbServerConnection,
 			PersistenceEntryManager targetPersistenceEntryManager, List<GluuSimplePerson> removedPersons,
-			HashMap<String, GluuInumMap> inumInumMap) {
+			CacheRefreshInumStore inumStore, Set<String> retainedInums) {
 
 		Date runDate = new Date(this.lastFinishedTime);
 
@@ -763,9 +1316,11 @@ public class CacheRefreshTimer {
 		for (GluuSimplePerson removedPerson : removedPersons) {
 			String inum = removedPerson.getAttribute(OxTrustConstants.inum);
 
-			// Update GluuInumMap if it exist
-			GluuInumMap currentInumMap = inumInumMap.get(inum);
-			if (currentInumMap == null) {
+			// Update GluuInumMap if it exist. Retained inum entries keep their keys
+			GluuInumMap currentInumMap = inumStore.getByInum(inum);
+			if (retainedInums.contains(inum)) {
+				log.debug("Keeping inum entry of person with DN: {}", removedPerson.getDn());
+			} else if (currentInumMap == null) {
 				log.warn("Can't find inum entry of person with DN: {}", removedPerson.getDn());
 			} else {
 				GluuInumMap removedInumMap = getMarkInumMapEntryAsRemoved(currentInumMap,
@@ -855,98 +1410,224 @@ public class CacheRefreshTimer {
 	private List<GluuSimplePerson> loadSourceServerEntriesWithoutLimits(
 			CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection[] sourceServerConnections)
 			throws SearchException {
-		Filter customFilter = cacheRefreshService.createFilter(cacheRefreshConfiguration.getCustomLdapFilter());
-		String[] keyAttributes = getCompoundKeyAttributes(cacheRefreshConfiguration);
-		String[] keyAttributesWithoutValues = getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
-		String[] keyObjectClasses = getCompoundKeyObjectClasses(cacheRefreshConfiguration);
-		String[] sourceAttributes = getSourceAttributes(cacheRefreshConfiguration);
+		return loadSourceServerEntries(cacheRefreshConfiguration, sourceServerConnections, new String[] { "" }, null);
+	}
 
-		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+	private List<GluuSimplePerson> loadSourceServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
+			LdapServerConnection[] sourceServerConnections) throws SearchException {
+		return loadSourceServerEntries(cacheRefreshConfiguration, sourceServerConnections, createTwoLettersArray(),
+				null);
+	}
 
+	/**
+	 * Load entries from source servers. If high water marks are specified only
+	 * entries modified after them are loaded
+	 */
+	private List<GluuSimplePerson> loadSourceServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
+			LdapServerConnection[] sourceServerConnections, String[] keyAttributeStarts,
+			CacheRefreshHighWaterMarks sinceHighWaterMarks) throws SearchException {
+		final String[] returnAttributes = getSourceReturnAttributes(cacheRefreshConfiguration);
+		final int sizeLimit = cacheRefreshConfiguration.getLdapSearchSizeLimit();
+		List<Filter> filters = createSourceFilters(cacheRefreshConfiguration, keyAttributeStarts);
+
+		List<List<Callable<List<GluuSimplePerson>>>> sourceServersSearchTasks =
+				new ArrayList<List<Callable<List<GluuSimplePerson>>>>();
+		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
+			final String sourceServerName = sourceServerConnection.getSourceServerName();
+			final PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection
+					.getPersistenceEntryManager();
+			List<Callable<List<GluuSimplePerson>>> searchTasks = new ArrayList<Callable<List<GluuSimplePerson>>>();
+			sourceServersSearchTasks.add(searchTasks);
+
+			String highWaterMark = null;
+			if (sinceHighWaterMarks != null) {
+				highWaterMark = sinceHighWaterMarks.getHighWaterMark(sourceServerName);
+				log.debug("Loading entries from source server '{}' modified after '{}'", sourceServerName,
+						highWaterMark);
+			}
+
+			for (Filter filter : filters) {
+				final Filter sourceFilter = createModifiedAfterFilter(filter, sinceHighWaterMarks, highWaterMark);
+				for (final String baseDn : sourceServerConnection.getBaseDns()) {
+					searchTasks.add(new Callable<List<GluuSimplePerson>>() {
+						@Override
+						public List<GluuSimplePerson> call() throws Exception {
+							List<GluuSimplePerson> currentSourcePersons = sourcePersistenceEntryManager.findEntries(
+									baseDn, GluuSimplePerson.class, sourceFilter, SearchScope.SUB, returnAttributes,
+									null, 0, 0, sizeLimit);
+							for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
+								currentSourcePerson.setSourceServerName(sourceServerName);
+							}
+
+							return currentSourcePersons;
+						}
+					});
+				}
+			}
+		}
+
+		// Merge results in order of searches to keep first loaded entry if there are duplicates
 		Set<String> addedDns = new HashSet<String>();
 
 		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
-		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
-			String sourceServerName = sourceServerConnection.getSourceServerName();
-
-			PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection.getPersistenceEntryManager();
-			String[] baseDns = sourceServerConnection.getBaseDns();
-			Filter filter = cacheRefreshService.createFilter(keyAttributes, keyObjectClasses, "", customFilter);
-			if (log.isTraceEnabled()) {
-				log.trace("Using next filter to load entris from source server: {}", filter);
+		for (List<GluuSimplePerson> currentSourcePersons : executeSourceSearchTasks(sourceServersSearchTasks)) {
+			// Add to result and ignore root entry if needed
+			for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
+				String currentSourcePersonDn = currentSourcePerson.getDn().toLowerCase();
+				if (!addedDns.contains(currentSourcePersonDn)) {
+					sourcePersons.add(currentSourcePerson);
+					addedDns.add(currentSourcePersonDn);
+				}
 			}
+		}
 
-			for (String baseDn : baseDns) {
-				List<GluuSimplePerson> currentSourcePersons = sourcePersistenceEntryManager.findEntries(baseDn,
-						GluuSimplePerson.class, filter, SearchScope.SUB, returnAttributes, null, 0, 0,
-						cacheRefreshConfiguration.getLdapSearchSizeLimit());
-
-				// Add to result and ignore root entry if needed
-				for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
-					currentSourcePerson.setSourceServerName(sourceServerName);
-					// if (!StringHelper.equalsIgnoreCase(baseDn,
-					// currentSourcePerson.getDn())) {
-					String currentSourcePersonDn = currentSourcePerson.getDn().toLowerCase();
-					if (!addedDns.contains(currentSourcePersonDn)) {
-						sourcePersons.add(currentSourcePerson);
-						addedDns.add(currentSourcePersonDn);
+		return sourcePersons;
+	}
+
+	private void loadSourceServerEntries(final CacheRefreshConfiguration cacheRefreshConfiguration,
+			LdapServerConnection[] sourceServerConnections, final int pageSize,
+			final StreamingChangeDetector changeDetector, final CacheRefreshHighWaterMarks highWaterMarks)
+			throws SearchException {
+		final String[] returnAttributes = getSourceReturnAttributes(cacheRefreshConfiguration);
+		String[] keyAttributeStarts = cacheRefreshConfiguration.isUseSearchLimit() ? createTwoLettersArray()
+				: new String[] { "" };
+		List<Filter> filters = createSourceFilters(cacheRefreshConfiguration, keyAttributeStarts);
+
+		List<List<Callable<Void>>> sourceServersSearchTasks = new ArrayList<List<Callable<Void>>>();
+		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
+			final String sourceServerName = sourceServerConnection.getSourceServerName();
+			final PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection
+					.getPersistenceEntryManager();
+			List<Callable<Void>> searchTasks = new ArrayList<Callable<Void>>();
+			sourceServersSearchTasks.add(searchTasks);
+
+			final BatchOperation<GluuSimplePerson> batchOperation = new ProcessBatchOperation<GluuSimplePerson>() {
+				@Override
+				public void performAction(List<GluuSimplePerson> entries) {
+					for (GluuSimplePerson entry : entries) {
+						entry.setSourceServerName(sourceServerName);
 					}
-					// }
+					updateHighWaterMarks(cacheRefreshConfiguration, highWaterMarks, entries);
+					changeDetector.processPage(entries);
+				}
+			};
+
+			for (final Filter filter : filters) {
+				for (final String baseDn : sourceServerConnection.getBaseDns()) {
+					searchTasks.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							sourcePersistenceEntryManager.findEntries(baseDn, GluuSimplePerson.class, filter,
+									SearchScope.SUB, returnAttributes, batchOperation, 0, 0, pageSize);
+
+							return null;
+						}
+					});
 				}
 			}
 		}
 
-		return sourcePersons;
+		executeSourceSearchTasks(sourceServersSearchTasks);
 	}
 
-	private List<GluuSimplePerson> loadSourceServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
-			LdapServerConnection[] sourceServerConnections) throws SearchException {
+	private List<Filter> createSourceFilters(CacheRefreshConfiguration cacheRefreshConfiguration,
+			String[] keyAttributeStarts) throws SearchException {
 		Filter customFilter = cacheRefreshService.createFilter(cacheRefreshConfiguration.getCustomLdapFilter());
 		String[] keyAttributes = getCompoundKeyAttributes(cacheRefreshConfiguration);
-		String[] keyAttributesWithoutValues = getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
 		String[] keyObjectClasses = getCompoundKeyObjectClasses(cacheRefreshConfiguration);
-		String[] sourceAttributes = getSourceAttributes(cacheRefreshConfiguration);
 
-		String[] twoLettersArray = createTwoLettersArray();
+		List<Filter> filters = new ArrayList<Filter>(keyAttributeStarts.length);
+		for (String keyAttributeStart : keyAttributeStarts) {
+			Filter filter = cacheRefreshService.createFilter(keyAttributes, keyObjectClasses, keyAttributeStart,
+					customFilter);
+			if (log.isTraceEnabled()) {
+				log.trace("Using next filter to load entris from source server: {}", filter);
+			}
+			filters.add(filter);
+		}
+
+		return filters;
+	}
+
+	private Filter createModifiedAfterFilter(Filter filter, CacheRefreshHighWaterMarks sinceHighWaterMarks,
+			String highWaterMark) {
+		if (highWaterMark == null) {
+			return filter;
+		}
+
+		Filter modifiedAfterFilter = Filter.createGreaterOrEqualFilter(sinceHighWaterMarks.getAttributeName(),
+				highWaterMark);
+		if (filter == null) {
+			return modifiedAfterFilter;
+		}
+
+		return Filter.createANDFilter(filter, modifiedAfterFilter);
+	}
+
+	private String[] getSourceReturnAttributes(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		String[] keyAttributesWithoutValues = getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		String[] sourceAttributes = getSourceAttributes(cacheRefreshConfiguration);
 		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
 
-		Set<String> addedDns = new HashSet<String>();
+		// Incremental attribute is needed to calculate high water marks
+		String incrementalAttribute = getIncrementalAttribute();
+		if (StringHelper.isNotEmpty(incrementalAttribute) && !containsIgnoreCase(returnAttributes, incrementalAttribute)) {
+			returnAttributes = ArrayHelper.arrayMerge(returnAttributes, new String[] { incrementalAttribute });
+		}
 
-		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
-		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
-			String sourceServerName = sourceServerConnection.getSourceServerName();
-
-			PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection.getPersistenceEntryManager();
-			String[] baseDns = sourceServerConnection.getBaseDns();
-			for (String keyAttributeStart : twoLettersArray) {
-				Filter filter = cacheRefreshService.createFilter(keyAttributes, keyObjectClasses, keyAttributeStart,
-						customFilter);
-				if (log.isDebugEnabled()) {
-					log.trace("Using next filter to load entris from source server: {}", filter);
-				}
+		return returnAttributes;
+	}
 
-				for (String baseDn : baseDns) {
-					List<GluuSimplePerson> currentSourcePersons = sourcePersistenceEntryManager.findEntries(baseDn,
-							GluuSimplePerson.class, filter, SearchScope.SUB, returnAttributes, null, 0, 0,
-							cacheRefreshConfiguration.getLdapSearchSizeLimit());
-
-					// Add to result and ignore root entry if needed
-					for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
-						currentSourcePerson.setSourceServerName(sourceServerName);
-						// if (!StringHelper.equalsIgnoreCase(baseDn,
-						// currentSourcePerson.getDn())) {
-						String currentSourcePersonDn = currentSourcePerson.getDn().toLowerCase();
-						if (!addedDns.contains(currentSourcePersonDn)) {
-							sourcePersons.add(currentSourcePerson);
-							addedDns.add(currentSourcePersonDn);
-						}
-						// }
+	/**
+	 * Execute source server searches. Source servers are searched concurrently,
+	 * each of them by its own bounded number of worker pool threads, so threads
+	 * don't wait for busy server while others can be searched. Results are
+	 * returned in same order as tasks
+	 */
+	private <T> List<T> executeSourceSearchTasks(List<List<Callable<T>>> sourceServersSearchTasks) {
+		int threadsCount = getSourceLoadThreadsCount();
+		int sourceServersThreadsCount = Math.max(1, Math.min(threadsCount, sourceServersSearchTasks.size()));
+		final int sourceServerThreadsCount = Math.max(1,
+				Math.min(getSourceServerMaxConcurrency(), threadsCount / sourceServersThreadsCount));
+
+		List<Callable<List<T>>> sourceServerTasks = new ArrayList<Callable<List<T>>>();
+		for (final List<Callable<T>> searchTasks : sourceServersSearchTasks) {
+			sourceServerTasks.add(new Callable<List<T>>() {
+				@Override
+				public List<T> call() throws Exception {
+					List<T> result = new ArrayList<T>(searchTasks.size());
+					for (Future<T> future : workerPoolService.invokeAll(searchTasks, sourceServerThreadsCount)) {
+						result.add(future.get());
 					}
+
+					return result;
 				}
+			});
+		}
+
+		log.debug("Executing searches of '{}' source servers using '{}' threads per server", sourceServerTasks.size(),
+				sourceServerThreadsCount);
+		List<T> result = new ArrayList<T>();
+		try {
+			for (Future<List<T>> future : workerPoolService.invokeAll(sourceServerTasks, sourceServersThreadsCount)) {
+				result.addAll(future.get());
 			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new EntryPersistenceException("Interrupted while loading entries from source server", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			// Failed search is wrapped once more by source server task
+			if (cause instanceof ExecutionException) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new EntryPersistenceException("Failed to load entries from source server", cause);
 		}
 
-		return sourcePersons;
+		return result;
 	}
 
 	private List<GluuSimplePerson> loadTargetServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
@@ -985,7 +1666,7 @@ public class CacheRefreshTimer {
 	private HashMap<CacheCompoundKey, GluuInumMap> addNewInumServerEntries(
 			CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection inumDbServerConnection,
 			Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap,
-			HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap) {
+			Map<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap) {
 		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
 		String inumbaseDn = inumDbServerConnection.getBaseDns()[0];
 
@@ -1017,7 +1698,7 @@ public class CacheRefreshTimer {
 	}
 
 	private HashMap<CacheCompoundKey, GluuInumMap> getAllInumServerEntries(
-			HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap,
+			Map<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap,
 			HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap) {
 		HashMap<CacheCompoundKey, GluuInumMap> result = new HashMap<CacheCompoundKey, GluuInumMap>();
 
@@ -1027,12 +1708,12 @@ public class CacheRefreshTimer {
 		return result;
 	}
 
-	private HashMap<String, Integer> getSourcePersonsHashCodesMap(LdapServerConnection inumDbServerConnection,
+	private HashMap<String, CacheEntryDigest> getSourcePersonsDigestsMap(LdapServerConnection inumDbServerConnection,
 			Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap,
-			HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap) {
+			HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap, CacheRefreshSnapshot prevSnapshot) {
 		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
 
-		HashMap<String, Integer> result = new HashMap<String, Integer>();
+		HashMap<String, CacheEntryDigest> result = new HashMap<String, CacheEntryDigest>();
 
 		for (Entry<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyEntry : sourcePersonCacheCompoundKeyMap
 				.entrySet()) {
@@ -1041,19 +1722,30 @@ public class CacheRefreshTimer {
 
 			GluuInumMap currentInumMap = primaryKeyAttrValueInumMap.get(cacheCompoundKey);
 
-			result.put(currentInumMap.getInum(), inumDbPersistenceEntryManager.getHashCode(sourcePerson));
+			result.put(currentInumMap.getInum(),
+					calculateEntryDigest(inumDbPersistenceEntryManager, sourcePerson, prevSnapshot));
 		}
 
 		return result;
 	}
 
+	private CacheEntryDigest calculateEntryDigest(PersistenceEntryManager inumDbPersistenceEntryManager,
+			GluuSimplePerson sourcePerson, CacheRefreshSnapshot prevSnapshot) {
+		int legacyHashCode = 0;
+		if ((prevSnapshot != null) && prevSnapshot.isLegacyHashCodes()) {
+			legacyHashCode = inumDbPersistenceEntryManager.getHashCode(sourcePerson);
+		}
+
+		return cacheRefreshService.calculateEntryDigest(sourcePerson, legacyHashCode);
+	}
+
 	private List<GluuSimplePerson> processTargetPersons(List<GluuSimplePerson> targetPersons,
-			HashMap<String, Integer> currInumWithEntryHashCodeMap) {
+			HashMap<String, CacheEntryDigest> currInumWithEntryDigestMap) {
 		List<GluuSimplePerson> result = new ArrayList<GluuSimplePerson>();
 
 		for (GluuSimplePerson targetPerson : targetPersons) {
 			String personInum = targetPerson.getAttribute(OxTrustConstants.inum);
-			if (!currInumWithEntryHashCodeMap.containsKey(personInum)) {
+			if (!currInumWithEntryDigestMap.containsKey(personInum)) {
 				log.debug("Person with such DN: '{}' isn't present on source server", targetPerson.getDn());
 				result.add(targetPerson);
 			}
@@ -1062,27 +1754,6 @@ public class CacheRefreshTimer {
 		return result;
 	}
 
-	private HashMap<CacheCompoundKey, GluuInumMap> getPrimaryKeyAttrValueInumMap(List<GluuInumMap> inumMaps) {
-		HashMap<CacheCompoundKey, GluuInumMap> result = new HashMap<CacheCompoundKey, GluuInumMap>();
-
-		for (GluuInumMap inumMap : inumMaps) {
-			result.put(new CacheCompoundKey(inumMap.getPrimaryKeyValues(), inumMap.getSecondaryKeyValues(),
-					inumMap.getTertiaryKeyValues()), inumMap);
-		}
-
-		return result;
-	}
-
-	private HashMap<String, GluuInumMap> getInumInumMap(List<GluuInumMap> inumMaps) {
-		HashMap<String, GluuInumMap> result = new HashMap<String, GluuInumMap>();
-
-		for (GluuInumMap inumMap : inumMaps) {
-			result.put(inumMap.getInum(), inumMap);
-		}
-
-		return result;
-	}
-
 	private Map<CacheCompoundKey, GluuSimplePerson> getSourcePersonCompoundKeyMap(
 			CacheRefreshConfiguration cacheRefreshConfiguration, List<GluuSimplePerson> sourcePersons) {
 		Map<CacheCompoundKey, GluuSimplePerson> result = new HashMap<CacheCompoundKey, GluuSimplePerson>();
@@ -1207,6 +1878,10 @@ public class CacheRefreshTimer {
 		return FilenameUtils.concat(cacheRefreshConfiguration.getSnapshotFolder(), "inum_cache.dat");
 	}
 
+	private String getInumStorePath(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		return FilenameUtils.concat(cacheRefreshConfiguration.getSnapshotFolder(), "inum_store.log");
+	}
+
 	private class LdapServerConnection {
 		private String sourceServerName;
 		private PersistenceEntryManager ldapEntryManager;
@@ -1232,6 +1907,295 @@ public class CacheRefreshTimer {
 		}
 	}
 
+	/**
+	 * Detect changes in pages of source entries. It keeps only inum and digest of
+	 * processed entries and update target server after each page. Pages can be
+	 * processed concurrently, only access to shared maps is synchronized
+	 */
+	private class StreamingChangeDetector {
+		private final CacheRefreshConfiguration cacheRefreshConfiguration;
+		private final LdapServerConnection inumDbServerConnection;
+		private final LdapServerConnection targetServerConnection;
+		private final boolean isVDSMode;
+
+		private final CacheRefreshInumStore inumStore;
+		private final CacheRefreshSnapshot prevSnapshot;
+		private final Set<String> problemInums;
+
+		private final String[] keyAttributesWithoutValues;
+		private Map<String, String> targetServerAttributesMapping;
+		private String[] customObjectClasses;
+
+		private final HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap;
+		private final HashMap<String, CacheEntryDigest> currInumWithEntryDigestMap;
+		private final HashMap<String, Integer> inumWithDnHashCodeMap;
+		private final HashMap<String, GluuSimplePerson> deferredInumSourcePersons;
+		private final HashMap<String, String> inumSourceDnMap;
+		private final Set<String> duplicateInums;
+		private final Set<String> changedInums;
+		private final List<String> updatedInums;
+
+		private int pageCount;
+
+		protected StreamingChangeDetector(CacheRefreshConfiguration cacheRefreshConfiguration,
+				LdapServerConnection inumDbServerConnection, LdapServerConnection targetServerConnection,
+				boolean isVDSMode, CacheRefreshInumStore inumStore, CacheRefreshSnapshot prevSnapshot,
+				List<String> problemInums) {
+			this.cacheRefreshConfiguration = cacheRefreshConfiguration;
+			this.inumDbServerConnection = inumDbServerConnection;
+			this.targetServerConnection = targetServerConnection;
+			this.isVDSMode = isVDSMode;
+			this.inumStore = inumStore;
+			this.prevSnapshot = prevSnapshot;
+			this.problemInums = problemInums == null ? new HashSet<String>() : new HashSet<String>(problemInums);
+
+			this.keyAttributesWithoutValues = getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+
+			this.addedPrimaryKeyAttrValueInumMap = new HashMap<CacheCompoundKey, GluuInumMap>();
+			this.currInumWithEntryDigestMap = new HashMap<String, CacheEntryDigest>();
+			this.inumWithDnHashCodeMap = new HashMap<String, Integer>();
+			this.deferredInumSourcePersons = new HashMap<String, GluuSimplePerson>();
+			this.inumSourceDnMap = new HashMap<String, String>();
+			this.duplicateInums = new HashSet<String>();
+			this.changedInums = new HashSet<String>();
+			this.updatedInums = new ArrayList<String>();
+		}
+
+		public boolean prepare() {
+			if (isVDSMode) {
+				return true;
+			}
+
+			this.targetServerAttributesMapping = getTargetServerAttributesMapping(cacheRefreshConfiguration);
+			this.customObjectClasses = appConfiguration.getPersonObjectClassTypes();
+
+			return validateTargetServerSchema(cacheRefreshConfiguration, targetServerAttributesMapping,
+					customObjectClasses);
+		}
+
+		public void processPage(List<GluuSimplePerson> sourcePersons) {
+			long startTime = System.currentTimeMillis();
+			PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
+
+			Map<String, GluuSimplePerson> inumSourcePersons = resolveInums(inumDbPersistenceEntryManager,
+					sourcePersons);
+			int changedCount = processInumSourcePersons(inumSourcePersons);
+
+			int currentPage;
+			synchronized (this) {
+				currentPage = ++pageCount;
+			}
+			log.debug("Processed page '{}' with '{}' entries, '{}' changed entries in '{}' ms", currentPage,
+					sourcePersons.size(), changedCount, System.currentTimeMillis() - startTime);
+		}
+
+		/*
+		 * Compare digests of entries with previous snapshot and send changed entries
+		 * to target server. Returns count of changed entries
+		 */
+		private int processInumSourcePersons(Map<String, GluuSimplePerson> inumSourcePersons) {
+			PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
+
+			Map<String, CacheEntryDigest> currDigests = new HashMap<String, CacheEntryDigest>();
+			for (Entry<String, GluuSimplePerson> inumSourcePerson : inumSourcePersons.entrySet()) {
+				currDigests.put(inumSourcePerson.getKey(),
+						calculateEntryDigest(inumDbPersistenceEntryManager, inumSourcePerson.getValue(), prevSnapshot));
+			}
+
+			Map<String, GluuSimplePerson> changedPersons = new HashMap<String, GluuSimplePerson>();
+			synchronized (this) {
+				for (Entry<String, CacheEntryDigest> currDigest : currDigests.entrySet()) {
+					String inum = currDigest.getKey();
+					currInumWithEntryDigestMap.put(inum, currDigest.getValue());
+
+					boolean changed = (prevSnapshot == null) || prevSnapshot.isChanged(inum, currDigest.getValue());
+					if (changed || problemInums.remove(inum)) {
+						changedPersons.put(inum, inumSourcePersons.get(inum));
+					}
+				}
+				changedInums.addAll(changedPersons.keySet());
+			}
+
+			List<String> updatedPersonInums;
+			if (isVDSMode) {
+				updatedPersonInums = updateTargetEntriesViaVDS(cacheRefreshConfiguration, targetServerConnection,
+						changedPersons.keySet());
+			} else {
+				updatedPersonInums = updateTargetEntriesViaCopy(changedPersons, customObjectClasses,
+						targetServerAttributesMapping);
+			}
+
+			synchronized (this) {
+				updatedInums.addAll(updatedPersonInums);
+			}
+
+			return changedPersons.size();
+		}
+
+		/*
+		 * Map source entries to inums. Entries loaded from another base DN and entries
+		 * with non-deterministic primary key are skipped. Entries which key belonged
+		 * to entry with another source DN in previous runs are deferred
+		 */
+		private synchronized Map<String, GluuSimplePerson> resolveInums(
+				PersistenceEntryManager inumDbPersistenceEntryManager, List<GluuSimplePerson> sourcePersons) {
+			String inumbaseDn = inumDbServerConnection.getBaseDns()[0];
+
+			Map<String, GluuSimplePerson> result = new HashMap<String, GluuSimplePerson>();
+			for (GluuSimplePerson sourcePerson : sourcePersons) {
+				String[][] keyAttributesValues = getKeyAttributesValues(keyAttributesWithoutValues, sourcePerson);
+				CacheCompoundKey cacheCompoundKey = new CacheCompoundKey(keyAttributesValues);
+
+				GluuInumMap currentInumMap = inumStore.get(cacheCompoundKey);
+				if (currentInumMap == null) {
+					currentInumMap = addedPrimaryKeyAttrValueInumMap.get(cacheCompoundKey);
+				}
+				if (currentInumMap == null) {
+					currentInumMap = addGluuInumMap(inumbaseDn, inumDbPersistenceEntryManager,
+							keyAttributesWithoutValues, keyAttributesValues);
+					addedPrimaryKeyAttrValueInumMap.put(cacheCompoundKey, currentInumMap);
+					log.debug("Added new inum entry for DN: {}", sourcePerson.getDn());
+				}
+
+				String inum = currentInumMap.getInum();
+				String sourceDn = DnUtil.normalize(sourcePerson.getDn());
+				Integer dnHashCode = sourceDn.hashCode();
+				Integer prevDnHashCode = inumWithDnHashCodeMap.put(inum, dnHashCode);
+				if (prevDnHashCode != null) {
+					if (!prevDnHashCode.equals(dnHashCode) && duplicateInums.add(inum)) {
+						log.error("Non-deterministic primary key. Skipping user with key: {}", cacheCompoundKey);
+						result.remove(inum);
+						deferredInumSourcePersons.remove(inum);
+					}
+					continue;
+				}
+
+				String prevSourceDn = inumStore.getSourceDn(inum);
+				if (prevSourceDn == null) {
+					inumSourceDnMap.put(inum, sourceDn);
+				} else if (!prevSourceDn.equals(sourceDn)) {
+					deferredInumSourcePersons.put(inum, sourcePerson);
+					continue;
+				}
+
+				result.put(inum, sourcePerson);
+			}
+
+			return result;
+		}
+
+		public void finish() {
+			// Deferred entries are processed only if their key is still unique
+			if (!deferredInumSourcePersons.isEmpty()) {
+				log.debug("Processing '{}' entries with changed source DN", deferredInumSourcePersons.size());
+				for (Entry<String, GluuSimplePerson> deferredInumSourcePerson : deferredInumSourcePersons.entrySet()) {
+					inumSourceDnMap.put(deferredInumSourcePerson.getKey(),
+							DnUtil.normalize(deferredInumSourcePerson.getValue().getDn()));
+				}
+				processInumSourcePersons(deferredInumSourcePersons);
+				deferredInumSourcePersons.clear();
+			}
+
+			// Remove entries with non-deterministic primary key. Their inum entries are kept to skip them in next runs
+			for (String duplicateInum : duplicateInums) {
+				currInumWithEntryDigestMap.remove(duplicateInum);
+				if (NON_DETERMINISTIC_KEY_SOURCE_DN.equals(inumStore.getSourceDn(duplicateInum))) {
+					inumSourceDnMap.remove(duplicateInum);
+				} else {
+					inumSourceDnMap.put(duplicateInum, NON_DETERMINISTIC_KEY_SOURCE_DN);
+				}
+			}
+			inumWithDnHashCodeMap.clear();
+
+			Set<String> remainingInums = new HashSet<String>(problemInums);
+			if (isVDSMode && (prevSnapshot != null)) {
+				// Add all inums which not exist in new snapshot
+				for (int i = 0; i < prevSnapshot.size(); i++) {
+					String prevInumKey = prevSnapshot.getInum(i);
+					if (!currInumWithEntryDigestMap.containsKey(prevInumKey)) {
+						remainingInums.add(prevInumKey);
+					}
+				}
+			}
+			remainingInums.removeAll(changedInums);
+
+			changedInums.addAll(remainingInums);
+			if (isVDSMode) {
+				updatedInums.addAll(
+						updateTargetEntriesViaVDS(cacheRefreshConfiguration, targetServerConnection, remainingInums));
+			}
+		}
+
+		public HashMap<CacheCompoundKey, GluuInumMap> getAddedPrimaryKeyAttrValueInumMap() {
+			return addedPrimaryKeyAttrValueInumMap;
+		}
+
+		public HashMap<String, CacheEntryDigest> getCurrInumWithEntryDigestMap() {
+			return currInumWithEntryDigestMap;
+		}
+
+		public Set<String> getChangedInums() {
+			return changedInums;
+		}
+
+		public List<String> getUpdatedInums() {
+			return updatedInums;
+		}
+
+		public Set<String> getDuplicateInums() {
+			return duplicateInums;
+		}
+
+		/**
+		 * @return Source DNs which have to be stored in inum store
+		 */
+		public Map<String, String> getInumSourceDnMap() {
+			return inumSourceDnMap;
+		}
+	}
+
+	private boolean isStreamingMode() {
+		return configurationFactory.getBaseConfiguration().getBoolean(STREAMING_MODE_PROPERTY, false);
+	}
+
+	private int getSourceLoadThreadsCount() {
+		return configurationFactory.getBaseConfiguration().getInt(SOURCE_LOAD_THREADS_PROPERTY,
+				DEFAULT_SOURCE_LOAD_THREADS);
+	}
+
+	private int getSourceServerMaxConcurrency() {
+		int maxConcurrency = configurationFactory.getBaseConfiguration().getInt(SOURCE_SERVER_MAX_CONCURRENCY_PROPERTY,
+				DEFAULT_SOURCE_SERVER_MAX_CONCURRENCY);
+		return maxConcurrency > 0 ? maxConcurrency : DEFAULT_SOURCE_SERVER_MAX_CONCURRENCY;
+	}
+
+	private int getTargetWriteThreadsCount() {
+		return configurationFactory.getBaseConfiguration().getInt(TARGET_WRITE_THREADS_PROPERTY,
+				DEFAULT_TARGET_WRITE_THREADS);
+	}
+
+	private int getTargetWriteBatchSize() {
+		int batchSize = configurationFactory.getBaseConfiguration().getInt(TARGET_WRITE_BATCH_SIZE_PROPERTY,
+				DEFAULT_TARGET_WRITE_BATCH_SIZE);
+		return batchSize > 0 ? batchSize : DEFAULT_TARGET_WRITE_BATCH_SIZE;
+	}
+
+	private String getIncrementalAttribute() {
+		return configurationFactory.getBaseConfiguration().getString(INCREMENTAL_ATTRIBUTE_PROPERTY, null);
+	}
+
+	private int getFullReconciliationInterval() {
+		int interval = configurationFactory.getBaseConfiguration().getInt(FULL_RECONCILIATION_INTERVAL_PROPERTY,
+				DEFAULT_FULL_RECONCILIATION_INTERVAL);
+		return interval > 0 ? interval : DEFAULT_FULL_RECONCILIATION_INTERVAL;
+	}
+
+	private int getStreamingPageSize() {
+		int pageSize = configurationFactory.getBaseConfiguration().getInt(STREAMING_PAGE_SIZE_PROPERTY,
+				DEFAULT_STREAMING_PAGE_SIZE);
+		return pageSize > 0 ? pageSize : DEFAULT_STREAMING_PAGE_SIZE;
+	}
+
 	private CacheRefreshUpdateMethod getUpdateMethod(CacheRefreshConfiguration cacheRefreshConfiguration) {
 		String updateMethod = cacheRefreshConfiguration.getUpdateMethod();
 		if (StringHelper.isEmpty(updateMethod)) {
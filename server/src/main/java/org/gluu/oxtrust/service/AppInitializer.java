@@ -28,6 +28,7 @@ import org.gluu.exception.OxIntializationException;
 import org.gluu.model.custom.script.CustomScriptType;
 import org.gluu.oxauth.model.uma.UmaMetadata;
 import org.gluu.oxauth.model.util.SecurityProviderUtility;
+import org.gluu.oxtrust.auth.uma.UmaPatRenewalTimer;
 import org.gluu.oxtrust.config.ConfigurationFactory;
 import org.gluu.oxtrust.ldap.cache.service.CacheRefreshTimer;
 import org.gluu.oxtrust.service.cdi.event.CentralLdap;
@@ -153,6 +154,9 @@ public class AppInitializer {
 	@Inject
 	private CleanerTimer cleanerTimer;
 
+	@Inject
+	private UmaPatRenewalTimer umaPatRenewalTimer;
+
 	@PostConstruct
 	public void createApplicationComponents() {
 		SecurityProviderUtility.installBCProvider();
@@ -208,6 +212,7 @@ public class AppInitializer {
 		statusCheckerTimer.initTimer();
 		logFileSizeChecker.initTimer();
 		updateChecker.initTimer();
+		umaPatRenewalTimer.initTimer();
 	}
 
 	protected void initSchedulerService() {
@@ -10,9 +10,14 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
@@ -25,11 +30,12 @@ import javax.inject.Named;
 import org.apache.commons.collections.CollectionUtils;
 import org.gluu.config.oxtrust.AppConfiguration;
 import org.gluu.model.GluuStatus;
+import org.gluu.oxtrust.config.ConfigurationFactory;
 import org.gluu.oxtrust.model.GluuSAMLTrustRelationship;
 import org.gluu.oxtrust.model.GluuValidationStatus;
+import org.gluu.oxtrust.service.MetadataEntityIdIndex.EntityIds;
 import org.gluu.oxtrust.service.cdi.event.EntityIdMonitoringEvent;
 import org.gluu.oxtrust.util.ServiceUtil;
-import org.gluu.saml.metadata.SAMLMetadataParser;
 import org.gluu.service.cdi.async.Asynchronous;
 import org.gluu.service.cdi.event.Scheduled;
 import org.gluu.service.timer.event.TimerEvent;
@@ -49,6 +55,10 @@ public class EntityIDMonitoringService {
 
 	private static final int DEFAULT_INTERVAL = 2 * 60; // 2 minutes
 
+	private static final String UPDATE_THREADS_PROPERTY = "federationChildUpdateThreads";
+	private static final int DEFAULT_UPDATE_THREADS = 4;
+	private static final int UPDATE_BATCH_SIZE = 100;
+
 	@Inject
 	private Logger log;
 
@@ -64,6 +74,15 @@ public class EntityIDMonitoringService {
 	@Inject
 	private TrustService trustService;
 
+	@Inject
+	private MetadataEntityIdIndex metadataEntityIdIndex;
+
+	@Inject
+	private ConfigurationFactory configurationFactory;
+
+	@Inject
+	private WorkerPoolService workerPoolService;
+
 	private AtomicBoolean isActive;
 
 	public void initTimer() {
@@ -106,7 +125,14 @@ public class EntityIDMonitoringService {
 			String idpMetadataFolder = appConfiguration.getShibboleth3IdpRootDir() + File.separator
 					+ Shibboleth3ConfService.SHIB3_IDP_METADATA_FOLDER + File.separator;
 			File metadataFile = new File(idpMetadataFolder + tr.getSpMetaDataFN());
-			List<String> entityIds = SAMLMetadataParser.getEntityIdFromMetadataFile(metadataFile);
+			// Federation file is parsed only if it changed since previous run
+			EntityIds indexedEntityIds = metadataEntityIdIndex.update(metadataFile);
+			List<String> entityIds = (indexedEntityIds == null) ? Collections.<String>emptyList()
+					: indexedEntityIds.getEntityIds();
+			if ((indexedEntityIds != null) && indexedEntityIds.isChanged()) {
+				log.debug("Federation metadata of TR '{}' changed. EntityIds added: {}, removed: {}", tr.getInum(),
+						indexedEntityIds.getAddedEntityIds().size(), indexedEntityIds.getRemovedEntityIds().size());
+			}
 			Set<String> fromFileEntityIds = new HashSet<String>(entityIds);
 			if (fromFileEntityIds != null && !fromFileEntityIds.isEmpty()) {
 				log.trace("EntityIds from metadata: " + serviceUtil.iterableToString(entityIds));
@@ -115,10 +141,11 @@ public class EntityIDMonitoringService {
 				log.trace("EntityIds disjunction: " + serviceUtil.iterableToString(disjunction));
 				if (!disjunction.isEmpty()) {
 					log.trace("EntityIds disjunction is not empty. Somthing has changed. Processing further.");
-					tr.setGluuEntityId(fromFileEntityIds);
 					List<GluuSAMLTrustRelationship> federatedTrs = trustService.getChildTrusts(tr);
+					List<GluuSAMLTrustRelationship> changedTrs = new ArrayList<GluuSAMLTrustRelationship>();
 					for (GluuSAMLTrustRelationship federatedTr : federatedTrs) {
 						log.trace("Processing TR part: " + federatedTr.getDn());
+						TrustState previousState = new TrustState(federatedTr);
 						boolean isActive = federatedTr.getStatus() != null
 								&& GluuStatus.ACTIVE.equals(federatedTr.getStatus());
 						log.trace("isActive:" + isActive);
@@ -147,13 +174,22 @@ public class EntityIDMonitoringService {
 							}
 							federatedTr.setValidationLog(updatedLog);
 						} else {
-							if (federatedTr.getValidationStatus().equals(GluuValidationStatus.FAILED)) {
+							if (GluuValidationStatus.FAILED.equals(federatedTr.getValidationStatus())) {
 								federatedTr.setStatus(GluuStatus.ACTIVE);
 								federatedTr.setValidationStatus(GluuValidationStatus.SUCCESS);
 							}
 						}
-						trustService.updateTrustRelationship(federatedTr);
+						if (previousState.isChanged(federatedTr)) {
+							changedTrs.add(federatedTr);
+						}
+					}
+					if (updateChildTrusts(tr, federatedTrs.size(), changedTrs) > 0) {
+						// Keep previous entityIds to reconcile child TRs again on next run
+						log.warn("Federation '{}': child TRs update failed, entityIds will be reconciled on next run",
+								tr.getInum());
+						continue;
 					}
+					tr.setGluuEntityId(fromFileEntityIds);
 					tr.setStatus(GluuStatus.ACTIVE);
 					tr.setValidationStatus(GluuValidationStatus.SUCCESS);
 					trustService.updateTrustRelationship(tr);
@@ -166,18 +202,15 @@ public class EntityIDMonitoringService {
 							validationLog.remove(FEDERATION_FILE_INVALID_MESSAGE);
 							tr.setValidationLog(validationLog);
 						}
-						List<GluuSAMLTrustRelationship> federatedTrs = trustService.getChildTrusts(tr);
-						if (federatedTrs != null && !federatedTrs.isEmpty()) {
-							for (GluuSAMLTrustRelationship child : federatedTrs) {
-								child.setValidationStatus(GluuValidationStatus.SUCCESS);
-								child.setStatus(GluuStatus.ACTIVE);
-								trustService.updateTrustRelationship(child);
-							}
+						if (updateChildTrusts(tr, GluuStatus.ACTIVE, GluuValidationStatus.SUCCESS) > 0) {
+							// Keep federation inactive to update child TRs again on next run
+							continue;
 						}
 						trustService.updateTrustRelationship(tr);
 					}
 				}
 			} else {
+				TrustState previousState = new TrustState(tr);
 				tr.setStatus(GluuStatus.INACTIVE);
 				tr.setValidationStatus(GluuValidationStatus.FAILED);
 				if (tr.getValidationLog() != null && !tr.getValidationLog().contains(FEDERATION_FILE_INVALID_MESSAGE)) {
@@ -187,18 +220,119 @@ public class EntityIDMonitoringService {
 				} else {
 					tr.setValidationLog(Arrays.asList(FEDERATION_FILE_INVALID_MESSAGE));
 				}
-				List<GluuSAMLTrustRelationship> federatedTrs = trustService.getChildTrusts(tr);
-				if (federatedTrs != null && !federatedTrs.isEmpty()) {
-					for (GluuSAMLTrustRelationship child : federatedTrs) {
-						child.setValidationStatus(GluuValidationStatus.FAILED);
-						child.setStatus(GluuStatus.INACTIVE);
-						trustService.updateTrustRelationship(child);
-					}
+				updateChildTrusts(tr, GluuStatus.INACTIVE, GluuValidationStatus.FAILED);
+				if (previousState.isChanged(tr)) {
+					trustService.updateTrustRelationship(tr);
 				}
-				trustService.updateTrustRelationship(tr);
 			}
 
 		}
+		metadataEntityIdIndex.removeStaleEntries();
+	}
+
+	private int updateChildTrusts(GluuSAMLTrustRelationship federation, GluuStatus status,
+			GluuValidationStatus validationStatus) {
+		List<GluuSAMLTrustRelationship> federatedTrs = trustService.getChildTrusts(federation);
+		List<GluuSAMLTrustRelationship> changedTrs = new ArrayList<GluuSAMLTrustRelationship>();
+		for (GluuSAMLTrustRelationship child : federatedTrs) {
+			TrustState previousState = new TrustState(child);
+			child.setValidationStatus(validationStatus);
+			child.setStatus(status);
+			if (previousState.isChanged(child)) {
+				changedTrs.add(child);
+			}
+		}
+		return updateChildTrusts(federation, federatedTrs.size(), changedTrs);
+	}
+
+	/**
+	 * Persists changed child trust relationships in batches processed by bounded
+	 * number of threads
+	 *
+	 * @return Number of child trust relationships which weren't updated
+	 */
+	private int updateChildTrusts(GluuSAMLTrustRelationship federation, int childrenCount,
+			List<GluuSAMLTrustRelationship> changedTrs) {
+		if (changedTrs.isEmpty()) {
+			log.debug("Federation '{}': none of {} child TRs changed", federation.getInum(), childrenCount);
+			return 0;
+		}
+
+		long startTime = System.currentTimeMillis();
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < changedTrs.size(); i += UPDATE_BATCH_SIZE) {
+			final List<GluuSAMLTrustRelationship> batch = changedTrs.subList(i,
+					Math.min(i + UPDATE_BATCH_SIZE, changedTrs.size()));
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return updateTrustRelationships(batch);
+				}
+			});
+		}
+
+		int updated = 0;
+		try {
+			for (Future<Integer> future : workerPoolService.invokeAll(tasks, getUpdateThreadsCount())) {
+				try {
+					updated += future.get();
+				} catch (ExecutionException ex) {
+					log.error("Failed to update child TRs", ex.getCause());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			log.error("Update of child TRs was interrupted", ex);
+		}
+
+		int failed = changedTrs.size() - updated;
+		log.info("Federation '{}': child TRs: {}, changed: {}, updated: {}, failed: {}, took: {} ms",
+				federation.getInum(), childrenCount, changedTrs.size(), updated, failed,
+				System.currentTimeMillis() - startTime);
+
+		return failed;
+	}
+
+	private int updateTrustRelationships(List<GluuSAMLTrustRelationship> trustRelationships) {
+		int updated = 0;
+		for (GluuSAMLTrustRelationship trustRelationship : trustRelationships) {
+			try {
+				trustService.updateTrustRelationship(trustRelationship);
+				updated++;
+			} catch (Exception ex) {
+				log.error("Failed to update TR '{}'", trustRelationship.getDn(), ex);
+			}
+		}
+
+		return updated;
+	}
+
+	private int getUpdateThreadsCount() {
+		return configurationFactory.getBaseConfiguration().getInt(UPDATE_THREADS_PROPERTY, DEFAULT_UPDATE_THREADS);
+	}
+
+	/**
+	 * Part of trust relationship state maintained by this service
+	 */
+	private static class TrustState {
+
+		private final GluuStatus status;
+		private final GluuValidationStatus validationStatus;
+		private final List<String> validationLog;
+
+		TrustState(GluuSAMLTrustRelationship trustRelationship) {
+			this.status = trustRelationship.getStatus();
+			this.validationStatus = trustRelationship.getValidationStatus();
+			this.validationLog = (trustRelationship.getValidationLog() == null) ? null
+					: new ArrayList<String>(trustRelationship.getValidationLog());
+		}
+
+		boolean isChanged(GluuSAMLTrustRelationship trustRelationship) {
+			return (status != trustRelationship.getStatus())
+					|| (validationStatus != trustRelationship.getValidationStatus())
+					|| !Objects.equals(validationLog, trustRelationship.getValidationLog());
+		}
+
 	}
 
 }
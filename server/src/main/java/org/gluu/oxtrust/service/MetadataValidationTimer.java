@@ -8,13 +8,22 @@ package org.gluu.oxtrust.service;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -27,10 +36,10 @@ import javax.inject.Named;
 
 import org.gluu.config.oxtrust.AppConfiguration;
 import org.gluu.model.GluuStatus;
+import org.gluu.oxtrust.config.ConfigurationFactory;
 import org.gluu.oxtrust.model.GluuSAMLTrustRelationship;
 import org.gluu.oxtrust.model.GluuValidationStatus;
 import org.gluu.oxtrust.service.cdi.event.MetadataValidationEvent;
-import org.gluu.saml.metadata.SAMLMetadataParser;
 import org.gluu.service.cdi.async.Asynchronous;
 import org.gluu.service.cdi.event.Scheduled;
 import org.gluu.service.timer.event.TimerEvent;
@@ -50,6 +59,9 @@ public class MetadataValidationTimer {
 
 	private final static int DEFAULT_INTERVAL = 60; // 60 seconds
 
+	private static final String VALIDATION_THREADS_PROPERTY = "metadataValidationThreads";
+	private static final int DEFAULT_VALIDATION_THREADS = 4;
+
 	@Inject
 	private Logger log;
 
@@ -65,15 +77,31 @@ public class MetadataValidationTimer {
 	@Inject
 	private Shibboleth3ConfService shibboleth3ConfService;
 
+	@Inject
+	private ConfigurationFactory configurationFactory;
+
+	@Inject
+	private MetadataEntityIdIndex metadataEntityIdIndex;
+
+	@Inject
+	private WorkerPoolService workerPoolService;
+
 	private AtomicBoolean isActive;
 
 	private LinkedBlockingQueue<String> metadataUpdates;
 
+	/**
+	 * Files taken from the queue whose validation hasn't finished yet. They are
+	 * still reported as scheduled
+	 */
+	private Set<String> metadataInProgress;
+
 	@PostConstruct
 	public void init() {
 		this.isActive = new AtomicBoolean(true);
 		try {
 			this.metadataUpdates = new LinkedBlockingQueue<String>();
+			this.metadataInProgress = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 		} finally {
 			this.isActive.set(false);
 		}
@@ -109,13 +137,83 @@ public class MetadataValidationTimer {
 		}
 	}
 
+	/**
+	 * Drains the queue and validates all pending metadata files concurrently.
+	 * Files with same target file belong to same trust relationship and are
+	 * validated one after another in queue order. IDP configuration is
+	 * regenerated once for the whole batch if any file was accepted
+	 */
 	private void procesMetadataValidation() {
-		log.debug("Starting metadata validation");
-		boolean result = validateMetadata(
-				appConfiguration.getShibboleth3IdpRootDir() + File.separator
-						+ Shibboleth3ConfService.SHIB3_IDP_TEMPMETADATA_FOLDER + File.separator,
-				appConfiguration.getShibboleth3IdpRootDir() + File.separator
-						+ Shibboleth3ConfService.SHIB3_IDP_METADATA_FOLDER + File.separator);
+		final List<String> metadataFNs = new ArrayList<String>();
+		synchronized (metadataUpdates) {
+			// Same file may be queued several times, validate it once
+			Set<String> pending = new LinkedHashSet<String>();
+			for (String metadataFN; (metadataFN = metadataUpdates.poll()) != null;) {
+				if (StringHelper.isNotEmpty(metadataFN)) {
+					pending.add(metadataFN);
+				}
+			}
+			metadataFNs.addAll(pending);
+			metadataInProgress.addAll(pending);
+		}
+
+		if (metadataFNs.isEmpty()) {
+			return;
+		}
+
+		log.debug("Starting metadata validation. Files count: '{}'", metadataFNs.size());
+		final String shib3IdpTempmetadataFolder = appConfiguration.getShibboleth3IdpRootDir() + File.separator
+				+ Shibboleth3ConfService.SHIB3_IDP_TEMPMETADATA_FOLDER + File.separator;
+		final String shib3IdpMetadataFolder = appConfiguration.getShibboleth3IdpRootDir() + File.separator
+				+ Shibboleth3ConfService.SHIB3_IDP_METADATA_FOLDER + File.separator;
+
+		Map<String, List<String>> metadataFNsByTarget = new LinkedHashMap<String, List<String>>();
+		for (String metadataFN : metadataFNs) {
+			String targetFN = getTargetFileName(metadataFN);
+			List<String> targetMetadataFNs = metadataFNsByTarget.get(targetFN);
+			if (targetMetadataFNs == null) {
+				targetMetadataFNs = new ArrayList<String>();
+				metadataFNsByTarget.put(targetFN, targetMetadataFNs);
+			}
+			targetMetadataFNs.add(metadataFN);
+		}
+
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(metadataFNsByTarget.size());
+		for (final List<String> targetMetadataFNs : metadataFNsByTarget.values()) {
+			tasks.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					boolean result = false;
+					for (String metadataFN : targetMetadataFNs) {
+						try {
+							result |= validateMetadata(metadataFN, shib3IdpTempmetadataFolder,
+									shib3IdpMetadataFolder);
+						} catch (Exception ex) {
+							log.error("Failed to validate metadata file '{}'", metadataFN, ex);
+						} finally {
+							metadataInProgress.remove(metadataFN);
+						}
+					}
+					return result;
+				}
+			});
+		}
+
+		boolean result = false;
+		try {
+			for (Future<Boolean> future : workerPoolService.invokeAll(tasks, getValidationThreadsCount())) {
+				try {
+					result |= future.get();
+				} catch (ExecutionException ex) {
+					log.error("Failed to validate metadata", ex.getCause());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			log.error("Metadata validation was interrupted", ex);
+		} finally {
+			metadataInProgress.removeAll(metadataFNs);
+		}
 		log.debug("Metadata validation finished with result: '{}'", result);
 
 		if (result) {
@@ -131,12 +229,8 @@ public class MetadataValidationTimer {
 
 	public boolean isQueued(String gluuSAMLspMetaDataFN) {
 		synchronized (metadataUpdates) {
-			for (String filename : metadataUpdates) {
-				if (filename.contains(gluuSAMLspMetaDataFN)) {
-					return true;
-				}
-			}
-			return false;
+			return containsFileName(metadataUpdates, gluuSAMLspMetaDataFN)
+					|| containsFileName(metadataInProgress, gluuSAMLspMetaDataFN);
 		}
 	}
 
@@ -148,13 +242,8 @@ public class MetadataValidationTimer {
 			return GluuValidationStatus.PENDING.getDisplayName();
 		}
 		synchronized (metadataUpdates) {
-			boolean result = false;
-			for (String filename : metadataUpdates) {
-				if (filename.contains(gluuSAMLspMetaDataFN)) {
-					result = true;
-					break;
-				}
-			}
+			boolean result = containsFileName(metadataUpdates, gluuSAMLspMetaDataFN)
+					|| containsFileName(metadataInProgress, gluuSAMLspMetaDataFN);
 			if (result) {
 				return GluuValidationStatus.SCHEDULED.getDisplayName();
 			} else {
@@ -163,6 +252,28 @@ public class MetadataValidationTimer {
 		}
 	}
 
+	private boolean containsFileName(Iterable<String> fileNames, String gluuSAMLspMetaDataFN) {
+		for (String filename : fileNames) {
+			if (filename.contains(gluuSAMLspMetaDataFN)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return Name of metadata file without temporary suffix
+	 */
+	private String getTargetFileName(String metadataFN) {
+		return metadataFN.replaceAll(".{4}\\..{4}$", "");
+	}
+
+	private int getValidationThreadsCount() {
+		return configurationFactory.getBaseConfiguration().getInt(VALIDATION_THREADS_PROPERTY,
+				DEFAULT_VALIDATION_THREADS);
+	}
+
 	private void regenerateConfigurationFiles() {
 		boolean createConfig = appConfiguration.isConfigGeneration();
 		if (createConfig) {
@@ -174,144 +285,140 @@ public class MetadataValidationTimer {
 	}
 
 	/**
+	 * Validates single metadata file. Safe to call concurrently for files with
+	 * different target files
+	 * 
+	 * @param metadataFN
 	 * @param shib3IdpTempmetadataFolder
 	 * @param shib3IdpMetadataFolder
+	 * @return true if metadata was accepted and IDP configuration should be
+	 *         regenerated
 	 */
-	private boolean validateMetadata(String shib3IdpTempmetadataFolder, String shib3IdpMetadataFolder) {
+	private boolean validateMetadata(String metadataFN, String shib3IdpTempmetadataFolder,
+			String shib3IdpMetadataFolder) {
 		boolean result = false;
 		log.trace("Starting metadata validation process.");
 
-		String metadataFN = null;
-		synchronized (metadataUpdates) {
-			if (!metadataUpdates.isEmpty()) {
-				metadataFN = metadataUpdates.poll();
-			}
+		File metadata = new File(shib3IdpTempmetadataFolder + metadataFN);
+		File target = new File(shib3IdpMetadataFolder + getTargetFileName(metadataFN));
+		GluuSAMLTrustRelationship tr = trustService.getTrustByUnpunctuatedInum(
+				metadataFN.split("-" + Shibboleth3ConfService.SHIB3_IDP_SP_METADATA_FILE)[0]);
+		if (tr == null) {
+			queue(metadataFN);
+			return false;
 		}
+		tr.setValidationStatus(GluuValidationStatus.PENDING);
+		trustService.updateTrustRelationship(tr);
+
+		GluuErrorHandler errorHandler = null;
+		List<String> validationLog = null;
+		try (InputStream stream = new FileInputStream(metadata)) {
+			errorHandler = shibboleth3ConfService.validateMetadata(stream);
+		} catch (Exception e) {
+			tr.setValidationStatus(GluuValidationStatus.FAILED);
+			tr.setStatus(GluuStatus.INACTIVE);
+			validationLog = new ArrayList<String>();
+			validationLog.add(e.getMessage());
+			log.warn("Validation of " + tr.getInum() + " failed: " + e.getMessage());
+			tr.setValidationLog(validationLog);
+			trustService.updateTrustRelationship(tr);
 
-		synchronized (this) {
-			if (StringHelper.isNotEmpty(metadataFN)) {
-				File metadata = new File(shib3IdpTempmetadataFolder + metadataFN);
-				File target = new File(shib3IdpMetadataFolder + metadataFN.replaceAll(".{4}\\..{4}$", ""));
-				GluuSAMLTrustRelationship tr = trustService.getTrustByUnpunctuatedInum(
-						metadataFN.split("-" + Shibboleth3ConfService.SHIB3_IDP_SP_METADATA_FILE)[0]);
-				if (tr == null) {
-					metadataUpdates.add(metadataFN);
-					return false;
+			return false;
+		}
+		if (errorHandler.isValid()) {
+			tr.setValidationLog(errorHandler.getLog());
+			tr.setValidationStatus(GluuValidationStatus.SUCCESS);
+			if (((!target.exists()) || target.delete()) && (!metadata.renameTo(target))) {
+				log.error("Failed to move metadata file to location:" + target.getAbsolutePath());
+				tr.setStatus(GluuStatus.INACTIVE);
+			} else {
+				tr.setSpMetaDataFN(target.getName());
+			}
+			boolean federation = shibboleth3ConfService.isFederation(tr);
+			tr.setFederation(federation);
+			String idpMetadataFolder = appConfiguration.getShibboleth3IdpRootDir() + File.separator
+					+ Shibboleth3ConfService.SHIB3_IDP_METADATA_FOLDER + File.separator;
+			File metadataFile = new File(idpMetadataFolder + tr.getSpMetaDataFN());
+
+			List<String> entityIdList = metadataEntityIdIndex.getEntityIds(metadataFile);
+			Set<String> entityIdSet = new TreeSet<String>();
+			Set<String> duplicatesSet = new TreeSet<String>();
+			if (entityIdList != null && !entityIdList.isEmpty()) {
+
+				for (String entityId : entityIdList) {
+					if (!entityIdSet.add(entityId)) {
+						duplicatesSet.add(entityId);
+					}
 				}
-				tr.setValidationStatus(GluuValidationStatus.PENDING);
-				trustService.updateTrustRelationship(tr);
+			}
 
-				GluuErrorHandler errorHandler = null;
-				List<String> validationLog = null;
-				try {
-					errorHandler = shibboleth3ConfService.validateMetadata(new FileInputStream(metadata));
-				} catch (Exception e) {
-					tr.setValidationStatus(GluuValidationStatus.FAILED);
-					tr.setStatus(GluuStatus.INACTIVE);
-					validationLog = new ArrayList<String>();
-					validationLog.add(e.getMessage());
-					log.warn("Validation of " + tr.getInum() + " failed: " + e.getMessage());
-					tr.setValidationLog(validationLog);
-					trustService.updateTrustRelationship(tr);
-
-					return false;
+			if (!duplicatesSet.isEmpty()) {
+				validationLog = tr.getValidationLog();
+				if (validationLog != null) {
+					validationLog = new LinkedList<String>(validationLog);
+				} else {
+					validationLog = new LinkedList<String>();
 				}
-				if (errorHandler.isValid()) {
-					tr.setValidationLog(errorHandler.getLog());
-					tr.setValidationStatus(GluuValidationStatus.SUCCESS);
-					if (((!target.exists()) || target.delete()) && (!metadata.renameTo(target))) {
-						log.error("Failed to move metadata file to location:" + target.getAbsolutePath());
-						tr.setStatus(GluuStatus.INACTIVE);
-					} else {
-						tr.setSpMetaDataFN(target.getName());
-					}
-					boolean federation = shibboleth3ConfService.isFederation(tr);
-					tr.setFederation(federation);
-					String idpMetadataFolder = appConfiguration.getShibboleth3IdpRootDir() + File.separator
-							+ Shibboleth3ConfService.SHIB3_IDP_METADATA_FOLDER + File.separator;
-					File metadataFile = new File(idpMetadataFolder + tr.getSpMetaDataFN());
-
-					List<String> entityIdList = SAMLMetadataParser.getEntityIdFromMetadataFile(metadataFile);
-					Set<String> entityIdSet = new TreeSet<String>();
-					Set<String> duplicatesSet = new TreeSet<String>();
-					if (entityIdList != null && !entityIdList.isEmpty()) {
-
-						for (String entityId : entityIdList) {
-							if (!entityIdSet.add(entityId)) {
-								duplicatesSet.add(entityId);
-							}
-						}
-					}
-
-					if (!duplicatesSet.isEmpty()) {
-						validationLog = tr.getValidationLog();
-						if (validationLog != null) {
-							validationLog = new LinkedList<String>(validationLog);
-						} else {
-							validationLog = new LinkedList<String>();
-						}
-						validationLog.add("This metadata contains multiple instances of entityId: "
-								+ Arrays.toString(duplicatesSet.toArray()));
-					}
-					tr.setValidationLog(validationLog);
-					tr.setGluuEntityId(entityIdSet);
-					tr.setStatus(GluuStatus.ACTIVE);
-
-					trustService.updateTrustRelationship(tr);
-					result = true;
-				} else if (appConfiguration.isIgnoreValidation() || errorHandler.isInternalError()) {
-					tr.setValidationLog(new ArrayList<String>(new HashSet<String>(errorHandler.getLog())));
-					tr.setValidationStatus(GluuValidationStatus.FAILED);
-					if (((!target.exists()) || target.delete()) && (!metadata.renameTo(target))) {
-						log.error("Failed to move metadata file to location:" + target.getAbsolutePath());
-						tr.setStatus(GluuStatus.INACTIVE);
-					} else {
-						tr.setSpMetaDataFN(target.getName());
-					}
-					boolean federation = shibboleth3ConfService.isFederation(tr);
-					tr.setFederation(federation);
-					String idpMetadataFolder = appConfiguration.getShibboleth3IdpRootDir() + File.separator
-							+ Shibboleth3ConfService.SHIB3_IDP_METADATA_FOLDER + File.separator;
-					File metadataFile = new File(idpMetadataFolder + tr.getSpMetaDataFN());
-
-					List<String> entityIdList = SAMLMetadataParser.getEntityIdFromMetadataFile(metadataFile);
-					Set<String> duplicatesSet = new TreeSet<String>();
-					Set<String> entityIdSet = new TreeSet<String>();
-
-					for (String entityId : entityIdList) {
-						if (!entityIdSet.add(entityId)) {
-							duplicatesSet.add(entityId);
-						}
-					}
-
-					tr.setGluuEntityId(entityIdSet);
-					tr.setStatus(GluuStatus.ACTIVE);
-					validationLog = tr.getValidationLog();
-					if (!duplicatesSet.isEmpty()) {
-						validationLog.add("This metadata contains multiple instances of entityId: "
-								+ Arrays.toString(duplicatesSet.toArray()));
-					}
+				validationLog.add("This metadata contains multiple instances of entityId: "
+						+ Arrays.toString(duplicatesSet.toArray()));
+			}
+			tr.setValidationLog(validationLog);
+			tr.setGluuEntityId(entityIdSet);
+			tr.setStatus(GluuStatus.ACTIVE);
+
+			trustService.updateTrustRelationship(tr);
+			result = true;
+		} else if (appConfiguration.isIgnoreValidation() || errorHandler.isInternalError()) {
+			tr.setValidationLog(new ArrayList<String>(new HashSet<String>(errorHandler.getLog())));
+			tr.setValidationStatus(GluuValidationStatus.FAILED);
+			if (((!target.exists()) || target.delete()) && (!metadata.renameTo(target))) {
+				log.error("Failed to move metadata file to location:" + target.getAbsolutePath());
+				tr.setStatus(GluuStatus.INACTIVE);
+			} else {
+				tr.setSpMetaDataFN(target.getName());
+			}
+			boolean federation = shibboleth3ConfService.isFederation(tr);
+			tr.setFederation(federation);
+			String idpMetadataFolder = appConfiguration.getShibboleth3IdpRootDir() + File.separator
+					+ Shibboleth3ConfService.SHIB3_IDP_METADATA_FOLDER + File.separator;
+			File metadataFile = new File(idpMetadataFolder + tr.getSpMetaDataFN());
+
+			List<String> entityIdList = metadataEntityIdIndex.getEntityIds(metadataFile);
+			Set<String> duplicatesSet = new TreeSet<String>();
+			Set<String> entityIdSet = new TreeSet<String>();
+
+			for (String entityId : entityIdList) {
+				if (!entityIdSet.add(entityId)) {
+					duplicatesSet.add(entityId);
+				}
+			}
 
-					if (errorHandler.isInternalError()) {
-						validationLog = tr.getValidationLog();
+			tr.setGluuEntityId(entityIdSet);
+			tr.setStatus(GluuStatus.ACTIVE);
+			validationLog = tr.getValidationLog();
+			if (!duplicatesSet.isEmpty()) {
+				validationLog.add("This metadata contains multiple instances of entityId: "
+						+ Arrays.toString(duplicatesSet.toArray()));
+			}
 
-						validationLog.add(
-								"Warning: cannot validate metadata. Check internet connetion ans www.w3.org availability.");
+			if (errorHandler.isInternalError()) {
+				validationLog = tr.getValidationLog();
 
-						// update log with warning
-						for (String warningLogMessage : errorHandler.getLog())
-							validationLog.add("Warning: " + warningLogMessage);
-					}
+				validationLog.add(
+						"Warning: cannot validate metadata. Check internet connetion ans www.w3.org availability.");
 
-					trustService.updateTrustRelationship(tr);
-					result = true;
-				} else {
-					tr.setValidationLog(new ArrayList<String>(new HashSet<String>(errorHandler.getLog())));
-					tr.setValidationStatus(GluuValidationStatus.FAILED);
-					tr.setStatus(GluuStatus.INACTIVE);
-					trustService.updateTrustRelationship(tr);
-				}
+				// update log with warning
+				for (String warningLogMessage : errorHandler.getLog())
+					validationLog.add("Warning: " + warningLogMessage);
 			}
+
+			trustService.updateTrustRelationship(tr);
+			result = true;
+		} else {
+			tr.setValidationLog(new ArrayList<String>(new HashSet<String>(errorHandler.getLog())));
+			tr.setValidationStatus(GluuValidationStatus.FAILED);
+			tr.setStatus(GluuStatus.INACTIVE);
+			trustService.updateTrustRelationship(tr);
 		}
 
 		return result;
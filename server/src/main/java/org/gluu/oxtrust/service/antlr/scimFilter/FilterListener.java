@@ -25,7 +25,9 @@ import org.gluu.util.Pair;
 
 import javax.lang.model.type.NullType;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -35,6 +37,8 @@ public class FilterListener extends ScimFilterBaseListener {
 
     private Logger log = LogManager.getLogger(getClass());
     private Deque<Filter> filter;
+    private Deque<FilterTemplate> templates;
+    private List<String> values;
     private Class<? extends BaseScimResource> resourceClass;
     private String error;
     private SubFilterGenerator subFilterGenerator;
@@ -42,6 +46,8 @@ public class FilterListener extends ScimFilterBaseListener {
 
     public FilterListener(Class<? extends BaseScimResource> resourceClass, boolean ldapBackend) {
         filter = new ArrayDeque<>();
+        templates = new ArrayDeque<>();
+        values = new ArrayList<>();
         extService = CdiUtil.bean(ExtensionService.class);
         this.resourceClass = resourceClass;
 
@@ -103,10 +109,18 @@ public class FilterListener extends ScimFilterBaseListener {
                     operator = ScimOperator.getByValue(ctx.compareop().getText());
                 }
 
+                //String and number literals become parameters of the filter template
+                String compValue = isPrRule ? null : compValueCtx.getText();
+                int valueIndex = -1;
+                if (CompValueType.STRING.equals(type) || CompValueType.NUMBER.equals(type)) {
+                    valueIndex = values.size();
+                    values.add(compValue);
+                }
+
                 error = FilterUtil.checkFilterConsistency(path, attrType, type, operator);
                 if (error == null) {
                     Pair<Filter, String> subf = subFilterGenerator
-                            .build(subattr, ldapAttribute, isPrRule ? null : compValueCtx.getText(), attrType, type, operator, multiValued);
+                            .build(subattr, ldapAttribute, compValue, attrType, type, operator, multiValued);
                     Filter subFilth = subf.getFirst();
                     error = subf.getSecond();
 
@@ -116,6 +130,8 @@ public class FilterListener extends ScimFilterBaseListener {
                         }
                     } else {
                         filter.push(subFilth);
+                        templates.push(FilterTemplate.expression(path, subattr, ldapAttribute, compValue, valueIndex,
+                                attrType, type, operator, multiValued));
                     }
                 }
             }
@@ -125,24 +141,41 @@ public class FilterListener extends ScimFilterBaseListener {
     @Override
     public void exitAndFilter(ScimFilterParser.AndFilterContext ctx) {
         filter.push(Filter.createANDFilter(filter.poll(), filter.poll()));
+        templates.push(FilterTemplate.and(templates.poll(), templates.poll()));
     }
 
     @Override
     public void exitNegatedFilter(ScimFilterParser.NegatedFilterContext ctx) {
         if (ctx.getText().startsWith("not(")) {
             filter.push(Filter.createNOTFilter(filter.poll()));
+            templates.push(FilterTemplate.not(templates.poll()));
         }
     }
 
     @Override
     public void exitOrFilter(ScimFilterParser.OrFilterContext ctx) {
         filter.push(Filter.createORFilter(filter.poll(), filter.poll()));
+        templates.push(FilterTemplate.or(templates.poll(), templates.poll()));
     }
 
     public String getError() {
         return error;
     }
 
+    /**
+     * @return Compiled form of the filter walked, or null if there was an error
+     */
+    public FilterTemplate getTemplate() {
+        return StringUtils.isEmpty(error) ? templates.peek() : null;
+    }
+
+    /**
+     * @return String and number literals found in the filter walked, in order of appearance
+     */
+    public List<String> getValues() {
+        return values;
+    }
+
     public Filter getFilter() {
         if (StringUtils.isEmpty(error)) {
             Filter f = filter.poll();
@@ -0,0 +1,141 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.antlr.scimFilter;
+
+import java.util.List;
+
+import org.gluu.oxtrust.model.scim2.AttributeDefinition.Type;
+import org.gluu.oxtrust.service.antlr.scimFilter.enums.CompValueType;
+import org.gluu.oxtrust.service.antlr.scimFilter.enums.ScimOperator;
+import org.gluu.search.filter.Filter;
+import org.gluu.util.Pair;
+
+/**
+ * An immutable, compiled form of a SCIM filter expression. It keeps everything {@link FilterListener} resolved while
+ * walking the parse tree (LDAP attributes, types, operators and the logical structure), while comparison values are
+ * supplied on every instantiation. See also {@link org.gluu.oxtrust.service.antlr.scimFilter.util.FilterShape}.
+ */
+public abstract class FilterTemplate {
+
+    /**
+     * Builds a fresh filter for the comparison values passed
+     * @param values String and number literals of the filter in order of appearance
+     * @param subFilterGenerator Generator used to build atomic expressions
+     * @return The filter built accompanied with an error string if any
+     */
+    public abstract Pair<Filter, String> instantiate(List<String> values, SubFilterGenerator subFilterGenerator);
+
+    static FilterTemplate expression(String path, String subAttribute, String attribute, String compValue,
+                                     int valueIndex, Type attrType, CompValueType type, ScimOperator operator,
+                                     boolean multiValued) {
+        return new Expression(path, subAttribute, attribute, compValue, valueIndex, attrType, type, operator, multiValued);
+    }
+
+    static FilterTemplate and(FilterTemplate first, FilterTemplate second) {
+        return new Composite(true, first, second);
+    }
+
+    static FilterTemplate or(FilterTemplate first, FilterTemplate second) {
+        return new Composite(false, first, second);
+    }
+
+    static FilterTemplate not(FilterTemplate template) {
+        return new Negation(template);
+    }
+
+    private static class Expression extends FilterTemplate {
+
+        private final String path;
+        private final String subAttribute;
+        private final String attribute;
+        private final String compValue;
+        private final int valueIndex;
+        private final Type attrType;
+        private final CompValueType type;
+        private final ScimOperator operator;
+        private final boolean multiValued;
+
+        Expression(String path, String subAttribute, String attribute, String compValue, int valueIndex,
+                   Type attrType, CompValueType type, ScimOperator operator, boolean multiValued) {
+            this.path = path;
+            this.subAttribute = subAttribute;
+            this.attribute = attribute;
+            this.compValue = compValue;
+            this.valueIndex = valueIndex;
+            this.attrType = attrType;
+            this.type = type;
+            this.operator = operator;
+            this.multiValued = multiValued;
+        }
+
+        @Override
+        public Pair<Filter, String> instantiate(List<String> values, SubFilterGenerator subFilterGenerator) {
+
+            //Literals (strings and numbers) are taken from values, other compare values (true, false, null) are fixed
+            String value = valueIndex < 0 ? compValue : values.get(valueIndex);
+            Pair<Filter, String> subf = subFilterGenerator.build(subAttribute, attribute, value, attrType, type, operator, multiValued);
+
+            if (subf.getFirst() == null && subf.getSecond() == null) {
+                String error = String.format("Operator '%s' is not supported for attribute %s", operator.getValue(), path);
+                return new Pair<>(null, error);
+            }
+            return subf;
+
+        }
+
+    }
+
+    private static class Composite extends FilterTemplate {
+
+        private final boolean and;
+        private final FilterTemplate first;
+        private final FilterTemplate second;
+
+        Composite(boolean and, FilterTemplate first, FilterTemplate second) {
+            this.and = and;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public Pair<Filter, String> instantiate(List<String> values, SubFilterGenerator subFilterGenerator) {
+
+            Pair<Filter, String> f1 = first.instantiate(values, subFilterGenerator);
+            if (f1.getFirst() == null) {
+                return f1;
+            }
+            Pair<Filter, String> f2 = second.instantiate(values, subFilterGenerator);
+            if (f2.getFirst() == null) {
+                return f2;
+            }
+
+            Filter filter = and ? Filter.createANDFilter(f1.getFirst(), f2.getFirst())
+                    : Filter.createORFilter(f1.getFirst(), f2.getFirst());
+            return new Pair<>(filter, null);
+
+        }
+
+    }
+
+    private static class Negation extends FilterTemplate {
+
+        private final FilterTemplate template;
+
+        Negation(FilterTemplate template) {
+            this.template = template;
+        }
+
+        @Override
+        public Pair<Filter, String> instantiate(List<String> values, SubFilterGenerator subFilterGenerator) {
+
+            Pair<Filter, String> f = template.instantiate(values, subFilterGenerator);
+            return f.getFirst() == null ? f : new Pair<>(Filter.createNOTFilter(f.getFirst()), null);
+
+        }
+
+    }
+
+}
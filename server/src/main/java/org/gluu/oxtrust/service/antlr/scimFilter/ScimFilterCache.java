@@ -0,0 +1,121 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.antlr.scimFilter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.gluu.oxtrust.service.cdi.event.EventType;
+import org.gluu.oxtrust.service.cdi.event.Events;
+import org.slf4j.Logger;
+
+/**
+ * LRU cache of compiled SCIM filters keyed by resource type and filter shape. Templates depend on attributes
+ * metadata, so the cache is cleared when attributes change
+ */
+@ApplicationScoped
+@Named
+public class ScimFilterCache {
+
+    private static final String CACHE_SIZE_PROPERTY = "scimFilterCacheSize";
+    private static final int DEFAULT_CACHE_SIZE = 1000;
+    private static final int STATISTICS_INTERVAL = 1000;
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private ConfigurationFactory configurationFactory;
+
+    private int maxSize;
+    private LinkedHashMap<String, FilterTemplate> templates;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        maxSize = configurationFactory.getBaseConfiguration().getInt(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE);
+        templates = new LinkedHashMap<String, FilterTemplate>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -2395826304719346162L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FilterTemplate> eldest) {
+                if (size() > maxSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public FilterTemplate get(String key) {
+
+        if (!isEnabled()) {
+            return null;
+        }
+
+        FilterTemplate template;
+        synchronized (templates) {
+            template = templates.get(key);
+        }
+        if (template == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        logStatistics();
+        return template;
+
+    }
+
+    public void put(String key, FilterTemplate template) {
+
+        if (isEnabled() && template != null) {
+            synchronized (templates) {
+                templates.put(key, template);
+            }
+        }
+
+    }
+
+    public void clear(@Observes @EventType(Events.EVENT_CLEAR_ATTRIBUTES) Events event) {
+        log.debug("Removing SCIM filters from cache");
+        synchronized (templates) {
+            templates.clear();
+        }
+    }
+
+    private void logStatistics() {
+        if (lookupCount.incrementAndGet() % STATISTICS_INTERVAL == 0) {
+            log.info("SCIM filter cache statistics. Size: '{}', hits: '{}', misses: '{}', evictions: '{}'", size(),
+                    hitCount.get(), missCount.get(), evictionCount.get());
+        }
+    }
+
+    private int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+}
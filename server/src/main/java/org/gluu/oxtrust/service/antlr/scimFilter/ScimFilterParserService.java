@@ -21,9 +21,11 @@ import org.gluu.oxtrust.model.scim2.BaseScimResource;
 import org.gluu.oxtrust.service.antlr.scimFilter.antlr4.ScimFilterBaseListener;
 import org.gluu.oxtrust.service.antlr.scimFilter.antlr4.ScimFilterLexer;
 import org.gluu.oxtrust.service.antlr.scimFilter.antlr4.ScimFilterParser;
+import org.gluu.oxtrust.service.antlr.scimFilter.util.FilterShape;
 import org.gluu.oxtrust.service.antlr.scimFilter.util.FilterUtil;
 import org.gluu.persist.service.PersistanceFactoryService;
 import org.gluu.search.filter.Filter;
+import org.gluu.util.Pair;
 import org.slf4j.Logger;
 
 /**
@@ -39,6 +41,9 @@ public class ScimFilterParserService {
     @Inject
     private PersistanceFactoryService persistenceFactoryService;
 
+    @Inject
+    private ScimFilterCache filterCache;
+
     private boolean ldapBackend;
 
     public boolean isLdapBackend() {
@@ -94,12 +99,31 @@ public class ScimFilterParserService {
             if (StringUtils.isEmpty(filter))
                 ldapFilter=defaultFilter;
             else {
-                FilterListener filterListener = new FilterListener(clazz, ldapBackend);
-                walkTree(FilterUtil.preprocess(filter, clazz), filterListener);
-                ldapFilter = filterListener.getFilter();
-
-                if (ldapFilter == null)
-                    throw new Exception("An error occurred when building LDAP filter: " + filterListener.getError());
+                String preprocessed = FilterUtil.preprocess(filter, clazz);
+                //Filters only differing in comparison values share the same compiled template
+                FilterShape shape = FilterShape.of(preprocessed);
+                String key = shape == null ? null : clazz.getName() + " " + shape.getTemplate();
+                FilterTemplate template = key == null ? null : filterCache.get(key);
+
+                if (template == null) {
+                    FilterListener filterListener = new FilterListener(clazz, ldapBackend);
+                    walkTree(preprocessed, filterListener);
+                    ldapFilter = filterListener.getFilter();
+
+                    if (ldapFilter == null)
+                        throw new Exception("An error occurred when building LDAP filter: " + filterListener.getError());
+
+                    //Cache only if literals found by parser are the same recognized in the shape
+                    if (key != null && shape.getValues().equals(filterListener.getValues()))
+                        filterCache.put(key, filterListener.getTemplate());
+                } else {
+                    Pair<Filter, String> pair = template.instantiate(shape.getValues(), new SubFilterGenerator(ldapBackend));
+                    ldapFilter = pair.getFirst();
+
+                    if (ldapFilter == null)
+                        throw new Exception("An error occurred when building LDAP filter: " + pair.getSecond());
+                    log.debug("LDAP filter expression computed from cached template was {}", ldapFilter);
+                }
             }
 
             return ldapFilter;
@@ -0,0 +1,148 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.antlr.scimFilter.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The "shape" of a SCIM filter: the filter text with its string and number literals replaced by placeholders, and
+ * the literals themselves in order of appearance. Filters with the same shape only differ in comparison values.
+ * <p>Literals are recognized following the STRING and NUMBER lexer rules of ScimFilter.g4. When the filter contains
+ * text the scanner cannot classify safely, no shape is computed.</p>
+ */
+public class FilterShape {
+
+    private static final String STRING_PLACEHOLDER = "?s";
+    private static final String NUMBER_PLACEHOLDER = "?n";
+
+    private String template;
+    private List<String> values;
+
+    private FilterShape(String template, List<String> values) {
+        this.template = template;
+        this.values = Collections.unmodifiableList(values);
+    }
+
+    /**
+     * @param filter A (preprocessed) filter expression
+     * @return The shape of the filter or null if it can't be computed
+     */
+    public static FilterShape of(String filter) {
+
+        StringBuilder sb = new StringBuilder(filter.length());
+        List<String> values = new ArrayList<>();
+        int n = filter.length();
+        int i = 0;
+
+        while (i < n) {
+            char c = filter.charAt(i);
+
+            if (c == '?') {
+                //Placeholders must not be ambiguous
+                return null;
+            } else if (c == '"') {
+                int j = endOfString(filter, i);
+                if (j == -1)
+                    return null;
+
+                values.add(filter.substring(i, j + 1));
+                sb.append(STRING_PLACEHOLDER);
+                i = j + 1;
+            } else if (isNumberStart(filter, i)) {
+                int j = i + 1;
+                while (j < n && isDigit(filter.charAt(j)))
+                    j++;
+
+                if (j + 1 < n && filter.charAt(j) == '.' && isDigit(filter.charAt(j + 1))) {
+                    j++;
+                    while (j < n && isDigit(filter.charAt(j)))
+                        j++;
+                }
+                if (j < n && isNameChar(filter.charAt(j)))
+                    return null;
+
+                values.add(filter.substring(i, j));
+                sb.append(NUMBER_PLACEHOLDER);
+                i = j;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return new FilterShape(sb.toString(), values);
+
+    }
+
+    private static boolean isNumberStart(String filter, int i) {
+
+        char c = filter.charAt(i);
+        boolean start = isDigit(c) || (c == '-' && i + 1 < filter.length() && isDigit(filter.charAt(i + 1)));
+        return start && (i == 0 || !isNameChar(filter.charAt(i - 1)));
+
+    }
+
+    /**
+     * Finds the closing double quote of the string starting at index passed. Only escapes allowed by ScimFilter.g4 are
+     * accepted
+     * @return Index of closing quote or -1 if the string is not valid
+     */
+    private static int endOfString(String filter, int start) {
+
+        int n = filter.length();
+        int j = start + 1;
+
+        while (j < n) {
+            char c = filter.charAt(j);
+            if (c == '"') {
+                return j;
+            } else if (c == '\\') {
+                if (j + 1 >= n)
+                    return -1;
+
+                char next = filter.charAt(j + 1);
+                if (next == 'u') {
+                    if (j + 5 >= n)
+                        return -1;
+                    for (int k = j + 2; k < j + 6; k++) {
+                        if (Character.digit(filter.charAt(k), 16) == -1)
+                            return -1;
+                    }
+                    j += 6;
+                } else if ("\"\\/bfnrt".indexOf(next) >= 0) {
+                    j += 2;
+                } else {
+                    return -1;
+                }
+            } else if (c < ' ') {
+                return -1;
+            } else {
+                j++;
+            }
+        }
+        return -1;
+
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isNameChar(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '-' || c == '_' || c == ':'
+                || c == '.';
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.scim2;
+
+import java.time.format.DateTimeFormatter;
+
+import org.gluu.model.attribute.AttributeDataType;
+import org.gluu.oxtrust.model.scim2.util.DateUtil;
+
+/**
+ * Converts values of extended attributes between the representation found in the database and the one used in SCIM
+ * resources. There is one converter per {@link AttributeDataType}, so it can be resolved once per extension field.
+ */
+public enum ExtensionFieldConverter {
+
+    STRING {
+        @Override
+        public Object fromStored(String value, boolean ldapBackend) {
+            return value;
+        }
+    },
+
+    DATE {
+        @Override
+        public Object fromStored(String value, boolean ldapBackend) {
+
+            if (ldapBackend) {
+                return DateUtil.generalizedToISOStringDate(value);
+            }
+            //See org.gluu.oxtrust.model.scim2.util.DateUtil.gluuCouchbaseISODate()
+            try {
+                DateTimeFormatter.ISO_DATE_TIME.parse(value);
+                return value;
+            } catch (Exception e) {
+                return null;
+            }
+
+        }
+
+        @Override
+        public Object toStored(Object value, boolean ldapBackend) {
+            //If the date object is passed directly to the persistence layer, it fails for both backend types
+            return ldapBackend ? DateUtil.ISOToGeneralizedStringDate(value.toString())
+                    : DateUtil.gluuCouchbaseISODate(value.toString());
+        }
+    },
+
+    NUMERIC {
+        @Override
+        public Object fromStored(String value, boolean ldapBackend) {
+
+            try {
+                return Integer.valueOf(value);
+            } catch (NumberFormatException e) {
+                try {
+                    return Double.valueOf(value);
+                } catch (NumberFormatException e2) {
+                    return null;
+                }
+            }
+
+        }
+    },
+
+    BOOLEAN {
+        @Override
+        public Object fromStored(String value, boolean ldapBackend) {
+            return Boolean.valueOf(value);
+        }
+    };
+
+    /**
+     * Converts a value read from the database to the value exposed in a SCIM resource
+     * @param value A non-null String value
+     * @param ldapBackend Whether the backend DB is LDAP or not
+     * @return Converted value or null if the value is not consistent with the data type
+     */
+    public abstract Object fromStored(String value, boolean ldapBackend);
+
+    /**
+     * Converts a value of a SCIM resource to the value sent to the persistence layer
+     * @param value A non-null value
+     * @param ldapBackend Whether the backend DB is LDAP or not
+     * @return Converted value (kept as is if no conversion is required for the data type)
+     */
+    public Object toStored(Object value, boolean ldapBackend) {
+        return value;
+    }
+
+    public static ExtensionFieldConverter of(AttributeDataType type) {
+
+        if (type == null) {
+            return STRING;
+        }
+        switch (type) {
+            case DATE:
+                return DATE;
+            case NUMERIC:
+                return NUMERIC;
+            case BOOLEAN:
+                return BOOLEAN;
+            default:
+                return STRING;
+        }
+
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.scim2;
+
+import static org.gluu.oxtrust.model.scim2.Constants.USER_EXT_SCHEMA_DESCRIPTION;
+import static org.gluu.oxtrust.model.scim2.Constants.USER_EXT_SCHEMA_ID;
+import static org.gluu.oxtrust.model.scim2.Constants.USER_EXT_SCHEMA_NAME;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.model.GluuAttribute;
+import org.gluu.oxtrust.model.scim2.BaseScimResource;
+import org.gluu.oxtrust.model.scim2.extensions.Extension;
+import org.gluu.oxtrust.model.scim2.extensions.ExtensionField;
+import org.gluu.oxtrust.model.scim2.user.UserResource;
+import org.gluu.oxtrust.model.scim2.util.IntrospectUtil;
+import org.gluu.oxtrust.service.AttributeService;
+import org.gluu.oxtrust.service.cdi.event.EventType;
+import org.gluu.oxtrust.service.cdi.event.Events;
+import org.slf4j.Logger;
+
+/**
+ * Holds the metadata of SCIM resource extensions built from the SCIM-related attributes. The metadata is compiled
+ * once into an immutable {@link Snapshot} and rebuilt only after attributes change (event
+ * {@link Events#EVENT_CLEAR_ATTRIBUTES}). Callers processing several resources at once (eg. list responses) should
+ * obtain a snapshot once and reuse it.
+ */
+@ApplicationScoped
+@Named
+public class ExtensionRegistry {
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private AttributeService attrService;
+
+    private final AtomicLong version = new AtomicLong();
+
+    private volatile Snapshot snapshot;
+
+    public Snapshot getSnapshot() {
+
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = build(version.get());
+                    //Don't publish a snapshot which failed to build
+                    if (current.getVersion() == version.get()) {
+                        snapshot = current;
+                    }
+                }
+            }
+        }
+        return current;
+
+    }
+
+    public void clearExtensions(@Observes @EventType(Events.EVENT_CLEAR_ATTRIBUTES) Events event) {
+        log.debug("Removing SCIM extensions snapshot");
+        //Same lock as getSnapshot, so a snapshot being built can't be published after it was cleared
+        synchronized (this) {
+            version.incrementAndGet();
+            snapshot = null;
+        }
+    }
+
+    private Snapshot build(long snapshotVersion) {
+
+        Map<Class<? extends BaseScimResource>, List<Extension>> extensions = new HashMap<>();
+        try {
+            // Currently support one extension only for User Resource
+            Map<String, ExtensionField> fields = new HashMap<>();
+
+            for (GluuAttribute attribute : attrService.getSCIMRelatedAttributes()) {
+                if (Optional.ofNullable(attribute.getOxSCIMCustomAttribute()).orElse(false)) {
+                    // first non-null check is needed because certain entries do not have the multivalue attribute set
+
+                    ExtensionField field = new ExtensionField();
+                    field.setDescription(attribute.getDescription());
+                    field.setType(attribute.getDataType());
+                    field.setMultiValued(Optional.ofNullable(attribute.getOxMultiValuedAttribute()).orElse(false));
+                    field.setName(attribute.getName());
+
+                    fields.put(attribute.getName(), field);
+                }
+            }
+
+            Extension ext = new Extension(USER_EXT_SCHEMA_ID);
+            ext.setFields(Collections.unmodifiableMap(fields));
+            ext.setName(USER_EXT_SCHEMA_NAME);
+            ext.setDescription(USER_EXT_SCHEMA_DESCRIPTION);
+
+            extensions.put(UserResource.class, Collections.singletonList(ext));
+        } catch (Exception e) {
+            log.error("An error ocurred when building extension for {}", UserResource.class.getName());
+            log.error(e.getMessage(), e);
+            //Return an empty snapshot which is not published, so next call retries
+            return new Snapshot(-1, extensions);
+        }
+
+        log.debug("Built SCIM extensions snapshot version {}", snapshotVersion);
+        return new Snapshot(snapshotVersion, extensions);
+
+    }
+
+    /**
+     * Immutable view of extensions metadata. Extension fields are indexed by their fully qualified name (urn:name) and
+     * have their value converters resolved in advance.
+     */
+    public static final class Snapshot {
+
+        private final long version;
+        private final Map<Class<? extends BaseScimResource>, List<Extension>> extensions;
+        private final Map<Class<? extends BaseScimResource>, SortedSet<String>> extendedPaths;
+        private final Map<String, Extension> extensionsByAttribute;
+        private final Map<String, ExtensionField> fieldsByAttribute;
+        private final Map<ExtensionField, ExtensionFieldConverter> converters;
+
+        private Snapshot(long version, Map<Class<? extends BaseScimResource>, List<Extension>> extensions) {
+
+            this.version = version;
+            this.extensions = Collections.unmodifiableMap(extensions);
+
+            Map<Class<? extends BaseScimResource>, SortedSet<String>> paths = new HashMap<>();
+            Map<String, Extension> extByAttr = new HashMap<>();
+            Map<String, ExtensionField> fieldByAttr = new HashMap<>();
+            Map<ExtensionField, ExtensionFieldConverter> fieldConverters = new IdentityHashMap<>();
+
+            for (Map.Entry<Class<? extends BaseScimResource>, List<Extension>> entry : extensions.entrySet()) {
+                SortedSet<String> set = new TreeSet<>();
+
+                for (Extension ext : entry.getValue()) {
+                    set.add(ext.getUrn());
+                    set.addAll(IntrospectUtil.getPathsInExtension(ext));
+
+                    for (ExtensionField field : ext.getFields().values()) {
+                        String key = attributeKey(entry.getKey(), ext.getUrn() + ":" + field.getName());
+                        extByAttr.put(key, ext);
+                        fieldByAttr.put(key, field);
+                        fieldConverters.put(field, ExtensionFieldConverter.of(field.getType()));
+                    }
+                }
+                paths.put(entry.getKey(), Collections.unmodifiableSortedSet(set));
+            }
+
+            this.extendedPaths = paths;
+            this.extensionsByAttribute = extByAttr;
+            this.fieldsByAttribute = fieldByAttr;
+            this.converters = fieldConverters;
+
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<Extension> getResourceExtensions(Class<? extends BaseScimResource> cls) {
+            return extensions.getOrDefault(cls, Collections.emptyList());
+        }
+
+        public List<String> getUrnsOfExtensions(Class<? extends BaseScimResource> cls) {
+
+            List<String> list = new ArrayList<>();
+            for (Extension ext : getResourceExtensions(cls))
+                list.add(ext.getUrn());
+            return list;
+
+        }
+
+        /**
+         * @return Sorted set of urns of extensions of the resource class plus the paths of their fields
+         */
+        public SortedSet<String> getExtendedPaths(Class<? extends BaseScimResource> cls) {
+            return extendedPaths.getOrDefault(cls, Collections.emptySortedSet());
+        }
+
+        /**
+         * @param attribute A fully qualified attribute name, ie. urn:name
+         */
+        public Extension extensionOfAttribute(Class<? extends BaseScimResource> cls, String attribute) {
+            return extensionsByAttribute.get(attributeKey(cls, attribute));
+        }
+
+        /**
+         * @param attribute A fully qualified attribute name, ie. urn:name
+         */
+        public ExtensionField getFieldOfExtendedAttribute(Class<? extends BaseScimResource> cls, String attribute) {
+            return fieldsByAttribute.get(attributeKey(cls, attribute));
+        }
+
+        public ExtensionFieldConverter getConverter(ExtensionField field) {
+            ExtensionFieldConverter converter = converters.get(field);
+            return converter == null ? ExtensionFieldConverter.of(field.getType()) : converter;
+        }
+
+        private static String attributeKey(Class<? extends BaseScimResource> cls, String attribute) {
+            return cls.getName() + "#" + attribute;
+        }
+
+    }
+
+}
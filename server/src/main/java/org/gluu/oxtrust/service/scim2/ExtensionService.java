@@ -5,31 +5,17 @@
  */
 package org.gluu.oxtrust.service.scim2;
 
-import static org.gluu.oxtrust.model.scim2.Constants.USER_EXT_SCHEMA_DESCRIPTION;
-import static org.gluu.oxtrust.model.scim2.Constants.USER_EXT_SCHEMA_ID;
-import static org.gluu.oxtrust.model.scim2.Constants.USER_EXT_SCHEMA_NAME;
-
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
 
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
 
-import org.gluu.model.GluuAttribute;
-import org.gluu.model.attribute.AttributeDataType;
 import org.gluu.oxtrust.model.scim2.BaseScimResource;
 import org.gluu.oxtrust.model.scim2.extensions.Extension;
 import org.gluu.oxtrust.model.scim2.extensions.ExtensionField;
-import org.gluu.oxtrust.model.scim2.user.UserResource;
-import org.gluu.oxtrust.model.scim2.util.DateUtil;
-import org.gluu.oxtrust.service.AttributeService;
 import org.slf4j.Logger;
 
 /**
@@ -43,54 +29,22 @@ public class ExtensionService {
     private Logger log;
 
     @Inject
-    private AttributeService attrService;
-
-    public List<Extension> getResourceExtensions(Class<? extends BaseScimResource> cls) {
-
-        List<Extension> list = new ArrayList<Extension>();
-        try {
-            // Currently support one extension only for User Resource
-            if (cls.equals(UserResource.class)) {
-
-                Map<String, ExtensionField> fields = new HashMap<>();
-
-                for (GluuAttribute attribute : attrService.getSCIMRelatedAttributes()) {
-                    if (Optional.ofNullable(attribute.getOxSCIMCustomAttribute()).orElse(false)) {
-                        // first non-null check is needed because certain entries do not have the multivalue attribute set
-
-                        ExtensionField field = new ExtensionField();
-                        field.setDescription(attribute.getDescription());
-                        field.setType(attribute.getDataType());
-                        field.setMultiValued(Optional.ofNullable(attribute.getOxMultiValuedAttribute()).orElse(false));
-                        field.setName(attribute.getName());
-
-                        fields.put(attribute.getName(), field);
-                    }
-                }
-
-                Extension ext = new Extension(USER_EXT_SCHEMA_ID);
-                ext.setFields(fields);
-                ext.setName(USER_EXT_SCHEMA_NAME);
-                ext.setDescription(USER_EXT_SCHEMA_DESCRIPTION);
+    private ExtensionRegistry extensionRegistry;
 
-                list.add(ext);
-            }
-        } catch (Exception e) {
-            log.error("An error ocurred when building extension for {}", cls.getName());
-            log.error(e.getMessage(), e);
-        }
-        return list;
+    /**
+     * Returns the current extensions metadata. Use it to process several resources against the same set of extensions
+     * @return An immutable snapshot of extensions metadata
+     */
+    public ExtensionRegistry.Snapshot getSnapshot() {
+        return extensionRegistry.getSnapshot();
+    }
 
+    public List<Extension> getResourceExtensions(Class<? extends BaseScimResource> cls) {
+        return getSnapshot().getResourceExtensions(cls);
     }
 
     public List<String> getUrnsOfExtensions(Class<? extends BaseScimResource> cls) {
-
-        List<String> list = new ArrayList<String>();
-        for (Extension ext : getResourceExtensions(cls))
-            list.add(ext.getUrn());
-
-        return list;
-
+        return getSnapshot().getUrnsOfExtensions(cls);
     }
 
     /**
@@ -102,28 +56,22 @@ public class ExtensionService {
      * @return Value transformed (kept as is if unrelated to DATEs)
      */
     public Object getAttributeValue(ExtensionField field, Object val, boolean ldapBackend) {
-
-        AttributeDataType type = field.getType();
-        Object value = val;
-        if (type.equals(AttributeDataType.DATE)) {
-            //If the date object is passed directly to the persistence layer, it fails for both backend types
-            value = ldapBackend ? DateUtil.ISOToGeneralizedStringDate(val.toString())
-                    : DateUtil.gluuCouchbaseISODate(val.toString());
-        }
-        return value;
-
+        return getSnapshot().getConverter(field).toStored(val, ldapBackend);
     }
 
     public List<Object> getAttributeValues(ExtensionField field, Collection valuesHolder, boolean ldapBackend) {
 
+        ExtensionFieldConverter converter = getSnapshot().getConverter(field);
         List<Object> values = new ArrayList<>();
         for (Object elem : valuesHolder) {
             // Despite valuesHolder is not null, it can be a collection with null elements...
             if (elem != null) {
-                values.add(getAttributeValue(field, elem, ldapBackend));
+                Object value = converter.toStored(elem, ldapBackend);
+                if (value != null) {
+                    values.add(value);
+                }
             }
         }
-        values.remove(Collections.singletonList(null));
         return values;
 
     }
@@ -144,24 +92,13 @@ public class ExtensionService {
      */
     public List<Object> convertValues(ExtensionField field, String strValues[], boolean ldapBackend) {
 
+        ExtensionFieldConverter converter = getSnapshot().getConverter(field);
         List<Object> values = new ArrayList<>();
 
         for (String val : strValues) {
             // In practice, there should not be nulls in strValues
             if (val != null) {
-                Object value;
-
-                //See org.gluu.oxtrust.model.scim2.util.DateUtil.gluuCouchbaseISODate()
-                if (!ldapBackend && field.getType().equals(AttributeDataType.DATE)) {
-                    try {
-                        DateTimeFormatter.ISO_DATE_TIME.parse(val);
-                        value = val;
-                    } catch (Exception e) {
-                        value = null;
-                    }
-                } else {
-                    value = ExtensionField.valueFromString(field, val);
-                }
+                Object value = converter.fromStored(val, ldapBackend);
                 // won't happen either (value being null) because calls to this method occurs
                 // after lots of validations have taken place
                 if (value != null) {
@@ -175,50 +112,11 @@ public class ExtensionService {
     }
 
     public Extension extensionOfAttribute(Class<? extends BaseScimResource> cls, String attribute) {
-
-        List<Extension> extensions = getResourceExtensions(cls);
-        Extension belong = null;
-
-        try {
-            for (Extension ext : extensions) {
-                if (attribute.startsWith(ext.getUrn() + ":")) {
-                    attribute = attribute.substring(ext.getUrn().length() + 1);
-
-                    for (String fieldName : ext.getFields().keySet())
-                        if (attribute.equals(fieldName)) {
-                            belong = ext;
-                            break;
-                        }
-                }
-            }
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-        }
-        return belong;
-
+        return getSnapshot().extensionOfAttribute(cls, attribute);
     }
 
     public ExtensionField getFieldOfExtendedAttribute(Class<? extends BaseScimResource> cls, String attribute) {
-
-        List<Extension> extensions = getResourceExtensions(cls);
-        ExtensionField field = null;
-
-        try {
-            for (Extension ext : extensions) {
-                if (attribute.startsWith(ext.getUrn() + ":")) {
-                    attribute = attribute.substring(ext.getUrn().length() + 1);
-
-                    for (ExtensionField f : ext.getFields().values())
-                        if (attribute.equals(f.getName())) {
-                            field = f;
-                            break;
-                        }
-                }
-            }
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-        }
-        return field;
+        return getSnapshot().getFieldOfExtendedAttribute(cls, attribute);
     }
 
 }
@@ -0,0 +1,238 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+package org.gluu.oxtrust.service.scim2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.gluu.oxtrust.model.scim.ScimCustomPerson;
+import org.gluu.persist.model.base.CustomObjectAttribute;
+
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+
+/**
+ * Copy of the attribute values of a person as they were loaded from LDAP. Allows to compute the minimal list of
+ * attribute modifications (add/delete of values, replace of attributes) which brings the stored entry to the state of
+ * the person after it was updated in memory
+ */
+public class PersonAttributesSnapshot {
+
+    private static final String OBJECT_CLASS_ATTRIBUTE = "objectClass";
+    private static final String USER_PASSWORD_ATTRIBUTE = "userPassword";
+
+    private final Map<String, List<Object>> attributes;
+    private final List<String> objectClasses;
+
+    private PersonAttributesSnapshot(Map<String, List<Object>> attributes, List<String> objectClasses) {
+        this.attributes = attributes;
+        this.objectClasses = objectClasses;
+    }
+
+    public static PersonAttributesSnapshot of(ScimCustomPerson person) {
+        String[] objectClasses = person.getCustomObjectClasses();
+        return new PersonAttributesSnapshot(getAttributes(person),
+                objectClasses == null ? Collections.<String>emptyList() : Arrays.asList(objectClasses.clone()));
+    }
+
+    /**
+     * @param person Person with the values to store
+     * @param timeEncoder Converts dates to the LDAP generalized time syntax
+     * @return Modifications of the attributes whose values changed (empty if none changed), or null if some changed
+     * value has no safe raw LDAP representation (eg. booleans, numbers or passwords which have to be hashed). In that
+     * case the entry must be updated by the entry manager
+     */
+    public List<Modification> getModifications(ScimCustomPerson person, Function<Date, String> timeEncoder) {
+
+        List<Modification> modifications = new ArrayList<>();
+        Map<String, List<Object>> current = getAttributes(person);
+
+        for (Map.Entry<String, List<Object>> entry : current.entrySet()) {
+            List<Object> stored = attributes.get(entry.getKey());
+            if (!valuesEqual(stored, entry.getValue())) {
+                if (USER_PASSWORD_ATTRIBUTE.equalsIgnoreCase(entry.getKey()))
+                    return null;
+
+                Modification modification = getModification(entry.getKey(), stored, entry.getValue(), timeEncoder);
+                if (modification == null)
+                    return null;
+
+                modifications.add(modification);
+            }
+        }
+
+        //Attributes dropped from the person are removed from the entry as well
+        for (Map.Entry<String, List<Object>> entry : attributes.entrySet()) {
+            if (!current.containsKey(entry.getKey()) && !entry.getValue().isEmpty())
+                modifications.add(new Modification(ModificationType.DELETE, entry.getKey()));
+        }
+
+        //Object classes are only added
+        List<String> added = new ArrayList<>();
+        if (person.getCustomObjectClasses() != null) {
+            for (String objectClass : person.getCustomObjectClasses()) {
+                if (!containsIgnoreCase(objectClasses, objectClass) && !containsIgnoreCase(added, objectClass))
+                    added.add(objectClass);
+            }
+        }
+        if (!added.isEmpty())
+            modifications.add(new Modification(ModificationType.ADD, OBJECT_CLASS_ATTRIBUTE, added.toArray(new String[0])));
+
+        return modifications;
+
+    }
+
+    private static Map<String, List<Object>> getAttributes(ScimCustomPerson person) {
+
+        //LDAP attribute names are case insensitive
+        Map<String, List<Object>> result = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (CustomObjectAttribute attribute : person.getTypedCustomAttributes())
+            result.put(attribute.getName(), getValues(attribute.getValues()));
+
+        //Attributes mapped to fields of the entry
+        result.put("updatedAt", getValues(person.getUpdatedAt() == null ? null : Collections.singletonList(person.getUpdatedAt())));
+        result.put("oxPPID", getValues(person.getOxPPID()));
+        return result;
+
+    }
+
+    private static List<Object> getValues(List<?> values) {
+
+        List<Object> result = new ArrayList<>();
+        if (values != null) {
+            for (Object value : values) {
+                if (value != null && !"".equals(value))
+                    result.add(value);
+            }
+        }
+        return result;
+
+    }
+
+    private static Modification getModification(String name, List<Object> stored, List<Object> current,
+                                                Function<Date, String> timeEncoder) {
+
+        if (current.isEmpty())
+            return new Modification(ModificationType.DELETE, name);
+
+        if (stored == null || stored.isEmpty())
+            return encode(ModificationType.ADD, name, current, timeEncoder);
+
+        //Values appended to the stored ones
+        if (current.size() > stored.size() && valuesEqual(stored, current.subList(0, stored.size()))) {
+            List<Object> appended = current.subList(stored.size(), current.size());
+            if (!containsAny(stored, appended))
+                return encode(ModificationType.ADD, name, appended, timeEncoder);
+        }
+
+        //Some of the stored values removed
+        if (current.size() < stored.size()) {
+            List<Object> removed = getRemovedValues(stored, current);
+            if (removed != null)
+                return encode(ModificationType.DELETE, name, removed, timeEncoder);
+        }
+
+        return encode(ModificationType.REPLACE, name, current, timeEncoder);
+
+    }
+
+    /**
+     * Returns the values of stored missing in current if current is stored with some values removed (keeping order),
+     * otherwise null
+     */
+    private static List<Object> getRemovedValues(List<Object> stored, List<Object> current) {
+
+        List<Object> removed = new ArrayList<>();
+        int i = 0;
+        for (Object value : stored) {
+            if (i < current.size() && valueEquals(value, current.get(i)))
+                i++;
+            else
+                removed.add(value);
+        }
+        return i == current.size() ? removed : null;
+
+    }
+
+    private static Modification encode(ModificationType type, String name, List<Object> values,
+                                       Function<Date, String> timeEncoder) {
+
+        String[] encoded = new String[values.size()];
+        for (int i = 0; i < encoded.length; i++) {
+            Object value = values.get(i);
+            if (value instanceof String)
+                encoded[i] = (String) value;
+            else if (value instanceof Date)
+                encoded[i] = timeEncoder.apply((Date) value);
+            else
+                return null;
+        }
+        return new Modification(type, name, encoded);
+
+    }
+
+    private static boolean valuesEqual(List<Object> values1, List<Object> values2) {
+
+        int size1 = values1 == null ? 0 : values1.size();
+        int size2 = values2 == null ? 0 : values2.size();
+        if (size1 != size2)
+            return false;
+
+        for (int i = 0; i < size1; i++) {
+            if (!valueEquals(values1.get(i), values2.get(i)))
+                return false;
+        }
+        return true;
+
+    }
+
+    /**
+     * Values read from LDAP may be typed differently than the ones set by SCIM code (eg. "true" vs Boolean.TRUE)
+     */
+    private static boolean valueEquals(Object value1, Object value2) {
+
+        if (value1.equals(value2))
+            return true;
+
+        if (value1 instanceof Boolean || value2 instanceof Boolean)
+            return value1.toString().equalsIgnoreCase(value2.toString());
+
+        if (value1.getClass().equals(value2.getClass()))
+            return false;
+
+        return value1.toString().equals(value2.toString());
+
+    }
+
+    private static boolean containsAny(List<Object> values, List<Object> candidates) {
+
+        for (Object candidate : candidates) {
+            for (Object value : values) {
+                if (valueEquals(value, candidate))
+                    return true;
+            }
+        }
+        return false;
+
+    }
+
+    private static boolean containsIgnoreCase(List<String> values, String value) {
+
+        for (String item : values) {
+            if (item.equalsIgnoreCase(value))
+                return true;
+        }
+        return false;
+
+    }
+
+}
@@ -7,8 +7,11 @@ package org.gluu.oxtrust.service.scim2;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
@@ -25,11 +28,13 @@ import org.gluu.oxtrust.model.scim2.group.GroupResource;
 import org.gluu.oxtrust.model.scim2.group.Member;
 import org.gluu.oxtrust.model.scim2.user.UserResource;
 import org.gluu.oxtrust.model.scim2.util.ScimResourceUtil;
+import org.gluu.oxtrust.service.GroupMembershipSyncService;
 import org.gluu.oxtrust.service.IGroupService;
 import org.gluu.oxtrust.service.IPersonService;
 import org.gluu.oxtrust.service.OrganizationService;
 import org.gluu.oxtrust.service.antlr.scimFilter.ScimFilterParserService;
 import org.gluu.oxtrust.service.external.ExternalScimService;
+import org.gluu.oxtrust.util.DnUtil;
 import org.gluu.persist.PersistenceEntryManager;
 import org.gluu.persist.model.PagedResult;
 import org.gluu.persist.model.SortOrder;
@@ -48,6 +53,14 @@ public class Scim2GroupService implements Serializable {
 	 */
 	private static final long serialVersionUID = 1555887165477267426L;
 
+	private static final String[] MEMBER_RETURN_ATTRIBUTES = { "inum", "displayName" };
+
+	/**
+	 * Number of group members resolved at once when group is transferred to
+	 * resource
+	 */
+	private static final int MEMBERS_PAGE_SIZE = 500;
+
 	@Inject
 	private Logger log;
 
@@ -72,6 +85,9 @@ public class Scim2GroupService implements Serializable {
 	@Inject
 	private PersistenceEntryManager ldapEntryManager;
 
+	@Inject
+	private GroupMembershipSyncService groupMembershipSyncService;
+
 	private void transferAttributesToGroup(GroupResource res, GluuGroup group, String usersUrl) {
 
 		// externalId (so oxTrustExternalId) not part of LDAP schema
@@ -90,9 +106,15 @@ public class Scim2GroupService implements Serializable {
 			List<String> listMembers = new ArrayList<>();
 			List<Member> invalidMembers = new ArrayList<>();
 
+			List<String> inums = new ArrayList<>();
 			for (Member member : members) {
-				String inum = member.getValue(); // it's not null as it is required in GroupResource
-				GluuCustomPerson person = personService.getPersonByInum(inum);
+				inums.add(member.getValue()); // it's not null as it is required in GroupResource
+			}
+			Map<String, GluuCustomPerson> personsByInum = getPersonsByInum(inums);
+
+			for (Member member : members) {
+				String inum = member.getValue();
+				GluuCustomPerson person = personsByInum.get(inum.toLowerCase());
 
 				if (person == null) {
 					log.info("Member identified by {} does not exist. Ignored", inum);
@@ -126,6 +148,18 @@ public class Scim2GroupService implements Serializable {
 
 	public void transferAttributesToGroupResource(GluuGroup gluuGroup, GroupResource res, String groupsUrl,
 			String usersUrl) {
+		transferAttributesToGroupResource(gluuGroup, res, groupsUrl, usersUrl, true);
+	}
+
+	/**
+	 * Transfers group to SCIM resource
+	 * 
+	 * @param fillMembers
+	 *            If false members aren't resolved and aren't set in resource.
+	 *            Useful when response should not contain members
+	 */
+	public void transferAttributesToGroupResource(GluuGroup gluuGroup, GroupResource res, String groupsUrl,
+			String usersUrl, boolean fillMembers) {
 
 		res.setId(gluuGroup.getInum());
 
@@ -142,30 +176,59 @@ public class Scim2GroupService implements Serializable {
 
 		// Transfer members from GluuGroup to GroupResource
 		List<String> memberDNs = gluuGroup.getMembers();
-		if (memberDNs != null) {
+		if (fillMembers && memberDNs != null) {
 			Set<Member> members = new HashSet<>();
 
-			for (String dn : memberDNs) {
-				GluuCustomPerson person = null;
-				try {
-					person = personService.getPersonByDn(dn);
-				} catch (Exception e) {
-					log.warn("Wrong member entry {} found in group {}", dn, gluuGroup.getDisplayName());
-				}
-				if (person != null) {
-					Member aMember = new Member();
-					aMember.setValue(person.getInum());
-					aMember.setRef(usersUrl + "/" + person.getInum());
-					aMember.setType(ScimResourceUtil.getType(UserResource.class));
-					aMember.setDisplay(person.getDisplayName());
-
-					members.add(aMember);
+			// Resolve members page by page to bound number of loaded entries
+			for (int i = 0; i < memberDNs.size(); i += MEMBERS_PAGE_SIZE) {
+				List<String> pageDNs = memberDNs.subList(i, Math.min(i + MEMBERS_PAGE_SIZE, memberDNs.size()));
+				Map<String, GluuCustomPerson> personsByDn = getPersonsByDn(pageDNs);
+
+				for (String dn : pageDNs) {
+					GluuCustomPerson person = personsByDn.get(DnUtil.normalize(dn));
+					if (person == null) {
+						log.warn("Wrong member entry {} found in group {}", dn, gluuGroup.getDisplayName());
+					} else {
+						Member aMember = new Member();
+						aMember.setValue(person.getInum());
+						aMember.setRef(usersUrl + "/" + person.getInum());
+						aMember.setType(ScimResourceUtil.getType(UserResource.class));
+						aMember.setDisplay(person.getDisplayName());
+
+						members.add(aMember);
+					}
 				}
 			}
 			res.setMembers(members);
 		}
 	}
 
+	private Map<String, GluuCustomPerson> getPersonsByInum(Collection<String> inums) {
+		Map<String, GluuCustomPerson> result = new HashMap<>();
+		try {
+			for (GluuCustomPerson person : personService.getPersonsByInums(inums, MEMBER_RETURN_ATTRIBUTES)) {
+				result.put(person.getInum().toLowerCase(), person);
+			}
+		} catch (Exception e) {
+			log.error("Failed to load group members", e);
+		}
+
+		return result;
+	}
+
+	private Map<String, GluuCustomPerson> getPersonsByDn(Collection<String> dns) {
+		Map<String, GluuCustomPerson> result = new HashMap<>();
+		try {
+			for (GluuCustomPerson person : personService.getPersonsByDns(dns, MEMBER_RETURN_ATTRIBUTES)) {
+				result.put(DnUtil.normalize(person.getDn()), person);
+			}
+		} catch (Exception e) {
+			log.error("Failed to load group members", e);
+		}
+
+		return result;
+	}
+
 	/**
 	 * Inserts a new group in LDAP based on the SCIM Resource passed There is no
 	 * need to check attributes mutability in this case as there are no original
@@ -280,6 +343,11 @@ public class Scim2GroupService implements Serializable {
 
 	public PagedResult<BaseScimResource> searchGroups(String filter, String sortBy, SortOrder sortOrder, int startIndex,
 			int count, String groupsUrl, String usersUrl, int maxCount) throws Exception {
+		return searchGroups(filter, sortBy, sortOrder, startIndex, count, groupsUrl, usersUrl, maxCount, true);
+	}
+
+	public PagedResult<BaseScimResource> searchGroups(String filter, String sortBy, SortOrder sortOrder, int startIndex,
+			int count, String groupsUrl, String usersUrl, int maxCount, boolean fillMembers) throws Exception {
 
 		Filter ldapFilter = scimFilterParserService.createFilter(filter, Filter.createPresenceFilter("inum"), GroupResource.class);
 		log.info("Executing search for groups using: ldapfilter '{}', sortBy '{}', sortOrder '{}', startIndex '{}', count '{}'",
@@ -291,7 +359,7 @@ public class Scim2GroupService implements Serializable {
 
 		for (GluuGroup group : list.getEntries()) {
 			GroupResource scimGroup = new GroupResource();
-			transferAttributesToGroupResource(group, scimGroup, groupsUrl, usersUrl);
+			transferAttributesToGroupResource(group, scimGroup, groupsUrl, usersUrl, fillMembers);
 			resources.add(scimGroup);
 		}
 		log.info("Found {} matching entries - returning {}", list.getTotalEntriesCount(), list.getEntries().size());
@@ -310,54 +378,7 @@ public class Scim2GroupService implements Serializable {
 		log.debug("syncMemberAttributeInPerson. Updating memberOf attribute in user LDAP entries");
 		log.trace("Before member dns {}; After member dns {}", beforeMemberDns, afterMemberDns);
 
-		// Build 2 sets of DNs
-		Set<String> before = new HashSet<String>();
-		if (beforeMemberDns != null)
-			before.addAll(beforeMemberDns);
-
-		Set<String> after = new HashSet<String>();
-		if (afterMemberDns != null)
-			after.addAll(afterMemberDns);
-
-		// Do removals
-		for (String dn : before) {
-			if (!after.contains(dn)) {
-				try {
-					GluuCustomPerson gluuPerson = personService.getPersonByDn(dn);
-
-					List<String> memberOf = new ArrayList<String>();
-					memberOf.addAll(gluuPerson.getMemberOf());
-					memberOf.remove(groupDn);
-
-					gluuPerson.setMemberOf(memberOf);
-					personService.updatePerson(gluuPerson);
-				} catch (Exception e) {
-					log.error("An error occurred while removing user {} from group {}", dn, groupDn);
-					log.error(e.getMessage(), e);
-				}
-			}
-		}
-
-		// Do insertions
-		for (String dn : after) {
-			if (!before.contains(dn)) {
-				try {
-					GluuCustomPerson gluuPerson = personService.getPersonByDn(dn);
-
-					List<String> memberOf = new ArrayList<String>();
-					memberOf.add(groupDn);
-
-					if (gluuPerson.getMemberOf() != null)
-						memberOf.addAll(gluuPerson.getMemberOf());
-
-					gluuPerson.setMemberOf(memberOf);
-					personService.updatePerson(gluuPerson);
-				} catch (Exception e) {
-					log.error("An error occurred while adding user {} to group {}", dn, groupDn);
-					log.error(e.getMessage(), e);
-				}
-			}
-		}
+		groupMembershipSyncService.syncMemberOf(groupDn, beforeMemberDns, afterMemberDns);
 
 	}
 
@@ -55,6 +55,9 @@ public class Scim2PatchService {
     @Inject
     private ExtensionService extService;
 
+    //Thread-safe once configured, so it's shared by all operations
+    private ObjectMapper mapper = new ObjectMapper();
+
     public BaseScimResource applyPatchOperation(BaseScimResource resource, PatchOperation operation) throws Exception {
 
         BaseScimResource result = null;
@@ -132,7 +135,6 @@ public class Scim2PatchService {
         }
 
         //Try parse genericMap as an instance of the resource
-        ObjectMapper mapper = new ObjectMapper();
         BaseScimResource alter = opType.equals(PatchOperationType.REMOVE) ? resource : mapper.convertValue(genericMap, clazz);
         List<Extension> extensions = extService.getResourceExtensions(clazz);
 
@@ -156,7 +158,6 @@ public class Scim2PatchService {
             throws SCIMException, InvalidAttributeValueException {
 
         String path = operation.getPath();
-        ObjectMapper mapper = new ObjectMapper();
         Class<? extends BaseScimResource> cls = resource.getClass();
         Map<String, Object> resourceAsMap = mapper.convertValue(resource, new TypeReference<Map<String, Object>>() { });
         List<Map<String, Object>> list;
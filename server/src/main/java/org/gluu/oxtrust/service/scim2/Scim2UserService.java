@@ -7,18 +7,22 @@ package org.gluu.oxtrust.service.scim2;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.management.InvalidAttributeValueException;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response.Status;
 
@@ -47,6 +51,8 @@ import org.gluu.oxtrust.service.IGroupService;
 import org.gluu.oxtrust.service.IPersonService;
 import org.gluu.oxtrust.service.antlr.scimFilter.ScimFilterParserService;
 import org.gluu.oxtrust.service.external.ExternalScimService;
+import org.gluu.oxtrust.service.scim2.serialization.ScimResourceSerializer;
+import org.gluu.oxtrust.util.DnUtil;
 import org.gluu.oxtrust.util.ServiceUtil;
 import org.gluu.oxtrust.ws.rs.scim2.GroupWebService;
 import org.gluu.persist.PersistenceEntryManager;
@@ -76,6 +82,28 @@ public class Scim2UserService implements Serializable {
 	 */
 	private static final long serialVersionUID = -5948992380577056420L;
 
+	private static final String[] GROUP_RETURN_ATTRIBUTES = { "inum", "displayName" };
+
+	/**
+	 * LDAP attributes read by transferAttributesToUserResource for a top-level
+	 * SCIM attribute which are not (or not only) its store references
+	 */
+	private static final Map<String, List<String>> USER_READ_ATTRIBUTES;
+
+	static {
+		Map<String, List<String>> map = new HashMap<>();
+		map.put("meta", Arrays.asList("oxTrustMetaCreated", "oxCreationTimestamp", "oxTrustMetaLastModified",
+				"updatedAt", "oxTrustMetaLocation", "oxTrustMetaVersion"));
+		map.put("name", Arrays.asList("givenName", "sn", "middleName", "oxTrusthonorificPrefix",
+				"oxTrusthonorificSuffix", "oxTrustNameFormatted"));
+		map.put("nickName", Collections.singletonList("nickname"));
+		map.put("timezone", Collections.singletonList("zoneinfo"));
+		map.put("active", Arrays.asList("oxTrustActive", "gluuStatus"));
+		map.put("emails", Arrays.asList("oxTrustEmail", "mail"));
+		map.put("groups", Collections.singletonList("memberOf"));
+		USER_READ_ATTRIBUTES = Collections.unmodifiableMap(map);
+	}
+
 	@Inject
 	private Logger log;
 
@@ -103,6 +131,9 @@ public class Scim2UserService implements Serializable {
 	@Inject
 	private ScimFilterParserService scimFilterParserService;
 
+	@Inject
+	private ScimResourceSerializer resourceSerializer;
+
 	@Inject
 	private PersistenceEntryManager ldapEntryManager;
 
@@ -266,6 +297,49 @@ public class Scim2UserService implements Serializable {
 	}
 
 	public void transferAttributesToUserResource(ScimCustomPerson person, UserResource res, String url) {
+		transferAttributesToUserResource(person, res, url, getGroupsByDn(Collections.singletonList(person)));
+	}
+
+	/**
+	 * Same as {@link #transferAttributesToUserResource(ScimCustomPerson, UserResource, String)} but allows to skip
+	 * the lookup of groups (eg. when they are not part of the response)
+	 */
+	public void transferAttributesToUserResource(ScimCustomPerson person, UserResource res, String url, boolean includeGroups) {
+		transferAttributesToUserResource(person, res, url,
+				includeGroups ? getGroupsByDn(Collections.singletonList(person)) : null);
+	}
+
+	/**
+	 * Resolves in batch the groups the persons passed belong to
+	 * @param persons List of persons
+	 * @return Map of normalized group DN to group with inum and display name loaded
+	 */
+	private Map<String, GluuGroup> getGroupsByDn(List<ScimCustomPerson> persons) {
+
+		Set<String> groupDNs = new HashSet<>();
+		for (ScimCustomPerson person : persons) {
+			if (person.getMemberOf() != null) {
+				groupDNs.addAll(person.getMemberOf());
+			}
+		}
+
+		Map<String, GluuGroup> groupsByDn = new HashMap<>();
+		if (groupDNs.size() > 0) {
+			try {
+				for (GluuGroup gluuGroup : groupService.getGroupsByDns(groupDNs, GROUP_RETURN_ATTRIBUTES)) {
+					groupsByDn.put(DnUtil.normalize(gluuGroup.getDn()), gluuGroup);
+				}
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+			}
+			log.debug("Resolved {} out of {} groups", groupsByDn.size(), groupDNs.size());
+		}
+		return groupsByDn;
+
+	}
+
+	private void transferAttributesToUserResource(ScimCustomPerson person, UserResource res, String url,
+			Map<String, GluuGroup> groupsByDn) {
 
 		log.debug("transferAttributesToUserResource");
 
@@ -346,27 +420,26 @@ public class Scim2UserService implements Serializable {
 		res.setAddresses(getAttributeListValue(person, Address.class, "oxTrustAddresses"));
 
 		List<String> listOfGroups = person.getMemberOf();
-		if (listOfGroups != null && listOfGroups.size() > 0) {
+		if (groupsByDn != null && listOfGroups != null && listOfGroups.size() > 0) {
 			List<Group> groupList = new ArrayList<Group>();
 
 			for (String groupDN : listOfGroups) {
-				try {
-					GluuGroup gluuGroup = groupService.getGroupByDn(groupDN);
-
-					Group group = new Group();
-					group.setValue(gluuGroup.getInum());
-					String reference = groupWS.getEndpointUrl() + "/" + gluuGroup.getInum();
-					group.setRef(reference);
-					group.setDisplay(gluuGroup.getDisplayName());
-					group.setType(Group.Type.DIRECT); // Only support direct membership: see section 4.1.2 of RFC 7644
-
-					groupList.add(group);
-				} catch (Exception e) {
+				GluuGroup gluuGroup = groupsByDn.get(DnUtil.normalize(groupDN));
+				if (gluuGroup == null) {
 					log.warn(
 							"transferAttributesToUserResource. Group with dn {} could not be added to User Resource. {}",
 							groupDN, person.getUid());
-					log.error(e.getMessage(), e);
+					continue;
 				}
+
+				Group group = new Group();
+				group.setValue(gluuGroup.getInum());
+				String reference = groupWS.getEndpointUrl() + "/" + gluuGroup.getInum();
+				group.setRef(reference);
+				group.setDisplay(gluuGroup.getDisplayName());
+				group.setType(Group.Type.DIRECT); // Only support direct membership: see section 4.1.2 of RFC 7644
+
+				groupList.add(group);
 			}
 			if (groupList.size() > 0) {
                 res.setGroups(groupList);
@@ -494,7 +567,7 @@ public class Scim2UserService implements Serializable {
 
 	}
 
-	public UserResource updateUser(String id, UserResource user, String url) throws InvalidAttributeValueException {
+	public UserResource updateUser(String id, UserResource user, String url) throws Exception {
 
 		ScimCustomPerson gluuPerson = userPersistenceHelper.getPersonByInum(id); // This is never null (see decorator involved)
 		UserResource tmpUser = new UserResource();
@@ -512,7 +585,24 @@ public class Scim2UserService implements Serializable {
 
 	}
 
-	public void replacePersonInfo(ScimCustomPerson gluuPerson, UserResource user, String url) {
+	public void replacePersonInfo(ScimCustomPerson gluuPerson, UserResource user, String url) throws Exception {
+		replacePersonInfo(gluuPerson, PersonAttributesSnapshot.of(gluuPerson), user, url, true);
+	}
+
+	/**
+	 * Replaces the information found in person with the contents of user. Only the LDAP attributes whose values
+	 * differ from the ones person had when it was loaded are written
+	 * 
+	 * @param gluuPerson
+	 *            Person to update
+	 * @param original
+	 *            Attributes of gluuPerson as they were loaded
+	 * @param refreshResource
+	 *            Whether user has to reflect the changes made by custom scripts.
+	 *            Not needed when user is not returned to the caller
+	 */
+	public void replacePersonInfo(ScimCustomPerson gluuPerson, PersonAttributesSnapshot original, UserResource user,
+			String url, boolean refreshResource) throws Exception {
 		transferAttributesToPerson(user, gluuPerson);
 		writeCommonName(gluuPerson);
 
@@ -526,12 +616,14 @@ public class Scim2UserService implements Serializable {
 						Status.PRECONDITION_FAILED);
 			}
 
-			userPersistenceHelper.updatePerson(gluuPerson);
+			userPersistenceHelper.updatePerson(gluuPerson, original);
 			// Copy back to user the info from gluuPerson
-			transferAttributesToUserResource(gluuPerson, user, url);
+			if (refreshResource) {
+				transferAttributesToUserResource(gluuPerson, user, url);
+			}
 			externalScimService.executeScimPostUpdateUserMethods(gluuPerson);
 		} else {
-            userPersistenceHelper.updatePerson(gluuPerson);
+			userPersistenceHelper.updatePerson(gluuPerson, original);
 		}
 
 	}
@@ -562,18 +654,33 @@ public class Scim2UserService implements Serializable {
 
 	public PagedResult<BaseScimResource> searchUsers(String filter, String sortBy, SortOrder sortOrder, int startIndex,
 			int count, String url, int maxCount) throws Exception {
+		return searchUsers(filter, sortBy, sortOrder, startIndex, count, url, maxCount, null, null);
+	}
+
+	/**
+	 * Same as {@link #searchUsers(String, String, SortOrder, int, int, String, int)}
+	 * but only the attributes needed to render the users according to
+	 * <code>attrsList</code> and <code>excludedAttrsList</code> are loaded
+	 */
+	public PagedResult<BaseScimResource> searchUsers(String filter, String sortBy, SortOrder sortOrder, int startIndex,
+			int count, String url, int maxCount, String attrsList, String excludedAttrsList) throws Exception {
 
 		Filter ldapFilter = scimFilterParserService.createFilter(filter, Filter.createPresenceFilter("inum"), UserResource.class);
-		log.info("Executing search for users using: ldapfilter '{}', sortBy '{}', sortOrder '{}', startIndex '{}', count '{}'",
-				ldapFilter.toString(), sortBy, sortOrder.getValue(), startIndex, count);
+		String[] returnAttributes = getReturnAttributes(attrsList, excludedAttrsList);
+		log.info("Executing search for users using: ldapfilter '{}', sortBy '{}', sortOrder '{}', startIndex '{}', count '{}', returnAttributes '{}'",
+				ldapFilter.toString(), sortBy, sortOrder.getValue(), startIndex, count,
+				returnAttributes == null ? null : Arrays.toString(returnAttributes));
 
 		PagedResult<ScimCustomPerson> list = ldapEntryManager.findPagedEntries(personService.getDnForPerson(null),
-				ScimCustomPerson.class, ldapFilter, null, sortBy, sortOrder, startIndex - 1, count, maxCount);
+				ScimCustomPerson.class, ldapFilter, returnAttributes, sortBy, sortOrder, startIndex - 1, count, maxCount);
 		List<BaseScimResource> resources = new ArrayList<BaseScimResource>();
 
+		// Groups of all users in the page are resolved at once
+		Map<String, GluuGroup> groupsByDn = getGroupsByDn(list.getEntries());
+
 		for (ScimCustomPerson person : list.getEntries()) {
 			UserResource scimUsr = new UserResource();
-			transferAttributesToUserResource(person, scimUsr, url);
+			transferAttributesToUserResource(person, scimUsr, url, groupsByDn);
 			resources.add(scimUsr);
 		}
 		log.info("Found {} matching entries - returning {}", list.getTotalEntriesCount(), list.getEntries().size());
@@ -586,6 +693,107 @@ public class Scim2UserService implements Serializable {
 
 	}
 
+	/**
+	 * Tells whether a response built with the attributes/excludedAttributes
+	 * parameters passed contains something else than the id of the user
+	 */
+	public boolean isResourceRequested(String attrsList, String excludedAttrsList) {
+
+		for (String path : getIncludedPaths(attrsList, excludedAttrsList)) {
+			if (!path.equals("id") && !path.equals("schemas")) {
+				return true;
+			}
+		}
+		return false;
+
+	}
+
+	/**
+	 * Tells whether a response built with the attributes/excludedAttributes
+	 * parameters passed contains the groups of the user
+	 */
+	public boolean isGroupsRequested(String attrsList, String excludedAttrsList) {
+
+		for (String path : getIncludedPaths(attrsList, excludedAttrsList)) {
+			if (path.equals("groups") || path.startsWith("groups.")) {
+				return true;
+			}
+		}
+		return false;
+
+	}
+
+	private SortedSet<String> getIncludedPaths(String attrsList, String excludedAttrsList) {
+		return resourceSerializer.getIncludedPaths(UserResource.class, StringUtils.isEmpty(attrsList) ? null : attrsList,
+				excludedAttrsList, extService.getSnapshot());
+	}
+
+	/**
+	 * Translates SCIM attributes/excludedAttributes parameters into the set of
+	 * LDAP attributes needed to build the users. Returns null (all attributes)
+	 * when no projection was requested
+	 */
+	String[] getReturnAttributes(String attrsList, String excludedAttrsList) {
+
+		if (StringUtils.isEmpty(attrsList) && StringUtils.isEmpty(excludedAttrsList)) {
+			return null;
+		}
+
+		ExtensionRegistry.Snapshot extensions = extService.getSnapshot();
+		SortedSet<String> paths = resourceSerializer.getIncludedPaths(UserResource.class,
+				StringUtils.isEmpty(attrsList) ? null : attrsList, excludedAttrsList, extensions);
+
+		Set<String> attributes = getReturnAttributes(paths, extensions.getResourceExtensions(UserResource.class));
+		log.debug("getReturnAttributes. SCIM attributes {} map to LDAP attributes {}", paths, attributes);
+
+		return attributes.toArray(new String[0]);
+
+	}
+
+	/**
+	 * Maps SCIM attribute paths of users to the LDAP attributes which
+	 * transferAttributesToUserResource reads to build them
+	 */
+	static Set<String> getReturnAttributes(Collection<String> paths, List<Extension> extensions) {
+
+		Map<String, String> storeRefs = IntrospectUtil.storeRefs.get(UserResource.class);
+
+		Set<String> attributes = new HashSet<>();
+		// inum is needed for id and meta.location. gluuStatus is always read to compute active
+		attributes.add("inum");
+		attributes.add("gluuStatus");
+		// Extended attributes are always read, so schemas of every user reflect the extensions it has
+		for (Extension ext : extensions) {
+			attributes.addAll(ext.getFields().keySet());
+		}
+
+		for (String path : paths) {
+			boolean extensionPath = false;
+			for (Extension ext : extensions) {
+				if (path.equals(ext.getUrn()) || path.startsWith(ext.getUrn() + ".")) {
+					extensionPath = true;
+					break;
+				}
+			}
+			if (extensionPath) {
+				continue;
+			}
+
+			String ref = storeRefs.get(path);
+			if (ref != null) {
+				attributes.add(ref);
+			}
+
+			int i = path.indexOf(".");
+			List<String> readAttributes = USER_READ_ATTRIBUTES.get(i < 0 ? path : path.substring(0, i));
+			if (readAttributes != null) {
+				attributes.addAll(readAttributes);
+			}
+		}
+		return attributes;
+
+	}
+
 	// See: https://github.com/GluuFederation/oxTrust/issues/800
 	public void removePPIDsBranch(String dn) {
 		try {
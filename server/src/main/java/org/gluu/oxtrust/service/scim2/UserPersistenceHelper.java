@@ -1,6 +1,7 @@
 package org.gluu.oxtrust.service.scim2;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unboundid.ldap.sdk.Modification;
 
 import org.gluu.oxtrust.model.GluuGroup;
 import org.gluu.oxtrust.model.scim.ScimCustomPerson;
@@ -10,6 +11,9 @@ import org.gluu.oxtrust.service.IGroupService;
 import org.gluu.oxtrust.service.IPersonService;
 import org.gluu.oxtrust.util.ServiceUtil;
 import org.gluu.persist.PersistenceEntryManager;
+import org.gluu.persist.exception.EntryPersistenceException;
+import org.gluu.persist.ldap.operation.LdapOperationService;
+import org.gluu.persist.operation.PersistenceOperationService;
 import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 
@@ -65,6 +69,38 @@ public class UserPersistenceHelper {
     }
 
     public void updatePerson(ScimCustomPerson person) {
+        setUpdateDate(person);
+        persistenceEntryManager.merge(person);
+    }
+
+    /**
+     * Updates only the attributes of person whose values differ from the ones in the snapshot taken when person was
+     * loaded. When the backend is not LDAP or some changed value can't be written as is, the whole entry is merged
+     * @param person Person to store
+     * @param original Attributes of person as they were loaded
+     */
+    public void updatePerson(ScimCustomPerson person, PersonAttributesSnapshot original) throws Exception {
+
+        setUpdateDate(person);
+
+        PersistenceOperationService operationService = persistenceEntryManager.getOperationService();
+        if (operationService instanceof LdapOperationService) {
+            final String dn = person.getDn();
+            List<Modification> modifications = original.getModifications(person,
+                    date -> persistenceEntryManager.encodeTime(dn, date));
+
+            if (modifications != null) {
+                log.debug("Updating {} attributes of person {}", modifications.size(), dn);
+                if (!modifications.isEmpty() && !((LdapOperationService) operationService).updateEntry(dn, modifications))
+                    throw new EntryPersistenceException("Failed to update person " + dn);
+                return;
+            }
+        }
+        persistenceEntryManager.merge(person);
+
+    }
+
+    private void setUpdateDate(ScimCustomPerson person) {
 
         Date updateDate = new Date();
         person.setUpdatedAt(updateDate);
@@ -72,7 +108,6 @@ public class UserPersistenceHelper {
             person.setAttribute("oxTrustMetaLastModified",
                     ISODateTimeFormat.dateTime().withZoneUTC().print(updateDate.getTime()));
         }
-        persistenceEntryManager.merge(person);
 
     }
 
@@ -0,0 +1,59 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.scim2.serialization;
+
+import java.util.SortedSet;
+
+import com.fasterxml.jackson.core.filter.TokenFilter;
+
+/**
+ * A jackson token filter that lets pass only the properties whose paths belong to a set of attribute paths (as computed
+ * by {@link ScimResourceSerializer}). Null values are dropped, and used in conjunction with
+ * {@link com.fasterxml.jackson.core.filter.FilteringGeneratorDelegate} (with path inclusion enabled) objects and
+ * arrays that end up empty are not written at all.
+ * <p>Section 2.5 of RFC 7643: When a resource is expressed in JSON format, unassigned attributes, although they are
+ * defined in schema, MAY be omitted for compactness</p>
+ */
+public class IncludeSetTokenFilter extends TokenFilter {
+
+    private final String prefix;
+    private final SortedSet<String> include;
+
+    public IncludeSetTokenFilter(SortedSet<String> include) {
+        this("", include);
+    }
+
+    private IncludeSetTokenFilter(String prefix, SortedSet<String> include) {
+        this.prefix = prefix;
+        this.include = include;
+    }
+
+    @Override
+    public TokenFilter includeProperty(String name) {
+
+        String key = name.startsWith("$") ? name.substring(1) : name;     //makes attributes like $ref to be accepted...
+        String property = (prefix.length() == 0) ? key : prefix + "." + key;
+        return containsProperty(include, property) ? new IncludeSetTokenFilter(property, include) : null;
+
+    }
+
+    @Override
+    public boolean includeNull() {
+        return false;
+    }
+
+    static boolean containsProperty(SortedSet<String> properties, String property) {
+
+        if (properties.contains(property)) {
+            return true;
+        }
+        //Sub-attributes of property (if any) are contiguous in the sorted set
+        SortedSet<String> subProperties = properties.tailSet(property + ".");
+        return !subProperties.isEmpty() && subProperties.first().startsWith(property + ".");
+
+    }
+
+}
@@ -6,30 +6,36 @@
 package org.gluu.oxtrust.service.scim2.serialization;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
 
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import org.gluu.oxtrust.model.scim2.BaseScimResource;
 import org.gluu.oxtrust.model.scim2.ListResponse;
+import org.gluu.oxtrust.service.scim2.ExtensionRegistry;
 
 /**
  * Created by jgomer on 2017-10-01.
  */
 public class ListResponseJsonSerializer extends JsonSerializer<ListResponse> {
 
+    /**
+     * Names of serialization attributes (see {@link com.fasterxml.jackson.databind.ObjectWriter#withAttribute(Object, Object)})
+     * which override the parameters of a serializer shared by several requests
+     */
+    public static final String ATTRIBUTES_ATTRIBUTE = "scim.attributes";
+    public static final String EXCLUDED_ATTRIBUTES_ATTRIBUTE = "scim.excludedAttributes";
+    public static final String SKIP_RESULTS_ATTRIBUTE = "scim.skipResults";
+
     private ScimResourceSerializer resourceSerializer;
-    private ObjectMapper mapper = new ObjectMapper();
 
     private String attributes;
     private String excludeAttributes;
     private boolean skipResults;
 
-    private List<JsonNode> jsonResources;
-
     //why not to inject the resource serializer instead of passing it as parameter? weld simply does not like it!
     public ListResponseJsonSerializer(ScimResourceSerializer serializer) {
         resourceSerializer = serializer;
@@ -42,13 +48,13 @@ public class ListResponseJsonSerializer extends JsonSerializer<ListResponse> {
         this.skipResults = skipResults;
     }
 
-    public void setJsonResources(List<JsonNode> resources) {
-        this.jsonResources = resources;
-    }
-
     @Override
     public void serialize(ListResponse listResponse, JsonGenerator jGen, SerializerProvider provider) throws IOException {
 
+        String attributes = getParameter(provider, ATTRIBUTES_ATTRIBUTE, this.attributes);
+        String excludeAttributes = getParameter(provider, EXCLUDED_ATTRIBUTES_ATTRIBUTE, this.excludeAttributes);
+        boolean skipResults = getParameter(provider, SKIP_RESULTS_ATTRIBUTE, this.skipResults);
+
         try {
             jGen.writeStartObject();
 
@@ -71,13 +77,19 @@ public class ListResponseJsonSerializer extends JsonSerializer<ListResponse> {
                     jGen.writeArrayFieldStart("Resources");
 
                     if (listResponse.getResources().size() > 0) {
+                        //All resources of the page are rendered against the same extensions metadata. Include sets
+                        //are computed once per distinct resource type and schemas
+                        ExtensionRegistry.Snapshot extensions = resourceSerializer.getExtensionsSnapshot();
+                        Map<String, SortedSet<String>> includeSets = new HashMap<>();
+
                         for (BaseScimResource resource : listResponse.getResources()) {
-                            JsonNode jsonResource = mapper.readTree(resourceSerializer.serialize(resource, attributes, excludeAttributes));
-                            jGen.writeTree(jsonResource);
-                        }
-                    } else if (jsonResources != null) {
-                        for (JsonNode node : jsonResources) {
-                            jGen.writeTree(node);
+                            String key = resource.getClass().getName() + resource.getSchemas();
+                            SortedSet<String> include = includeSets.get(key);
+                            if (include == null) {
+                                include = resourceSerializer.getIncludeSet(resource, attributes, excludeAttributes, extensions);
+                                includeSets.put(key, include);
+                            }
+                            resourceSerializer.writeResource(resource, include, jGen);
                         }
                     }
                     jGen.writeEndArray();
@@ -91,4 +103,10 @@ public class ListResponseJsonSerializer extends JsonSerializer<ListResponse> {
 
     }
 
+    @SuppressWarnings("unchecked")
+    private <T> T getParameter(SerializerProvider provider, String name, T defaultValue) {
+        Object value = provider.getAttribute(name);
+        return value == null ? defaultValue : (T) value;
+    }
+
 }
@@ -5,29 +5,31 @@
  */
 package org.gluu.oxtrust.service.scim2.serialization;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import javax.annotation.PostConstruct;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.Version;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.filter.FilteringGeneratorDelegate;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import org.gluu.oxtrust.model.scim2.BaseScimResource;
 import org.gluu.oxtrust.model.scim2.ListResponse;
-import org.gluu.oxtrust.model.scim2.extensions.Extension;
 import org.gluu.oxtrust.model.scim2.util.IntrospectUtil;
 import org.gluu.oxtrust.model.scim2.util.ScimResourceUtil;
+import org.gluu.oxtrust.service.scim2.ExtensionRegistry;
 import org.gluu.oxtrust.service.scim2.ExtensionService;
 import org.slf4j.Logger;
 
@@ -46,6 +48,8 @@ public class ScimResourceSerializer {
 
     private ObjectMapper mapper = new ObjectMapper();
 
+    private ObjectMapper listResponseMapper;
+
     private Set<String> expandAttributesPaths(String attributes, String defaultSchemaUrn, List<String> schemas, SortedSet<String> attribs) {
 
         Set<String> set = new HashSet<>();
@@ -74,7 +78,8 @@ public class ScimResourceSerializer {
     }
 
     private void buildIncludeSet(SortedSet<String> include, Class<? extends BaseScimResource> resourceClass,
-                                 List<String> schemas, String attributes, String exclussions) {
+                                 List<String> schemas, String attributes, String exclussions,
+                                 ExtensionRegistry.Snapshot extensions) {
 
         Set<String> tempSet;
         Set<String> alwaysSet = IntrospectUtil.alwaysCoreAttrs.get(resourceClass).keySet();
@@ -82,11 +87,7 @@ public class ScimResourceSerializer {
         Set<String> defaultSet = new HashSet<>();
 
         //Here we assume all attributes part of extensions have returnability="default"...
-        SortedSet<String> extendedSet = new TreeSet<>();
-        for (Extension ext : extService.getResourceExtensions(resourceClass)) {
-            extendedSet.add(ext.getUrn());
-            extendedSet.addAll(IntrospectUtil.getPathsInExtension(ext));
-        }
+        SortedSet<String> extendedSet = new TreeSet<>(extensions.getExtendedPaths(resourceClass));
 
         defaultSet.addAll(IntrospectUtil.defaultCoreAttrs.get(resourceClass).keySet());
         defaultSet.addAll(extendedSet);
@@ -117,108 +118,108 @@ public class ScimResourceSerializer {
 
     }
 
-    private boolean containsProperty(SortedSet<String> properties, String prefix, String key) {
-
-        key = key.startsWith("$") ? key.substring(1) : key;     //makes attributes like $ref to be accepted...
-        String property = (prefix.length() == 0) ? key : prefix + "." + key;
-        Set<String> set = properties.tailSet(property);
+    /**
+     * Computes the set of attribute paths to include when serializing the resource passed
+     * @param resource Resource to serialize
+     * @param attributes Value of attributes query param (null if not passed)
+     * @param exclusions Value of excludedAttributes query param (null if not passed)
+     * @param extensions Extensions metadata to use
+     * @return Sorted set of attribute paths
+     */
+    public SortedSet<String> getIncludeSet(BaseScimResource resource, String attributes, String exclusions,
+                                           ExtensionRegistry.Snapshot extensions) {
 
-        boolean flag = set.contains(property);
-        if (!flag) {
-            for (String prop : set) {
-                if (prop.startsWith(property + ".")) {
-                    flag = true;
-                    break;
-                }
-            }
-        }
-        return flag;
+        SortedSet<String> include = new TreeSet<String>();
+        buildIncludeSet(include, resource.getClass(), new ArrayList<String>(resource.getSchemas()), attributes,
+                exclusions, extensions);
+        log.trace("getIncludeSet. Attributes to include: {}", include);
+        return include;
 
     }
 
-    private String getNewPrefix(String prefix, String key) {
-        return prefix + (prefix.length() == 0 ? "" : ".") + key;
+    /**
+     * Writes the resource straight to the generator passed. Only attributes found in the include set are written
+     * @param resource Resource to serialize
+     * @param include Attribute paths to include (see {@link #getIncludeSet(BaseScimResource, String, String, ExtensionRegistry.Snapshot)})
+     * @param jGen Generator to write to
+     * @throws IOException If writing fails
+     */
+    public void writeResource(BaseScimResource resource, SortedSet<String> include, JsonGenerator jGen) throws IOException {
+        //Do generic serialization. This works for any POJO (not only subclasses of BaseScimResource)
+        mapper.writeValue(new FilteringGeneratorDelegate(jGen, new IncludeSetTokenFilter(include), true, true), resource);
     }
 
-    private Map<String, Object> smallerMap(String prefix, Map<String, Object> value, SortedSet<String> include) {
-        LinkedHashMap<String, Object> smallMap = new LinkedHashMap<>();
-        traverse(prefix, value, smallMap, include);
-        return smallMap.size() == 0 ? null : smallMap;
+    public String serialize(BaseScimResource resource, String attributes, String exclusions) throws Exception {
+        return serialize(resource, attributes, exclusions, extService.getSnapshot());
     }
 
     /**
-     * Section 2.5 of RFC 7643: When a resource is expressed in JSON format, unassigned attributes, although they are
-     * defined in schema, MAY be omitted for compactness
-     * @param prefix
-     * @param map
-     * @param destination
-     * @param include
+     * Serializes the resource using the extensions metadata passed. This allows serializing several resources against
+     * the same snapshot of extensions
      */
-    private void traverse(String prefix, Map<String, Object> map, LinkedHashMap<String, Object> destination, SortedSet<String> include) {
-
-        for (String key : map.keySet()) {
-            Object value = map.get(key);
-
-            if (value != null && containsProperty(include, prefix, key)) {
-
-                if (value instanceof Map) {
-                    value = smallerMap(getNewPrefix(prefix, key), IntrospectUtil.strObjMap(value), include);
-                } else if (IntrospectUtil.isCollection(value.getClass())) {
-                    List list = new ArrayList();
-                    Map<String, Object> innerMap;
-
-                    for (Object item : (Collection) value) {
-                        if (item != null) {
-                            if (item instanceof Map) {
-                                innerMap = smallerMap(getNewPrefix(prefix, key), IntrospectUtil.strObjMap(item), include);
-                                if (innerMap != null)
-                                    list.add(innerMap);
-                            } else {
-                                list.add(item);
-                            }
-                        }
-                    }
-                    value = list;
-                }
-                if (value != null) {
-                    destination.put(key, value);
-                }
-            }
+    public String serialize(BaseScimResource resource, String attributes, String exclusions,
+                            ExtensionRegistry.Snapshot extensions) throws Exception {
+
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator jGen = createGenerator(writer)) {
+            writeResource(resource, getIncludeSet(resource, attributes, exclusions, extensions), jGen);
         }
 
+        String result = writer.toString();
+        log.trace("serialize. Output is {}", result);
+
+        return result;
     }
 
-    public String serialize(BaseScimResource resource, String attributes, String exclusions) throws Exception {
+    public String serialize(BaseScimResource resource) throws Exception {
+        return serialize(resource, null, null);
+    }
 
-        SortedSet<String> include = new TreeSet<String>();
-        Class<? extends BaseScimResource> resourceClass = resource.getClass();
-        buildIncludeSet(include, resourceClass, new ArrayList<String>(resource.getSchemas()), attributes, exclusions);
-        log.trace("serialize. Attributes to include: {}", include);
+    /**
+     * Computes the paths of attributes which are included when serializing resources of the class passed, taking into
+     * account the <code>attributes</code> and <code>excludedAttributes</code> parameters
+     * @return Sorted set of attribute paths (extended attributes paths are prefixed with the urn of the extension)
+     */
+    public SortedSet<String> getIncludedPaths(Class<? extends BaseScimResource> resourceClass, String attributes,
+                                              String exclusions, ExtensionRegistry.Snapshot extensions) {
 
-        //Do generic serialization. This works for any POJO (not only subclasses of BaseScimResource)
-        Map<String, Object> map = mapper.convertValue(resource, new TypeReference<Map<String, Object>>() {});
-        //Using LinkedHashMap allows recursive routines to visit submaps in the same order as fields appear in java classes
-        LinkedHashMap<String, Object> newMap = new LinkedHashMap<String, Object>();
-        traverse("", map, newMap, include);
+        List<String> schemas = extensions.getUrnsOfExtensions(resourceClass);
+        schemas.add(ScimResourceUtil.getDefaultSchemaUrn(resourceClass));
 
-        String result = mapper.writeValueAsString(newMap);
-        log.trace("serialize. Output is {}", result);
+        SortedSet<String> include = new TreeSet<String>();
+        buildIncludeSet(include, resourceClass, schemas, attributes, exclusions, extensions);
+        return include;
 
-        return result;
     }
 
-    public String serialize(BaseScimResource resource) throws Exception {
-        return serialize(resource, null, null);
+    public ExtensionRegistry.Snapshot getExtensionsSnapshot() {
+        return extService.getSnapshot();
+    }
+
+    /**
+     * Creates a generator which is able to write resources and JSON trees
+     */
+    public JsonGenerator createGenerator(Writer writer) throws IOException {
+        return mapper.getFactory().createGenerator(writer);
     }
 
+    /**
+     * Mapper which serializes {@link ListResponse} instances. Request parameters are passed as writer attributes (see
+     * {@link ListResponseJsonSerializer#ATTRIBUTES_ATTRIBUTE})
+     */
     public ObjectMapper getListResponseMapper() {
+        return listResponseMapper;
+    }
 
+    @PostConstruct
+    private void init() {
+        //Registering modules resets serializers cache, so the mapper is built once per instance
         ObjectMapper mapper = new ObjectMapper();
         SimpleModule module = new SimpleModule("ListResponseModule", Version.unknownVersion());
         module.addSerializer(ListResponse.class, new ListResponseJsonSerializer(this));
         mapper.registerModule(module);
 
-        return mapper;
+        listResponseMapper = mapper;
     }
 
 }
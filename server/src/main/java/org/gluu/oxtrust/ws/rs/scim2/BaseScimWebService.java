@@ -18,9 +18,6 @@ import javax.inject.Inject;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 
-import com.fasterxml.jackson.core.Version;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.module.SimpleModule;
 import org.apache.commons.lang.StringUtils;
 import org.gluu.config.oxtrust.AppConfiguration;
 import org.gluu.oxtrust.model.GluuCustomPerson;
@@ -240,12 +237,12 @@ public class BaseScimWebService {
         ListResponse listResponse = new ListResponse(startIndex, resources.size(), total);
         listResponse.setResources(resources);
 
-        ObjectMapper mapper = new ObjectMapper();
-        SimpleModule module = new SimpleModule("ListResponseModule", Version.unknownVersion());
-        module.addSerializer(ListResponse.class, new ListResponseJsonSerializer(resourceSerializer, attrsList, excludedAttrsList, ignoreResults));
-        mapper.registerModule(module);
-
-        return mapper.writeValueAsString(listResponse);
+        //Avoid building an ObjectMapper and registering a module on every request
+        return resourceSerializer.getListResponseMapper().writer()
+                .withAttribute(ListResponseJsonSerializer.ATTRIBUTES_ATTRIBUTE, attrsList)
+                .withAttribute(ListResponseJsonSerializer.EXCLUDED_ATTRIBUTES_ATTRIBUTE, excludedAttrsList)
+                .withAttribute(ListResponseJsonSerializer.SKIP_RESULTS_ATTRIBUTE, ignoreResults)
+                .writeValueAsString(listResponse);
 
     }
 
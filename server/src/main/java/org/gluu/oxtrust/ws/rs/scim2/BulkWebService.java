@@ -27,6 +27,10 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,6 +49,7 @@ import javax.ws.rs.core.Response;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang.StringUtils;
+import org.gluu.oxtrust.config.ConfigurationFactory;
 import org.gluu.oxtrust.model.scim2.ErrorScimType;
 import org.gluu.oxtrust.model.scim2.bulk.BulkOperation;
 import org.gluu.oxtrust.model.scim2.bulk.BulkRequest;
@@ -53,6 +58,7 @@ import org.gluu.oxtrust.model.scim2.fido.FidoDeviceResource;
 import org.gluu.oxtrust.model.scim2.group.GroupResource;
 import org.gluu.oxtrust.model.scim2.patch.PatchRequest;
 import org.gluu.oxtrust.model.scim2.user.UserResource;
+import org.gluu.oxtrust.service.WorkerPoolService;
 import org.gluu.oxtrust.service.filter.ProtectedApi;
 import org.gluu.util.Pair;
 
@@ -77,6 +83,10 @@ public class BulkWebService extends BaseScimWebService {
 
     private final Pattern bulkIdPattern= Pattern.compile("bulkId:(\\w+)");
 
+    //Number of operations processed concurrently. Value of 1 preserves strictly sequential processing
+    private static final String BULK_THREADS_PROPERTY = "scimBulkThreads";
+    private static final int DEFAULT_BULK_THREADS = 1;
+
     private List<Verb> availableMethods;
     private ObjectMapper mapper=new ObjectMapper();
 
@@ -94,6 +104,12 @@ public class BulkWebService extends BaseScimWebService {
     @Inject
     private FidoDeviceWebService fidoDeviceWS;
 
+    @Inject
+    private ConfigurationFactory configurationFactory;
+
+    @Inject
+    private WorkerPoolService workerPoolService;
+
     @Context
     private HttpHeaders httpHeaders;
 
@@ -109,83 +125,270 @@ public class BulkWebService extends BaseScimWebService {
         if (response==null) {
             log.debug("Executing web service method. processBulkOperations");
 
-            int i, errors=0;
             List<BulkOperation> operations=request.getOperations();
-            List<BulkOperation> responseOperations=new ArrayList<BulkOperation>();
-            Map<String, String> processedBulkIds=new HashMap<String, String>();
+            int threadsCount=Math.min(getBulkThreadsCount(), operations.size());
 
-            for (i=0;i<operations.size() && errors<request.getFailOnErrors();i++){
+            List<BulkOperation> responseOperations=threadsCount > 1 ?
+                    processOperationsConcurrently(operations, request.getFailOnErrors(), threadsCount) :
+                    processOperationsSequentially(operations, request.getFailOnErrors());
 
-                BulkOperation operation=operations.get(i);
-                BulkOperation operationResponse=new BulkOperation();
-                Response subResponse;
+            try {
+                BulkResponse bulkResponse=new BulkResponse();
+                bulkResponse.setOperations(responseOperations);
 
-                String method=operation.getMethod();
-                String bulkId=operation.getBulkId();
-                try {
-                    String path=operation.getPath();
-                    BaseScimWebService service=getWSForPath(path);
-                    String fragment=getFragment(path, service, processedBulkIds);
-                    Verb verb = Verb.valueOf(method);
+                String json = mapper.writeValueAsString(bulkResponse);
+                response=Response.ok(json).build();
+            }
+            catch (Exception e){
+                log.error(e.getMessage(), e);
+                response=getErrorResponse(INTERNAL_SERVER_ERROR, e.getMessage());
+            }
+        }
+        return response;
 
-                    String data=operation.getDataStr();
-                    if (!verb.equals(DELETE))
-                        data = replaceBulkIds(data, processedBulkIds);
-
-                    Pair<Response, String> pair=execute(verb, service, data, fragment);
-                    String idCreated=pair.getSecond();
-                    subResponse=pair.getFirst();
-                    int status=subResponse.getStatus();
-
-                    if (familyOf(status).equals(SUCCESSFUL)) {
-                        if (!verb.equals(DELETE)) {
-                            if (verb.equals(POST)) {  //Update bulkIds
-                                processedBulkIds.put(bulkId, idCreated);
-                                fragment=idCreated;
+    }
+
+    private List<BulkOperation> processOperationsSequentially(List<BulkOperation> operations, int failOnErrors){
+
+        int i, errors=0;
+        List<BulkOperation> responseOperations=new ArrayList<BulkOperation>();
+        Map<String, String> processedBulkIds=new HashMap<String, String>();
+
+        for (i=0;i<operations.size() && errors<failOnErrors;i++){
+
+            BulkOperation operationResponse=processOperation(operations.get(i), processedBulkIds, processedBulkIds);
+            errors+= isError(operationResponse) ? 1 : 0;
+            responseOperations.add(operationResponse);
+
+            log.debug("Operation {} processed with status {}. Method {}, Accumulated errors {}", i+1, operationResponse.getStatus(), operationResponse.getMethod(), errors);
+        }
+        return responseOperations;
+
+    }
+
+    /**
+     * Runs operations which don't depend on each other in parallel (see {@link #buildDependencies(List)}) on the
+     * shared worker pool. No operation is started once failOnErrors is reached. Operations which were run are
+     * returned in request order
+     */
+    private List<BulkOperation> processOperationsConcurrently(final List<BulkOperation> operations, int failOnErrors, int threadsCount){
+
+        int n=operations.size();
+        final List<Set<Integer>> dependencies=buildDependencies(operations);
+        final BulkOperation[] operationResponses=new BulkOperation[n];
+        final String[] createdIds=new String[n];
+
+        List<List<Integer>> dependents=new ArrayList<List<Integer>>(n);
+        int[] pendingCounts=new int[n];
+        PriorityQueue<Integer> ready=new PriorityQueue<Integer>();
+        for (int i=0;i<n;i++){
+            dependents.add(new ArrayList<Integer>());
+            pendingCounts[i]=dependencies.get(i).size();
+            if (pendingCounts[i]==0)
+                ready.add(i);
+        }
+        for (int i=0;i<n;i++)
+            for (Integer dependency : dependencies.get(i))
+                dependents.get(dependency).add(i);
+
+        int errors=0;
+        try {
+            while (errors<failOnErrors && !ready.isEmpty()){
+                //Operations ready to run are executed in waves of at most threadsCount operations. A wave is never
+                //larger than the errors left until failOnErrors, so no operation runs after it is reached
+                int waveSize=Math.min(threadsCount, failOnErrors-errors);
+                List<Integer> wave=new ArrayList<Integer>();
+                List<Callable<Void>> tasks=new ArrayList<Callable<Void>>();
+                while (wave.size()<waveSize && !ready.isEmpty()){
+                    final int index=ready.poll();
+                    wave.add(index);
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            //Only ids created by preceding operations are visible, as in sequential processing
+                            Map<String, String> knownBulkIds=new HashMap<String, String>();
+                            for (Integer dependency : dependencies.get(index)) {
+                                String bulkId=operations.get(dependency).getBulkId();
+                                if (createdIds[dependency]!=null && bulkId!=null)
+                                    knownBulkIds.put(bulkId, createdIds[dependency]);
                             }
-                            String loc=service.getEndpointUrl() + "/" + fragment;
-                            operationResponse.setLocation(loc);
+                            Map<String, String> processedBulkIds=new HashMap<String, String>();
+                            operationResponses[index]=processOperation(operations.get(index), knownBulkIds, processedBulkIds);
+                            createdIds[index]=processedBulkIds.get(operations.get(index).getBulkId());
+                            return null;
                         }
-                    }
-                    else {
-                        operationResponse.setResponse(subResponse.getEntity());
-                        errors+= familyOf(status).equals(CLIENT_ERROR) || familyOf(status).equals(SERVER_ERROR) ? 1 : 0;
-                    }
-
-                    subResponse.close();
-                    operationResponse.setStatus(Integer.toString(status));
+                    });
                 }
-                catch (Exception e) {
-                    log.error(e.getMessage(), e);
-                    subResponse=getErrorResponse(BAD_REQUEST, ErrorScimType.INVALID_SYNTAX, e.getMessage());
+                workerPoolService.invokeAll(tasks, threadsCount);
 
-                    operationResponse.setStatus(Integer.toString(BAD_REQUEST.getStatusCode()));
-                    operationResponse.setResponse(subResponse.getEntity());
-                    errors++;
-                }
+                for (Integer index : wave){
+                    BulkOperation operationResponse=operationResponses[index];
+                    if (operationResponse==null)
+                        //processOperation does not throw exceptions
+                        continue;
 
-                operationResponse.setBulkId(bulkId);
-                operationResponse.setMethod(method);
+                    errors+= isError(operationResponse) ? 1 : 0;
+                    log.debug("Operation {} processed with status {}. Method {}, Accumulated errors {}", index+1, operationResponse.getStatus(), operationResponse.getMethod(), errors);
 
+                    for (Integer dependent : dependents.get(index))
+                        if (--pendingCounts[dependent]==0)
+                            ready.add(dependent);
+                }
+            }
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while processing bulk operations", e);
+        }
+
+        List<BulkOperation> responseOperations=new ArrayList<BulkOperation>();
+        for (BulkOperation operationResponse : operationResponses)
+            if (operationResponse!=null)
                 responseOperations.add(operationResponse);
 
-                log.debug("Operation {} processed with status {}. Method {}, Accumulated errors {}", i+1, operationResponse.getStatus(), method, errors);
-            }
+        return responseOperations;
 
-            try {
-                BulkResponse bulkResponse=new BulkResponse();
-                bulkResponse.setOperations(responseOperations);
+    }
 
-                String json = mapper.writeValueAsString(bulkResponse);
-                response=Response.ok(json).build();
+    /**
+     * Computes for every operation the preceding operations it must wait for. An operation depends on:
+     * - the POST which introduced the bulkId it references
+     * - preceding operations with the same path, and preceding user creations with the same userName
+     * - preceding operations on users (and devices) if it is a group operation and vice versa, since group changes
+     * update the memberOf attribute of users
+     */
+    private List<Set<Integer>> buildDependencies(List<BulkOperation> operations){
+
+        List<Set<Integer>> dependencies=new ArrayList<Set<Integer>>(operations.size());
+        Map<String, Integer> bulkIdOwners=new HashMap<String, Integer>();
+        Map<String, Integer> lastByResource=new HashMap<String, Integer>();
+        List<Integer> groupOperations=new ArrayList<Integer>();
+        List<Integer> otherOperations=new ArrayList<Integer>();
+
+        for (int i=0;i<operations.size();i++){
+            BulkOperation operation=operations.get(i);
+            Set<Integer> operationDependencies=new TreeSet<Integer>();
+
+            Verb verb=Verb.valueOf(operation.getMethod());
+            List<String> references=getBulkIdReferences(operation.getPath());
+            if (!verb.equals(DELETE) && operation.getDataStr()!=null)
+                references.addAll(getBulkIdReferences(operation.getDataStr()));
+
+            for (String reference : references){
+                Integer owner=bulkIdOwners.get(reference);
+                if (owner!=null)
+                    operationDependencies.add(owner);
             }
-            catch (Exception e){
-                log.error(e.getMessage(), e);
-                response=getErrorResponse(INTERNAL_SERVER_ERROR, e.getMessage());
+
+            for (String resourceKey : getResourceKeys(operation, verb)){
+                Integer previous=lastByResource.put(resourceKey, i);
+                if (previous!=null)
+                    operationDependencies.add(previous);
             }
+
+            boolean isGroupOperation=operation.getPath().startsWith(groupsEndpoint);
+            operationDependencies.addAll(isGroupOperation ? otherOperations : groupOperations);
+            (isGroupOperation ? groupOperations : otherOperations).add(i);
+
+            if (verb.equals(POST))
+                bulkIdOwners.put(operation.getBulkId(), i);
+
+            dependencies.add(operationDependencies);
         }
-        return response;
+        return dependencies;
+
+    }
+
+    private List<String> getResourceKeys(BulkOperation operation, Verb verb){
+
+        List<String> keys=new ArrayList<String>();
+        if (!verb.equals(POST))
+            keys.add(operation.getPath());
+        else
+        if (operation.getPath().equals(usersEndpoint) && operation.getData()!=null) {
+            Object userName=operation.getData().get("userName");
+            if (userName!=null)
+                keys.add("userName:" + userName.toString().toLowerCase());
+        }
+        return keys;
+
+    }
+
+    private List<String> getBulkIdReferences(String str){
+
+        List<String> references=new ArrayList<String>();
+        Matcher m=bulkIdPattern.matcher(str);
+        while (m.find())
+            references.add(m.group(1));
+
+        return references;
+
+    }
+
+    /**
+     * Executes a single operation. References to bulkIds are resolved using knownBulkIds. When a resource is created,
+     * its id is stored in processedBulkIds
+     */
+    private BulkOperation processOperation(BulkOperation operation, Map<String, String> knownBulkIds, Map<String, String> processedBulkIds){
+
+        BulkOperation operationResponse=new BulkOperation();
+        Response subResponse;
+
+        String method=operation.getMethod();
+        String bulkId=operation.getBulkId();
+        try {
+            String path=operation.getPath();
+            BaseScimWebService service=getWSForPath(path);
+            String fragment=getFragment(path, service, knownBulkIds);
+            Verb verb = Verb.valueOf(method);
+
+            String data=operation.getDataStr();
+            if (!verb.equals(DELETE))
+                data = replaceBulkIds(data, knownBulkIds);
+
+            Pair<Response, String> pair=execute(verb, service, data, fragment);
+            String idCreated=pair.getSecond();
+            subResponse=pair.getFirst();
+            int status=subResponse.getStatus();
+
+            if (familyOf(status).equals(SUCCESSFUL)) {
+                if (!verb.equals(DELETE)) {
+                    if (verb.equals(POST)) {  //Update bulkIds
+                        processedBulkIds.put(bulkId, idCreated);
+                        fragment=idCreated;
+                    }
+                    String loc=service.getEndpointUrl() + "/" + fragment;
+                    operationResponse.setLocation(loc);
+                }
+            }
+            else
+                operationResponse.setResponse(subResponse.getEntity());
+
+            subResponse.close();
+            operationResponse.setStatus(Integer.toString(status));
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+            subResponse=getErrorResponse(BAD_REQUEST, ErrorScimType.INVALID_SYNTAX, e.getMessage());
+
+            operationResponse.setStatus(Integer.toString(BAD_REQUEST.getStatusCode()));
+            operationResponse.setResponse(subResponse.getEntity());
+        }
+
+        operationResponse.setBulkId(bulkId);
+        operationResponse.setMethod(method);
+
+        return operationResponse;
+
+    }
+
+    private boolean isError(BulkOperation operationResponse){
+        Response.Status.Family family=familyOf(Integer.parseInt(operationResponse.getStatus()));
+        return family.equals(CLIENT_ERROR) || family.equals(SERVER_ERROR);
+    }
 
+    private int getBulkThreadsCount(){
+        return configurationFactory.getBaseConfiguration().getInt(BULK_THREADS_PROPERTY, DEFAULT_BULK_THREADS);
     }
 
     private Response prepareRequest(BulkRequest request, String contentLength){
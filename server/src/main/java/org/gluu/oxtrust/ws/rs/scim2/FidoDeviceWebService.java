@@ -233,8 +233,7 @@ public class FidoDeviceWebService extends BaseScimWebService implements IFidoDev
         Response response;
         try {
             log.debug("Executing web service method. searchDevices");
-            sortBy=translateSortByAttribute(FidoDeviceResource.class, sortBy);
-            PagedResult<BaseScimResource> resources = searchDevices(userId, filter, sortBy, SortOrder.getByValue(sortOrder), startIndex, count, endpointUrl);
+            PagedResult<BaseScimResource> resources = searchDeviceResources(userId, filter, sortBy, sortOrder, startIndex, count);
 
             String json = getListResponseSerialized(resources.getTotalEntriesCount(), startIndex, resources.getEntries(), attrsList, excludedAttrsList, count==0);
             response=Response.ok(json).location(new URI(endpointUrl)).build();
@@ -251,6 +250,18 @@ public class FidoDeviceWebService extends BaseScimWebService implements IFidoDev
 
     }
 
+    /**
+     * Searches fido devices returning the typed resources found (no serialization takes place). Parameters are expected
+     * to be already validated as is done in the decorator of this class
+     * @param userId Inum of the owner of devices, null to search devices of all users
+     * @param sortBy A SCIM attribute path (not an LDAP attribute)
+     */
+    public PagedResult<BaseScimResource> searchDeviceResources(String userId, String filter, String sortBy, String sortOrder,
+                                                               int startIndex, int count) throws Exception {
+        return searchDevices(userId, filter, translateSortByAttribute(FidoDeviceResource.class, sortBy), SortOrder.getByValue(sortOrder),
+                startIndex, count, endpointUrl);
+    }
+
     @Path(SEARCH_SUFFIX)
     @POST
     @Consumes({MEDIA_TYPE_SCIM_JSON, MediaType.APPLICATION_JSON})
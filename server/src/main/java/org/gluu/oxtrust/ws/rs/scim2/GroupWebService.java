@@ -36,6 +36,7 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.apache.commons.lang.StringUtils;
 import org.gluu.oxtrust.model.GluuGroup;
 import org.gluu.oxtrust.model.exception.SCIMException;
 import org.gluu.oxtrust.model.scim2.BaseScimResource;
@@ -135,7 +136,8 @@ public class GroupWebService extends BaseScimWebService implements IGroupWebServ
                 throw new WebApplicationException("Failed to execute SCIM script successfully",
                         Response.Status.PRECONDITION_FAILED);
             }
-            scim2GroupService.transferAttributesToGroupResource(gluuGroup, group, endpointUrl, userWebService.getEndpointUrl());
+            scim2GroupService.transferAttributesToGroupResource(gluuGroup, group, endpointUrl, userWebService.getEndpointUrl(),
+                    isMembersRequested(attrsList, excludedAttrsList));
 
             String json = resourceSerializer.serialize(group, attrsList, excludedAttrsList);
             response = Response.ok(new URI(group.getMeta().getLocation())).entity(json).build();
@@ -227,9 +229,8 @@ public class GroupWebService extends BaseScimWebService implements IGroupWebServ
         Response response;
         try {
             log.debug("Executing web service method. searchGroups");
-            sortBy=translateSortByAttribute(GroupResource.class, sortBy);
-            PagedResult<BaseScimResource> resources = scim2GroupService.searchGroups(filter, sortBy, SortOrder.getByValue(sortOrder),
-                    startIndex, count, endpointUrl, userWebService.getEndpointUrl(), getMaxCount());
+            PagedResult<BaseScimResource> resources = searchGroupResources(filter, sortBy, sortOrder, startIndex, count,
+                    attrsList, excludedAttrsList);
 
             String json = getListResponseSerialized(resources.getTotalEntriesCount(), startIndex, resources.getEntries(), attrsList, excludedAttrsList, count==0);
             response=Response.ok(json).location(new URI(endpointUrl)).build();
@@ -246,6 +247,18 @@ public class GroupWebService extends BaseScimWebService implements IGroupWebServ
 
     }
 
+    /**
+     * Searches groups returning the typed resources found (no serialization takes place). Parameters are expected to be
+     * already validated as is done in the decorator of this class
+     * @param sortBy A SCIM attribute path (not an LDAP attribute)
+     */
+    public PagedResult<BaseScimResource> searchGroupResources(String filter, String sortBy, String sortOrder, int startIndex,
+                                                              int count, String attrsList, String excludedAttrsList) throws Exception {
+        return scim2GroupService.searchGroups(filter, translateSortByAttribute(GroupResource.class, sortBy), SortOrder.getByValue(sortOrder),
+                startIndex, count, endpointUrl, userWebService.getEndpointUrl(), getMaxCount(),
+                isMembersRequested(attrsList, excludedAttrsList));
+    }
+
     @Path(SEARCH_SUFFIX)
     @POST
     @Consumes({MEDIA_TYPE_SCIM_JSON, MediaType.APPLICATION_JSON})
@@ -331,6 +344,31 @@ public class GroupWebService extends BaseScimWebService implements IGroupWebServ
 
     }
 
+    /**
+     * Members resolution is the most expensive part of group transfer, so it's skipped when members will not be
+     * part of the response
+     */
+    private boolean isMembersRequested(String attrsList, String excludedAttrsList) {
+
+        if (StringUtils.isNotBlank(attrsList))
+            return containsMembersAttribute(attrsList);
+
+        return StringUtils.isBlank(excludedAttrsList) || !containsMembersAttribute(excludedAttrsList);
+
+    }
+
+    private boolean containsMembersAttribute(String attrsList) {
+
+        for (String attr : attrsList.split(",")) {
+            String name = attr.trim().toLowerCase();
+            name = name.substring(name.lastIndexOf(':') + 1);
+            if (name.equals("members") || name.startsWith("members."))
+                return true;
+        }
+        return false;
+
+    }
+
     @PostConstruct
     public void setup(){
         //Do not use getClass() here... a typical weld issue...
@@ -0,0 +1,222 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.ws.rs.scim2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.gluu.oxtrust.model.scim2.BaseScimResource;
+import org.gluu.oxtrust.model.scim2.SearchRequest;
+import org.gluu.oxtrust.service.WorkerPoolService;
+import org.gluu.persist.model.PagedResult;
+import org.slf4j.Logger;
+
+/**
+ * Executes a search over all resource types (users, groups, and fido devices, in that order) as needed by the root
+ * /.search endpoint. The result set as a whole is the concatenation of the results of every resource type, where each
+ * group of resources is sorted by the sortBy param of the request.
+ *
+ * Searches of the different resource types are run concurrently. In a first round, the totals of every resource type
+ * are obtained (for the first type a page query is issued directly since its offset is always known). In a second round
+ * only the resource types overlapping the requested page are searched with the exact startIndex and count needed.
+ * Typed resources are merged in-process, no intermediate serialization takes place.
+ */
+@Named
+public class ResourceSearchEngine {
+
+    //Number of resource type searches run at the same time. Value of 1 preserves strictly sequential processing
+    private static final String SEARCH_THREADS_PROPERTY = "scimSearchThreads";
+    private static final int DEFAULT_SEARCH_THREADS = 3;
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private UserWebService userWS;
+
+    @Inject
+    private GroupWebService groupWS;
+
+    @Inject
+    private FidoDeviceWebService fidoWS;
+
+    @Inject
+    private ConfigurationFactory configurationFactory;
+
+    @Inject
+    private WorkerPoolService workerPoolService;
+
+    /**
+     * Searches all resource types using a search request already validated by
+     * {@link BaseScimWebService#prepareSearchRequest(List, String, String, String, Integer, Integer, String, String, SearchRequest)}
+     * @param searchRequest Search request (startIndex and count must be non-null)
+     * @return The resources in the requested page and the grand total of resources matching the filter. Entries are
+     * empty when count is zero
+     */
+    public PagedResult<BaseScimResource> search(SearchRequest searchRequest) {
+
+        List<ResourceTypeSearch> searches = getResourceTypeSearches(searchRequest);
+        int offset = searchRequest.getStartIndex() - 1;
+        int count = searchRequest.getCount();
+
+        //First round: page of the first resource type and totals of the rest
+        List<Callable<PagedResult<BaseScimResource>>> tasks = new ArrayList<>();
+        tasks.add(searches.get(0).task(offset + 1, count));
+        for (int i = 1; i < searches.size(); i++)
+            tasks.add(searches.get(i).task(1, 0));
+
+        List<PagedResult<BaseScimResource>> firstRound = execute(tasks);
+
+        int totalResults = 0;
+        int[] totals = new int[searches.size()];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = firstRound.get(i).getTotalEntriesCount();
+            totalResults += totals[i];
+        }
+
+        List<BaseScimResource> resources = new ArrayList<>(firstRound.get(0).getEntries());
+
+        //Second round: pages of the remaining resource types overlapping the window requested
+        tasks.clear();
+        int remaining = count - resources.size();
+        int preceding = totals[0];
+
+        for (int i = 1; i < searches.size() && remaining > 0; i++) {
+            int localStart = Math.max(0, offset - preceding);
+            if (localStart < totals[i]) {
+                int localCount = Math.min(remaining, totals[i] - localStart);
+                tasks.add(searches.get(i).task(localStart + 1, localCount));
+                remaining -= localCount;
+            }
+            preceding += totals[i];
+        }
+
+        for (PagedResult<BaseScimResource> page : execute(tasks))
+            resources.addAll(page.getEntries());
+
+        log.debug("Search across resource types found {} results, returning {}", totalResults, resources.size());
+
+        PagedResult<BaseScimResource> result = new PagedResult<>();
+        result.setEntries(resources);
+        result.setTotalEntriesCount(totalResults);
+        return result;
+
+    }
+
+    private List<ResourceTypeSearch> getResourceTypeSearches(final SearchRequest request) {
+
+        List<ResourceTypeSearch> searches = new ArrayList<>();
+        //Do not alter the order of appearance
+        searches.add(new ResourceTypeSearch("User") {
+            @Override
+            PagedResult<BaseScimResource> search(int startIndex, int count) throws Exception {
+                return userWS.searchUserResources(request.getFilter(), request.getSortBy(), request.getSortOrder(),
+                        startIndex, count, request.getAttributesStr(), request.getExcludedAttributesStr());
+            }
+        });
+        searches.add(new ResourceTypeSearch("Group") {
+            @Override
+            PagedResult<BaseScimResource> search(int startIndex, int count) throws Exception {
+                return groupWS.searchGroupResources(request.getFilter(), request.getSortBy(), request.getSortOrder(),
+                        startIndex, count, request.getAttributesStr(), request.getExcludedAttributesStr());
+            }
+        });
+        searches.add(new ResourceTypeSearch("FidoDevice") {
+            @Override
+            PagedResult<BaseScimResource> search(int startIndex, int count) throws Exception {
+                return fidoWS.searchDeviceResources(null, request.getFilter(), request.getSortBy(), request.getSortOrder(),
+                        startIndex, count);
+            }
+        });
+        return searches;
+
+    }
+
+    private List<PagedResult<BaseScimResource>> execute(List<Callable<PagedResult<BaseScimResource>>> tasks) {
+
+        List<PagedResult<BaseScimResource>> results = new ArrayList<>();
+        List<Future<PagedResult<BaseScimResource>>> futures;
+        try {
+            //Searches run on the shared worker pool, at most scimSearchThreads at the same time
+            futures = workerPoolService.invokeAll(tasks, getSearchThreadsCount());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching resources", e);
+        }
+
+        for (Future<PagedResult<BaseScimResource>> future : futures) {
+            try {
+                results.add(future.get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while searching resources", e);
+            }
+            catch (ExecutionException e) {
+                log.error(e.getMessage(), e.getCause());
+                results.add(emptyResult());
+            }
+        }
+        return results;
+
+    }
+
+    private static PagedResult<BaseScimResource> emptyResult() {
+        PagedResult<BaseScimResource> result = new PagedResult<>();
+        result.setEntries(Collections.<BaseScimResource>emptyList());
+        return result;
+    }
+
+    private int getSearchThreadsCount() {
+        return configurationFactory.getBaseConfiguration().getInt(SEARCH_THREADS_PROPERTY, DEFAULT_SEARCH_THREADS);
+    }
+
+    /**
+     * Search of a single resource type. A failed search (eg. filter not applicable to the resource type) contributes
+     * no results, as if the resource type had no matches
+     */
+    private abstract class ResourceTypeSearch {
+
+        private final String type;
+
+        ResourceTypeSearch(String type) {
+            this.type = type;
+        }
+
+        abstract PagedResult<BaseScimResource> search(int startIndex, int count) throws Exception;
+
+        Callable<PagedResult<BaseScimResource>> task(final int startIndex, final int count) {
+            return new Callable<PagedResult<BaseScimResource>>() {
+                @Override
+                public PagedResult<BaseScimResource> call() {
+                    try {
+                        log.debug("Searching resources of type {}. startIndex '{}', count '{}'", type, startIndex, count);
+                        PagedResult<BaseScimResource> result = search(startIndex, count);
+                        if (result.getEntries() == null)
+                            result.setEntries(Collections.<BaseScimResource>emptyList());
+                        return result;
+                    }
+                    catch (Exception e) {
+                        log.error("Error searching resources of type {}: {}", type, e.getMessage());
+                        log.error(e.getMessage(), e);
+                        return emptyResult();
+                    }
+                }
+            };
+        }
+
+    }
+
+}
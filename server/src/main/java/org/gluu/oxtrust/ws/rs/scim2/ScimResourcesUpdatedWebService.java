@@ -15,6 +15,9 @@ import org.gluu.oxtrust.service.filter.ProtectedApi;
 import org.gluu.oxtrust.util.ServiceUtil;
 import org.gluu.persist.PersistenceEntryManager;
 import org.gluu.persist.annotation.AttributeName;
+import org.gluu.persist.model.BatchOperation;
+import org.gluu.persist.model.ProcessBatchOperation;
+import org.gluu.persist.model.SearchScope;
 import org.gluu.persist.model.SortOrder;
 import org.gluu.search.filter.Filter;
 
@@ -27,9 +30,19 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -42,6 +55,18 @@ public class ScimResourcesUpdatedWebService extends BaseScimWebService {
 
     private static final int MAX_COUNT = 1000;
 
+    private static final String MEDIA_TYPE_NDJSON = "application/x-ndjson";
+
+    private static final int EXPORT_CHUNK_SIZE = 500;
+
+    private static final String CURSOR_PREFIX = "v1:";
+
+    //Cursors point this far before the latest change seen, so entries written with a slightly older timestamp (eg. by
+    //another server or a write still in flight during the export) are not missed by the next export
+    private static final long CURSOR_SAFETY_WINDOW_MILLIS = 60 * 1000L;
+
+    private static final Map<String, Method> NON_CUSTOM_ATTRIBUTE_GETTERS = getNonCustomAttributeGetters();
+
     @Inject
     private PersistenceEntryManager entryManager;
 
@@ -106,6 +131,130 @@ public class ScimResourcesUpdatedWebService extends BaseScimWebService {
 
     }
 
+    /**
+     * Streams users as NDJSON (one JSON object per line) from a single paged search, so memory usage does not depend on
+     * the number of users and the whole set is traversed in linear time. Every user is rendered as in the results of
+     * the UpdatedUsers feed. The last line contains the total number of users streamed and a cursor: passing it in a
+     * subsequent call returns the users created or updated since shortly before the most recent change seen (users
+     * changed within that window are returned again, so consumers must process lines idempotently)
+     * @param isoDate If supplied, only users created or updated at or after this date are exported
+     * @param cursor Continuation token found in the last line of a previous export. Takes precedence over isoDate
+     */
+    @Path("UsersExport")
+    @GET
+    @Produces({MediaType.APPLICATION_JSON + UTF8_CHARSET_FRAGMENT, MEDIA_TYPE_NDJSON + UTF8_CHARSET_FRAGMENT})
+    @ProtectedApi
+    public Response exportUsers(@QueryParam("timeStamp") String isoDate, @QueryParam("cursor") String cursor) {
+
+        Response response;
+        log.debug("Executing web service method. exportUsers");
+
+        try {
+            if (StringUtils.isNotEmpty(cursor)) {
+                isoDate = decodeCursor(cursor);
+                if (isoDate == null) {
+                    return getErrorResponse(Response.Status.BAD_REQUEST, "Invalid cursor: " + cursor);
+                }
+            }
+
+            Filter filter = Filter.createPresenceFilter("inum");
+            if (StringUtils.isNotEmpty(isoDate)) {
+                String date = ldapBackend ? DateUtil.ISOToGeneralizedStringDate(isoDate) : DateUtil.gluuCouchbaseISODate(isoDate);
+                if (date == null) {
+                    return getErrorResponse(Response.Status.BAD_REQUEST, "Unparsable date: " + isoDate);
+                }
+                filter = Filter.createORFilter(
+                        Filter.createGreaterOrEqualFilter("oxCreationTimestamp", date),
+                        Filter.createGreaterOrEqualFilter("updatedAt", date));
+            }
+            log.info("Exporting users using filter {}", filter.toString());
+
+            final Filter searchFilter = filter;
+            final String since = isoDate;
+            StreamingOutput stream = output -> writeUsersAsNdjson(searchFilter, since, output);
+            //Errors are plain JSON
+            response = Response.ok(stream).type(MEDIA_TYPE_NDJSON + UTF8_CHARSET_FRAGMENT).build();
+        } catch (Exception e1) {
+            log.error("Failure at exportUsers method", e1);
+            response = getErrorResponse(Response.Status.INTERNAL_SERVER_ERROR, "Unexpected error: " + e1.getMessage());
+        }
+        return response;
+
+    }
+
+    private void writeUsersAsNdjson(Filter filter, String since, OutputStream output) throws IOException {
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        final ObjectMapper mapper = ServiceUtil.getObjectMapper();
+        final long[] totalAndFresher = { 0, 0 };
+
+        BatchOperation<ScimCustomPerson> batchOperation = new ProcessBatchOperation<ScimCustomPerson>() {
+            @Override
+            public void performAction(List<ScimCustomPerson> entries) {
+                try {
+                    for (ScimCustomPerson person : entries) {
+                        totalAndFresher[1] = Math.max(totalAndFresher[1], getLastChange(person));
+                        writer.write(mapper.writeValueAsString(getPersonAsMap(person)));
+                        writer.write('\n');
+                    }
+                    //Hand every chunk to the client as soon as it's ready
+                    writer.flush();
+                    totalAndFresher[0] += entries.size();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+
+        try {
+            entryManager.findEntries(personService.getDnForPerson(null), ScimCustomPerson.class, filter, SearchScope.SUB,
+                    null, batchOperation, 0, 0, EXPORT_CHUNK_SIZE);
+        } catch (UncheckedIOException e) {
+            //Client went away
+            throw e.getCause();
+        }
+
+        Map<String, Object> trailer = new LinkedHashMap<>();
+        trailer.put("total", totalAndFresher[0]);
+        if (totalAndFresher[1] > 0) {
+            String latest = DateUtil.millisToISOString(totalAndFresher[1]);
+            trailer.put("latestUpdateAt", latest);
+            trailer.put("cursor", encodeCursor(DateUtil.millisToISOString(totalAndFresher[1] - CURSOR_SAFETY_WINDOW_MILLIS)));
+        } else if (StringUtils.isNotEmpty(since)) {
+            //Nothing changed: keep polling from the same point
+            trailer.put("cursor", encodeCursor(since));
+        }
+        writer.write(mapper.writeValueAsString(trailer));
+        writer.write('\n');
+        writer.flush();
+
+        log.info("Exported {} users", totalAndFresher[0]);
+
+    }
+
+    private long getLastChange(ScimCustomPerson person) {
+
+        long updatedAt = Optional.ofNullable(person.getUpdatedAt()).map(Date::getTime).orElse(0L);
+        long createdAt = Optional.ofNullable(person.getCreationDate()).map(Date::getTime).orElse(0L);
+        return Math.max(updatedAt, createdAt);
+
+    }
+
+    private static String encodeCursor(String isoDate) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((CURSOR_PREFIX + isoDate).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeCursor(String cursor) {
+
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            return value.startsWith(CURSOR_PREFIX) ? value.substring(CURSOR_PREFIX.length()) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+    }
+
     private String getUserResultsAsJson(List<ScimCustomPerson> list) throws Exception {
 
         List<Map<String, List<Object>>> resources = new ArrayList<>();
@@ -116,87 +265,106 @@ public class ScimResourcesUpdatedWebService extends BaseScimWebService {
             if (fresher < updatedAt) {
                 fresher = updatedAt;
             }
+            resources.add(getPersonAsMap(person));
+        }
+        return getResultsAsJson(resources, fresher);
 
-            Map<String, List<Object>> map = new TreeMap<>();
-            person.getTypedCustomAttributes().forEach(attr -> map.put(attr.getName(), new ArrayList<>(attr.getValues())));
-            map.putAll(getNonCustomAttributes(person));
-
-            //Do a best effort to supply output in proper data types
-            for (String key : map.keySet()) {
-                List<Object> values = map.get(key);
-                for (int i = 0; i < values.size(); i++) {
-
-                    Object rawValue = values.get(i);
-                    String value = rawValue.toString();
-                    Object finalValue = null;
-
-                    AttributeDataType dataType = Optional.ofNullable(attributeDataTypes.get(key)).orElse(AttributeDataType.STRING);
-                    switch (dataType) {
-                        case DATE:
-                            finalValue = getStringDateFrom(value);
-                            break;
-                        case BOOLEAN:
-                            if (ldapBackend) {
-                                value = value.toLowerCase();
-                            }
-                            if (value.equals(Boolean.TRUE.toString()) || value.equals(Boolean.FALSE.toString())) {
-                                finalValue = Boolean.valueOf(value);
-                            }
-                            break;
-                        case NUMERIC:
-                            try {
-                                finalValue = new Integer(value);
-                            } catch (Exception e) {
-                                log.warn("{} is not a numeric value!", value);
-                            }
-                            break;
-                    }
+    }
 
-                    if (finalValue == null) {
-                        if (rawValue.getClass().equals(Date.class)) {
-                            Instant instant = Instant.ofEpochMilli(Date.class.cast(rawValue).getTime());
-                            finalValue = DateTimeFormatter.ISO_INSTANT.format(instant);
-                        } else {
-                            finalValue = getStringDateFrom(value);
-                            finalValue = finalValue == null ? value : finalValue;
+    private Map<String, List<Object>> getPersonAsMap(ScimCustomPerson person) {
+
+        Map<String, List<Object>> map = new TreeMap<>();
+        person.getTypedCustomAttributes().forEach(attr -> map.put(attr.getName(), new ArrayList<>(attr.getValues())));
+        map.putAll(getNonCustomAttributes(person));
+
+        //Do a best effort to supply output in proper data types
+        for (String key : map.keySet()) {
+            List<Object> values = map.get(key);
+            for (int i = 0; i < values.size(); i++) {
+
+                Object rawValue = values.get(i);
+                String value = rawValue.toString();
+                Object finalValue = null;
+
+                AttributeDataType dataType = Optional.ofNullable(attributeDataTypes.get(key)).orElse(AttributeDataType.STRING);
+                switch (dataType) {
+                    case DATE:
+                        finalValue = getStringDateFrom(value);
+                        break;
+                    case BOOLEAN:
+                        if (ldapBackend) {
+                            value = value.toLowerCase();
+                        }
+                        if (value.equals(Boolean.TRUE.toString()) || value.equals(Boolean.FALSE.toString())) {
+                            finalValue = Boolean.valueOf(value);
                         }
+                        break;
+                    case NUMERIC:
+                        try {
+                            finalValue = new Integer(value);
+                        } catch (Exception e) {
+                            log.warn("{} is not a numeric value!", value);
+                        }
+                        break;
+                }
+
+                if (finalValue == null) {
+                    if (rawValue.getClass().equals(Date.class)) {
+                        Instant instant = Instant.ofEpochMilli(Date.class.cast(rawValue).getTime());
+                        finalValue = DateTimeFormatter.ISO_INSTANT.format(instant);
+                    } else {
+                        finalValue = getStringDateFrom(value);
+                        finalValue = finalValue == null ? value : finalValue;
                     }
-                    values.set(i, finalValue);
                 }
+                values.set(i, finalValue);
             }
-
-            resources.add(map);
         }
-        return getResultsAsJson(resources, fresher);
+        return map;
 
     }
 
     private Map<String, List<Object>> getNonCustomAttributes(ScimCustomPerson person) {
 
         Map<String, List<Object>> map = new HashMap<>();
-        Field[] fields = ScimCustomPerson.class.getDeclaredFields();
-
-        for (Field field : fields) {
+        for (Map.Entry<String, Method> entry : NON_CUSTOM_ATTRIBUTE_GETTERS.entrySet()) {
             try {
-                AttributeName annotation = field.getAnnotation(AttributeName.class);
-                if (annotation != null) {
+                Object value = IntrospectUtil.invokeGetter(entry.getValue(), person);
+                if (value != null) {
+                    map.put(entry.getKey(), new ArrayList<>(Collections.singletonList(value)));
+                }
+            } catch (Exception e) {
+                log.error(e.getMessage());
+            }
+        }
+        return map;
 
-                    String fieldName = field.getName();
-                    String attribute = StringUtils.isEmpty(annotation.name()) ? fieldName : annotation.name();
-                    Method getter = IntrospectUtil.getGetter(fieldName, ScimCustomPerson.class);
+    }
+
+    /**
+     * Finds (once) the getters of the fields of ScimCustomPerson mapped to LDAP attributes
+     * @return Map of attribute name to getter
+     */
+    private static Map<String, Method> getNonCustomAttributeGetters() {
+
+        Map<String, Method> getters = new LinkedHashMap<>();
+        for (Field field : ScimCustomPerson.class.getDeclaredFields()) {
+            AttributeName annotation = field.getAnnotation(AttributeName.class);
+            if (annotation != null) {
 
+                String fieldName = field.getName();
+                String attribute = StringUtils.isEmpty(annotation.name()) ? fieldName : annotation.name();
+                try {
+                    Method getter = IntrospectUtil.getGetter(fieldName, ScimCustomPerson.class);
                     if (getter != null) {
-                        Object value = getter.invoke(person);
-                        if (value != null) {
-                            map.put(attribute, new ArrayList<>(Collections.singletonList(value)));
-                        }
+                        getters.put(attribute, getter);
                     }
+                } catch (Exception e) {
+                    //Attribute is then left out of the output
                 }
-            } catch (Exception e) {
-                log.error(e.getMessage());
             }
         }
-        return map;
+        return Collections.unmodifiableMap(getters);
 
     }
 
@@ -48,6 +48,7 @@ import org.gluu.oxtrust.model.scim2.user.UserResource;
 import org.gluu.oxtrust.model.scim2.util.ScimResourceUtil;
 import org.gluu.oxtrust.service.filter.ProtectedApi;
 import org.gluu.oxtrust.model.scim.ScimCustomPerson;
+import org.gluu.oxtrust.service.scim2.PersonAttributesSnapshot;
 import org.gluu.oxtrust.service.scim2.Scim2PatchService;
 import org.gluu.oxtrust.service.scim2.Scim2UserService;
 import org.gluu.oxtrust.service.scim2.interceptor.RefAdjusted;
@@ -225,9 +226,8 @@ public class UserWebService extends BaseScimWebService implements IUserWebServic
         Response response;
         try {
             log.debug("Executing web service method. searchUsers");
-            sortBy=translateSortByAttribute(UserResource.class, sortBy);
-            PagedResult<BaseScimResource> resources = scim2UserService.searchUsers(filter, sortBy, SortOrder.getByValue(sortOrder),
-                    startIndex, count, endpointUrl, getMaxCount());
+            PagedResult<BaseScimResource> resources = searchUserResources(filter, sortBy, sortOrder, startIndex, count,
+                    attrsList, excludedAttrsList);
 
             String json = getListResponseSerialized(resources.getTotalEntriesCount(), startIndex, resources.getEntries(), attrsList, excludedAttrsList, count==0);
             response=Response.ok(json).location(new URI(endpointUrl)).build();
@@ -244,6 +244,17 @@ public class UserWebService extends BaseScimWebService implements IUserWebServic
 
     }
 
+    /**
+     * Searches users returning the typed resources found (no serialization takes place). Parameters are expected to be
+     * already validated as is done in the decorator of this class
+     * @param sortBy A SCIM attribute path (not an LDAP attribute)
+     */
+    public PagedResult<BaseScimResource> searchUserResources(String filter, String sortBy, String sortOrder, int startIndex,
+                                                             int count, String attrsList, String excludedAttrsList) throws Exception {
+        return scim2UserService.searchUsers(filter, translateSortByAttribute(UserResource.class, sortBy), SortOrder.getByValue(sortOrder),
+                startIndex, count, endpointUrl, getMaxCount(), attrsList, excludedAttrsList);
+    }
+
     @Path(SEARCH_SUFFIX)
     @POST
     @Consumes({MEDIA_TYPE_SCIM_JSON, MediaType.APPLICATION_JSON})
@@ -290,9 +301,14 @@ public class UserWebService extends BaseScimWebService implements IUserWebServic
             log.debug("Executing web service method. patchUser");
             UserResource user=new UserResource();
             ScimCustomPerson person=userPersistenceHelper.getPersonByInum(id);  //person is not null (check associated decorator method)
+            PersonAttributesSnapshot original=PersonAttributesSnapshot.of(person);
+
+            //Groups are read-only: they are only needed if part of the response
+            boolean resourceRequested=scim2UserService.isResourceRequested(attrsList, excludedAttrsList);
+            boolean groupsRequested=resourceRequested && scim2UserService.isGroupsRequested(attrsList, excludedAttrsList);
 
             //Fill user instance with all info from person
-            scim2UserService.transferAttributesToUserResource(person, user, endpointUrl);
+            scim2UserService.transferAttributesToUserResource(person, user, endpointUrl, groupsRequested);
 
             //Apply patches one by one in sequence
             for (PatchOperation po : request.getOperations()) {
@@ -317,8 +333,8 @@ public class UserWebService extends BaseScimWebService implements IUserWebServic
             String now=ISODateTimeFormat.dateTime().withZoneUTC().print(System.currentTimeMillis());
             user.getMeta().setLastModified(now);
 
-            //Replaces the information found in person with the contents of user
-            scim2UserService.replacePersonInfo(person, user, endpointUrl);
+            //Replaces the information found in person with the contents of user (only modified attributes are written)
+            scim2UserService.replacePersonInfo(person, original, user, endpointUrl, resourceRequested);
 
             String json=resourceSerializer.serialize(user, attrsList, excludedAttrsList);
             response=Response.ok(new URI(user.getMeta().getLocation())).entity(json).build();
@@ -0,0 +1,137 @@
+package org.gluu.oxtrust.ldap.cache.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gluu.model.GluuStatus;
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKey;
+import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
+import org.testng.annotations.Test;
+
+public class CacheRefreshInumStoreTest {
+
+	@Test
+	public void testPutRemoveAndReopen() throws IOException {
+		File file = File.createTempFile("inum-store-", ".log");
+		file.delete();
+		try {
+			CacheRefreshInumStore inumStore = CacheRefreshInumStore.open(file);
+			assertTrue(inumStore.isCreated());
+
+			inumStore.putAll(Arrays.asList(createInumMap("inum-1", "uid-1"), createInumMap("inum-2", "uid-2")));
+			inumStore.removeAll(Collections.singletonList("inum-1"));
+			inumStore.close();
+
+			inumStore = CacheRefreshInumStore.open(file);
+			assertFalse(inumStore.isCreated());
+			assertEquals(inumStore.size(), 1);
+			assertNull(inumStore.getByInum("inum-1"));
+
+			GluuInumMap inumMap = inumStore.get(new CacheCompoundKey(new String[] { "uid-2" }, null, null));
+			assertEquals(inumMap.getInum(), "inum-2");
+			assertEquals(inumMap.getDn(), "inum=inum-2,ou=gluu");
+			assertEquals(inumMap.getStatus(), GluuStatus.ACTIVE);
+			assertNull(inumMap.getSecondaryKeyValues());
+
+			inumStore.compact();
+			inumStore.close();
+
+			inumStore = CacheRefreshInumStore.open(file);
+			assertEquals(inumStore.size(), 1);
+			assertEquals(inumStore.getByInum("inum-2").getPrimaryKeyValues(), new String[] { "uid-2" });
+			inumStore.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testTruncatedRecord() throws IOException {
+		File file = File.createTempFile("inum-store-", ".log");
+		file.delete();
+		try {
+			CacheRefreshInumStore inumStore = CacheRefreshInumStore.open(file);
+			inumStore.putAll(Arrays.asList(createInumMap("inum-1", "uid-1"), createInumMap("inum-2", "uid-2")));
+			inumStore.close();
+
+			// Emulate partially written last record
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				randomAccessFile.setLength(randomAccessFile.length() - 3);
+			} finally {
+				randomAccessFile.close();
+			}
+
+			inumStore = CacheRefreshInumStore.open(file);
+			assertEquals(inumStore.size(), 1);
+			assertEquals(inumStore.getByInum("inum-1").getInum(), "inum-1");
+
+			inumStore.putAll(Collections.singletonList(createInumMap("inum-3", "uid-3")));
+			inumStore.close();
+
+			inumStore = CacheRefreshInumStore.open(file);
+			assertEquals(inumStore.size(), 2);
+			assertEquals(inumStore.getByInum("inum-3").getInum(), "inum-3");
+			inumStore.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testSourceDns() throws IOException {
+		File file = File.createTempFile("inum-store-", ".log");
+		file.delete();
+		try {
+			CacheRefreshInumStore inumStore = CacheRefreshInumStore.open(file);
+			inumStore.putAll(Arrays.asList(createInumMap("inum-1", "uid-1"), createInumMap("inum-2", "uid-2")));
+
+			Map<String, String> inumSourceDns = new HashMap<String, String>();
+			inumSourceDns.put("inum-1", "uid=uid-1,ou=people,dc=example");
+			inumSourceDns.put("inum-2", "uid=uid-2,ou=people,dc=example");
+			// Source DNs of unknown inums are ignored
+			inumSourceDns.put("inum-3", "uid=uid-3,ou=people,dc=example");
+			inumStore.putSourceDns(inumSourceDns);
+			inumStore.removeAll(Collections.singletonList("inum-2"));
+			inumStore.close();
+
+			inumStore = CacheRefreshInumStore.open(file);
+			assertEquals(inumStore.getSourceDn("inum-1"), "uid=uid-1,ou=people,dc=example");
+			assertNull(inumStore.getSourceDn("inum-2"));
+			assertNull(inumStore.getSourceDn("inum-3"));
+
+			inumStore.putSourceDns(Collections.singletonMap("inum-1", "uid=uid-1,ou=staff,dc=example"));
+			inumStore.compact();
+			inumStore.close();
+
+			inumStore = CacheRefreshInumStore.open(file);
+			assertEquals(inumStore.size(), 1);
+			assertEquals(inumStore.getSourceDn("inum-1"), "uid=uid-1,ou=staff,dc=example");
+			inumStore.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	private GluuInumMap createInumMap(String inum, String uid) {
+		GluuInumMap inumMap = new GluuInumMap();
+		inumMap.setDn("inum=" + inum + ",ou=gluu");
+		inumMap.setInum(inum);
+		inumMap.setPrimaryKeyAttrName("uid");
+		inumMap.setPrimaryKeyValues(new String[] { uid });
+		inumMap.setStatus(GluuStatus.ACTIVE);
+
+		return inumMap;
+	}
+
+}
@@ -0,0 +1,67 @@
+package org.gluu.oxtrust.ldap.cache.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheEntryDigest;
+import org.testng.annotations.Test;
+
+public class CacheRefreshSnapshotTest {
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		Map<String, CacheEntryDigest> digests = new HashMap<String, CacheEntryDigest>();
+		digests.put("c-inum", new CacheEntryDigest(3L, 30L));
+		digests.put("a-inum", new CacheEntryDigest(1L, 10L));
+		digests.put("b-inum", new CacheEntryDigest(2L, 20L));
+
+		File file = File.createTempFile("inum-snapshot-", ".bin");
+		try {
+			CacheRefreshSnapshot.write(file, digests, false);
+			CacheRefreshSnapshot snapshot = CacheRefreshSnapshot.open(file);
+
+			assertEquals(snapshot.size(), 3);
+			assertFalse(snapshot.isLegacyHashCodes());
+
+			// Entries should be sorted by inum
+			assertEquals(snapshot.getInum(0), "a-inum");
+			assertEquals(snapshot.getInum(1), "b-inum");
+			assertEquals(snapshot.getInum(2), "c-inum");
+
+			assertEquals(snapshot.getDigest("b-inum"), new CacheEntryDigest(2L, 20L));
+			assertNull(snapshot.getDigest("d-inum"));
+
+			assertFalse(snapshot.isChanged("c-inum", new CacheEntryDigest(3L, 30L)));
+			assertTrue(snapshot.isChanged("c-inum", new CacheEntryDigest(3L, 31L)));
+			assertTrue(snapshot.isChanged("d-inum", new CacheEntryDigest(3L, 30L)));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testLegacyHashCodes() throws IOException {
+		Map<String, CacheEntryDigest> digests = new HashMap<String, CacheEntryDigest>();
+		digests.put("a-inum", CacheEntryDigest.fromLegacyHashCode(-12345));
+
+		File file = File.createTempFile("inum-snapshot-", ".bin");
+		try {
+			CacheRefreshSnapshot.write(file, digests, true);
+			CacheRefreshSnapshot snapshot = CacheRefreshSnapshot.open(file);
+
+			assertTrue(snapshot.isLegacyHashCodes());
+			assertFalse(snapshot.isChanged("a-inum", new CacheEntryDigest(7L, 8L, -12345)));
+			assertTrue(snapshot.isChanged("a-inum", new CacheEntryDigest(7L, 8L, 12345)));
+		} finally {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.gluu.oxtrust.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.gluu.oxtrust.service.MetadataEntityIdIndex.EntityIds;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class MetadataEntityIdIndexTest {
+
+	private File folder;
+
+	@BeforeMethod
+	public void createFolder() throws IOException {
+		folder = Files.createTempDirectory("metadata").toFile();
+	}
+
+	@AfterMethod
+	public void deleteFolder() throws IOException {
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Test
+	public void testEntityIdsExtracted() throws IOException {
+		File metadataFile = writeMetadata("federation.xml", 1000L, "https://sp1.example.com", "https://sp2.example.com",
+				"https://sp1.example.com");
+
+		EntityIds entityIds = newIndex().update(metadataFile);
+		assertEquals(entityIds.getEntityIds(),
+				Arrays.asList("https://sp1.example.com", "https://sp2.example.com", "https://sp1.example.com"));
+		assertTrue(entityIds.isChanged());
+		assertEquals(entityIds.getAddedEntityIds().size(), 2);
+		assertTrue(entityIds.getRemovedEntityIds().isEmpty());
+	}
+
+	@Test
+	public void testUnchangedFileTakenFromIndex() throws IOException {
+		File metadataFile = writeMetadata("federation.xml", 1000L, "https://sp1.example.com");
+		newIndex().update(metadataFile);
+
+		// New instance reads index stored on disk
+		EntityIds entityIds = newIndex().update(metadataFile);
+		assertEquals(entityIds.getEntityIds(), Collections.singletonList("https://sp1.example.com"));
+		assertFalse(entityIds.isChanged());
+
+		// Touched file with same content isn't reported as changed
+		assertTrue(metadataFile.setLastModified(2000L));
+		assertFalse(newIndex().update(metadataFile).isChanged());
+	}
+
+	@Test
+	public void testChangedFileDelta() throws IOException {
+		MetadataEntityIdIndex index = newIndex();
+		index.update(writeMetadata("federation.xml", 1000L, "https://sp1.example.com", "https://sp2.example.com"));
+
+		EntityIds entityIds = index
+				.update(writeMetadata("federation.xml", 2000L, "https://sp2.example.com", "https://sp3.example.com"));
+		assertTrue(entityIds.isChanged());
+		assertEquals(entityIds.getAddedEntityIds(), Collections.singleton("https://sp3.example.com"));
+		assertEquals(entityIds.getRemovedEntityIds(), Collections.singleton("https://sp1.example.com"));
+	}
+
+	@Test
+	public void testInvalidFile() throws IOException {
+		File metadataFile = new File(folder, "invalid.xml");
+		Files.write(metadataFile.toPath(), "<EntityDescriptor entityID=\"x\">".getBytes(StandardCharsets.UTF_8));
+
+		MetadataEntityIdIndex index = newIndex();
+		assertNull(index.getEntityIds(metadataFile));
+		assertNull(index.getEntityIds(new File(folder, "missing.xml")));
+	}
+
+	@Test
+	public void testRemovedFileEvicted() throws IOException {
+		MetadataEntityIdIndex index = newIndex();
+		File metadataFile = writeMetadata("federation.xml", 1000L, "https://sp1.example.com");
+		index.update(metadataFile);
+		assertEquals(getIndexFolder().list().length, 1);
+
+		assertTrue(metadataFile.delete());
+		assertNull(index.update(metadataFile));
+		assertEquals(getIndexFolder().list().length, 0);
+
+		// File created again is reported as new
+		metadataFile = writeMetadata("federation.xml", 1000L, "https://sp1.example.com");
+		assertTrue(index.update(metadataFile).isChanged());
+	}
+
+	@Test
+	public void testStaleEntriesRemoved() throws IOException {
+		File metadataFile = writeMetadata("federation.xml", 1000L, "https://sp1.example.com");
+		File otherMetadataFile = writeMetadata("other.xml", 1000L, "https://sp2.example.com");
+		File legacyIndexFolder = new File(folder, ".entityid-index");
+		assertTrue(legacyIndexFolder.mkdir());
+		Files.write(new File(legacyIndexFolder, "federation.xml.idx").toPath(), "#v1".getBytes(StandardCharsets.UTF_8));
+
+		MetadataEntityIdIndex index = newIndex();
+		index.update(metadataFile);
+		index.update(otherMetadataFile);
+
+		assertTrue(otherMetadataFile.delete());
+		index.removeStaleEntries();
+		assertEquals(getIndexFolder().list().length, 1);
+		assertFalse(legacyIndexFolder.exists());
+		assertFalse(newIndex().update(metadataFile).isChanged());
+	}
+
+	private MetadataEntityIdIndex newIndex() {
+		return new MetadataEntityIdIndex(getIndexFolder());
+	}
+
+	private File getIndexFolder() {
+		return new File(folder, "index");
+	}
+
+	private File writeMetadata(String fileName, long lastModified, String... entityIds) throws IOException {
+		StringBuilder sb = new StringBuilder("<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\">");
+		for (String entityId : entityIds) {
+			sb.append("<md:EntityDescriptor entityID=\"").append(entityId).append("\"><md:SPSSODescriptor/></md:EntityDescriptor>");
+		}
+		sb.append("</md:EntitiesDescriptor>");
+
+		File metadataFile = new File(folder, fileName);
+		Files.write(metadataFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		metadataFile.setLastModified(lastModified);
+
+		return metadataFile;
+	}
+
+}
@@ -0,0 +1,70 @@
+package org.gluu.oxtrust.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.gluu.oxtrust.model.GluuSAMLTrustRelationship;
+import org.testng.annotations.Test;
+
+public class TrustRelationshipIndexTest {
+
+	@Test
+	public void testLookups() {
+		TrustRelationshipIndex index = new TrustRelationshipIndex(60000L);
+		GluuSAMLTrustRelationship first = trust("@!1111");
+		GluuSAMLTrustRelationship second = trust("@!2222");
+		index.load(Arrays.asList(first, second));
+
+		assertTrue(index.isValid());
+		assertEquals(index.getDnByUnpunctuatedInum("1111"), first.getDn());
+		assertEquals(index.getDnByUnpunctuatedInum("2222"), second.getDn());
+		assertNull(index.getDnByUnpunctuatedInum("@!2222"));
+	}
+
+	@Test
+	public void testUpdates() {
+		TrustRelationshipIndex index = new TrustRelationshipIndex(60000L);
+		GluuSAMLTrustRelationship trust = trust("@!2222");
+
+		// Changes are ignored until index is loaded
+		index.put(trust);
+		assertNull(index.getDnByUnpunctuatedInum("2222"));
+
+		index.load(null);
+		index.put(trust);
+		assertEquals(index.getDnByUnpunctuatedInum("2222"), trust.getDn());
+
+		trust.setInum("@!3333");
+		index.put(trust);
+		assertNull(index.getDnByUnpunctuatedInum("2222"));
+		assertEquals(index.getDnByUnpunctuatedInum("3333"), trust.getDn());
+
+		index.remove(trust.getDn().toUpperCase());
+		assertNull(index.getDnByUnpunctuatedInum("3333"));
+	}
+
+	@Test
+	public void testExpiration() {
+		TrustRelationshipIndex index = new TrustRelationshipIndex(0L);
+		index.load(Collections.<GluuSAMLTrustRelationship>emptyList());
+		assertFalse(index.isValid());
+
+		index = new TrustRelationshipIndex(60000L);
+		index.load(Collections.<GluuSAMLTrustRelationship>emptyList());
+		index.invalidate();
+		assertFalse(index.isValid());
+	}
+
+	private GluuSAMLTrustRelationship trust(String inum) {
+		GluuSAMLTrustRelationship trust = new GluuSAMLTrustRelationship();
+		trust.setInum(inum);
+		trust.setDn("inum=" + inum + ",ou=trustRelationships,o=gluu");
+		return trust;
+	}
+
+}
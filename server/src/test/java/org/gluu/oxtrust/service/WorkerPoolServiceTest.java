@@ -0,0 +1,98 @@
+package org.gluu.oxtrust.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class WorkerPoolServiceTest {
+
+	private WorkerPoolService workerPoolService;
+
+	@BeforeMethod
+	public void createPool() {
+		workerPoolService = new WorkerPoolService();
+		workerPoolService.init(1);
+	}
+
+	@AfterMethod
+	public void destroyPool() {
+		workerPoolService.destroy();
+	}
+
+	@Test
+	public void testResultsInTaskOrder() throws Exception {
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 20; i++) {
+			final int value = i;
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					if (value == 5) {
+						throw new IllegalStateException("Task failed");
+					}
+					return value;
+				}
+			});
+		}
+
+		List<Future<Integer>> futures = workerPoolService.invokeAll(tasks, 4);
+		assertEquals(futures.size(), 20);
+		for (int i = 0; i < 20; i++) {
+			assertTrue(futures.get(i).isDone());
+			if (i == 5) {
+				try {
+					futures.get(i).get();
+					fail("Task exception should be reported");
+				} catch (ExecutionException ex) {
+					assertTrue(ex.getCause() instanceof IllegalStateException);
+				}
+			} else {
+				assertEquals(futures.get(i).get(), Integer.valueOf(i));
+			}
+		}
+	}
+
+	@Test(timeOut = 10000)
+	public void testNestedInvocationCompletes() throws Exception {
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 4; i++) {
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					List<Callable<Integer>> nestedTasks = new ArrayList<Callable<Integer>>();
+					for (int j = 0; j < 4; j++) {
+						nestedTasks.add(new Callable<Integer>() {
+							@Override
+							public Integer call() {
+								return 1;
+							}
+						});
+					}
+
+					int sum = 0;
+					for (Future<Integer> future : workerPoolService.invokeAll(nestedTasks, 4)) {
+						sum += future.get();
+					}
+					return sum;
+				}
+			});
+		}
+
+		int sum = 0;
+		for (Future<Integer> future : workerPoolService.invokeAll(tasks, 4)) {
+			sum += future.get();
+		}
+		assertEquals(sum, 16);
+	}
+
+}
@@ -0,0 +1,54 @@
+package org.gluu.oxtrust.service.antlr.scimFilter.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class FilterShapeTest {
+
+	@Test
+	public void testSameShapeForDifferentValues() {
+		FilterShape shape1 = FilterShape.of("userName eq \"john\" and meta.lastModified gt \"2019-01-01T00:00:00Z\"");
+		FilterShape shape2 = FilterShape.of("userName eq \"jane\" and meta.lastModified gt \"2020-05-01T00:00:00Z\"");
+
+		assertEquals(shape1.getTemplate(), "userName eq ?s and meta.lastModified gt ?s");
+		assertEquals(shape1.getTemplate(), shape2.getTemplate());
+		assertEquals(shape2.getValues(), Arrays.asList("\"jane\"", "\"2020-05-01T00:00:00Z\""));
+	}
+
+	@Test
+	public void testNumbersAndKeywords() {
+		FilterShape shape = FilterShape.of("(age gt -5 or score le 2.5) and active eq true and nickName eq null");
+
+		assertEquals(shape.getTemplate(), "(age gt ?n or score le ?n) and active eq true and nickName eq null");
+		assertEquals(shape.getValues(), Arrays.asList("-5", "2.5"));
+	}
+
+	@Test
+	public void testDigitsInAttributeNames() {
+		FilterShape shape = FilterShape.of("urn:ietf:params:scim:schemas:extension:gluu:2.0:User:attr2 eq 10");
+
+		assertEquals(shape.getTemplate(), "urn:ietf:params:scim:schemas:extension:gluu:2.0:User:attr2 eq ?n");
+		assertEquals(shape.getValues(), Arrays.asList("10"));
+	}
+
+	@Test
+	public void testEscapedStrings() {
+		FilterShape shape = FilterShape.of("displayName co \"a \\\"b\\\" \\u00e9\"");
+
+		assertEquals(shape.getTemplate(), "displayName co ?s");
+		assertEquals(shape.getValues(), Arrays.asList("\"a \\\"b\\\" \\u00e9\""));
+	}
+
+	@Test
+	public void testUnsupportedFilters() {
+		assertNull(FilterShape.of("displayName eq \"unterminated"));
+		assertNull(FilterShape.of("displayName eq \"bad \\x escape\""));
+		assertNull(FilterShape.of("displayName eq ?s"));
+		assertNull(FilterShape.of("age gt 5abc"));
+	}
+
+}
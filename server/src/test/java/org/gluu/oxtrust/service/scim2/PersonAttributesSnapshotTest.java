@@ -0,0 +1,119 @@
+package org.gluu.oxtrust.service.scim2;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+
+import org.gluu.oxtrust.model.scim.ScimCustomPerson;
+import org.testng.annotations.Test;
+
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+
+public class PersonAttributesSnapshotTest {
+
+	private static final Function<Date, String> TIME_ENCODER = date -> String.valueOf(date.getTime());
+
+	@Test
+	public void testUnchangedPerson() {
+		ScimCustomPerson person = createPerson();
+		PersonAttributesSnapshot snapshot = PersonAttributesSnapshot.of(person);
+
+		person.setAttribute("displayName", "John Doe");
+		person.setAttribute("oxTrustEmail", new String[] { "{\"value\":\"john@example.com\"}" });
+		person.setCustomAttribute("oxTrustActive", Boolean.TRUE);
+
+		assertTrue(snapshot.getModifications(person, TIME_ENCODER).isEmpty());
+	}
+
+	@Test
+	public void testReplacedValue() {
+		ScimCustomPerson person = createPerson();
+		PersonAttributesSnapshot snapshot = PersonAttributesSnapshot.of(person);
+
+		person.setAttribute("displayName", "Johnny");
+
+		List<Modification> modifications = snapshot.getModifications(person, TIME_ENCODER);
+		assertEquals(modifications.size(), 1);
+		assertModification(modifications.get(0), ModificationType.REPLACE, "displayName", "Johnny");
+	}
+
+	@Test
+	public void testAddedAndRemovedValues() {
+		ScimCustomPerson person = createPerson();
+		PersonAttributesSnapshot snapshot = PersonAttributesSnapshot.of(person);
+
+		person.setAttribute("oxTrustEmail", new String[] { "{\"value\":\"john@example.com\"}", "{\"value\":\"jd@example.com\"}" });
+		person.setAttribute("oxTrustRole", new String[] { "{\"value\":\"admin\"}" });
+
+		List<Modification> modifications = snapshot.getModifications(person, TIME_ENCODER);
+		assertEquals(modifications.size(), 2);
+		assertModification(modifications.get(0), ModificationType.ADD, "oxTrustEmail", "{\"value\":\"jd@example.com\"}");
+		assertModification(modifications.get(1), ModificationType.DELETE, "oxTrustRole", "{\"value\":\"user\"}");
+	}
+
+	@Test
+	public void testClearedAttributeAndDates() {
+		ScimCustomPerson person = createPerson();
+		PersonAttributesSnapshot snapshot = PersonAttributesSnapshot.of(person);
+
+		person.setAttribute("displayName", (String) null);
+		person.setUpdatedAt(new Date(1000L));
+
+		List<Modification> modifications = snapshot.getModifications(person, TIME_ENCODER);
+		assertEquals(modifications.size(), 2);
+		assertModification(modifications.get(0), ModificationType.DELETE, "displayName");
+		assertModification(modifications.get(1), ModificationType.ADD, "updatedAt", "1000");
+	}
+
+	@Test
+	public void testObjectClassAdded() {
+		ScimCustomPerson person = createPerson();
+		PersonAttributesSnapshot snapshot = PersonAttributesSnapshot.of(person);
+
+		person.setCustomObjectClasses(new String[] { "gluuPerson", "gluuCustomPerson" });
+
+		List<Modification> modifications = snapshot.getModifications(person, TIME_ENCODER);
+		assertEquals(modifications.size(), 1);
+		assertModification(modifications.get(0), ModificationType.ADD, "objectClass", "gluuCustomPerson");
+	}
+
+	@Test
+	public void testValuesWithoutRawRepresentation() {
+		ScimCustomPerson person = createPerson();
+		PersonAttributesSnapshot snapshot = PersonAttributesSnapshot.of(person);
+
+		person.setCustomAttribute("oxTrustActive", Boolean.FALSE);
+		assertNull(snapshot.getModifications(person, TIME_ENCODER));
+
+		person = createPerson();
+		snapshot = PersonAttributesSnapshot.of(person);
+
+		person.setUserPassword("secret");
+		assertNull(snapshot.getModifications(person, TIME_ENCODER));
+	}
+
+	private ScimCustomPerson createPerson() {
+		ScimCustomPerson person = new ScimCustomPerson();
+		person.setDn("inum=1,ou=people,o=gluu");
+		person.setCustomObjectClasses(new String[] { "gluuPerson" });
+		person.setAttribute("displayName", "John Doe");
+		person.setAttribute("oxTrustEmail", new String[] { "{\"value\":\"john@example.com\"}" });
+		person.setAttribute("oxTrustRole", new String[] { "{\"value\":\"admin\"}", "{\"value\":\"user\"}" });
+		// Values of boolean attributes are read as strings
+		person.setCustomAttribute("oxTrustActive", "true");
+
+		return person;
+	}
+
+	private void assertModification(Modification modification, ModificationType type, String name, String... values) {
+		assertEquals(modification.getModificationType(), type);
+		assertTrue(modification.getAttributeName().equalsIgnoreCase(name));
+		assertEquals(modification.getValues(), values);
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.gluu.oxtrust.service.scim2;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.gluu.oxtrust.model.scim.ScimCustomPerson;
+import org.gluu.oxtrust.model.scim2.BaseScimResource;
+import org.gluu.oxtrust.model.scim2.extensions.Extension;
+import org.gluu.oxtrust.model.scim2.extensions.ExtensionField;
+import org.gluu.oxtrust.model.scim2.user.UserResource;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Checks that LDAP attributes requested for a projected user search are enough
+ * to build every attribute of the user the same way as a full search does
+ */
+public class UserReturnAttributesTest {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private Scim2UserService userService;
+
+	@BeforeClass
+	public void init() throws Exception {
+		userService = new Scim2UserService();
+		setField("log", LoggerFactory.getLogger(Scim2UserService.class));
+		setField("extService", new ExtensionService() {
+			@Override
+			public List<Extension> getResourceExtensions(Class<? extends BaseScimResource> cls) {
+				return Collections.emptyList();
+			}
+		});
+	}
+
+	@Test
+	public void testReturnAttributesMatchTransferredAttributes() {
+		JsonNode fullUser = transfer(null);
+
+		for (Iterator<String> it = fullUser.fieldNames(); it.hasNext();) {
+			String path = it.next();
+			// Groups are resolved by a separate search and password is never returned
+			if (path.equals("groups") || path.equals("password")) {
+				continue;
+			}
+
+			Set<String> attributes = Scim2UserService.getReturnAttributes(Collections.singletonList(path),
+					Collections.<Extension>emptyList());
+			assertEquals(transfer(attributes).get(path), fullUser.get(path),
+					"LDAP attributes " + attributes + " don't build '" + path + "'");
+		}
+	}
+
+	@Test
+	public void testExtensionAttributesAlwaysReturned() {
+		Extension extension = new Extension("urn:ietf:params:scim:schemas:extension:gluu:2.0:User");
+		extension.getFields().put("departmentNumber", new ExtensionField());
+
+		Set<String> attributes = Scim2UserService.getReturnAttributes(Collections.singletonList("userName"),
+				Collections.singletonList(extension));
+		assertTrue(attributes.contains("departmentNumber"), "Extension attribute is not in " + attributes);
+	}
+
+	private JsonNode transfer(Set<String> loadedAttributes) {
+		UserResource user = new UserResource();
+		userService.transferAttributesToUserResource(createPerson(loadedAttributes), user, "https://localhost/Users",
+				false);
+
+		return mapper.valueToTree(user);
+	}
+
+	/**
+	 * @return Person which has a value for every attribute in loadedAttributes,
+	 *         or for any attribute if it's null
+	 */
+	private ScimCustomPerson createPerson(final Set<String> loadedAttributes) {
+		return new ScimCustomPerson() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public List<String> getAttributeList(String attributeName) {
+				if (!isLoaded(attributeName)) {
+					return Collections.emptyList();
+				}
+
+				if (attributeName.equals("gluuStatus")) {
+					return Collections.singletonList("active");
+				}
+				return Collections.singletonList("{\"value\":\"" + attributeName + "\"}");
+			}
+
+			@Override
+			public Date getCreationDate() {
+				return isLoaded("oxCreationTimestamp") ? new Date(1000L) : null;
+			}
+
+			@Override
+			public Date getUpdatedAt() {
+				return isLoaded("updatedAt") ? new Date(2000L) : null;
+			}
+
+			@Override
+			public List<String> getOxPPID() {
+				return isLoaded("oxPPID") ? Collections.singletonList("ppid") : null;
+			}
+
+			private boolean isLoaded(String attributeName) {
+				return (loadedAttributes == null) || loadedAttributes.contains(attributeName);
+			}
+
+		};
+	}
+
+	private void setField(String name, Object value) throws Exception {
+		Field field = Scim2UserService.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(userService, value);
+	}
+
+}
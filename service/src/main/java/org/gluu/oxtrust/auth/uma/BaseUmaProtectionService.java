@@ -4,7 +4,9 @@ import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -46,28 +48,64 @@ public abstract class BaseUmaProtectionService implements Serializable {
 	@Inject
 	protected UmaPermissionService umaPermissionService;
 
-	private Token umaPat;
-	private long umaPatAccessTokenExpiration = 0l; // When the "accessToken" will expire;
+	private final AtomicReference<PatToken> umaPat = new AtomicReference<PatToken>();
 
 	private final ReentrantLock lock = new ReentrantLock();
 
+	/**
+	 * Returns current PAT token without locking. Token is requested synchronously
+	 * only when there is no token yet or background renewal failed until token
+	 * expiration
+	 */
 	public Token getPatToken() throws UmaProtectionException {
-		if (isValidPatToken(this.umaPat, this.umaPatAccessTokenExpiration)) {
-			return this.umaPat;
+		PatToken patToken = this.umaPat.get();
+		if (isValidPatToken(patToken)) {
+			return patToken.getToken();
 		}
 
 		lock.lock();
 		try {
-			if (isValidPatToken(this.umaPat, this.umaPatAccessTokenExpiration)) {
-				return this.umaPat;
+			patToken = this.umaPat.get();
+			if (isValidPatToken(patToken)) {
+				return patToken.getToken();
 			}
 
-			retrievePatToken();
+			this.umaPat.set(null);
+			patToken = retrievePatToken();
+			this.umaPat.set(patToken);
 		} finally {
 			lock.unlock();
 		}
 
-		return this.umaPat;
+		return patToken == null ? null : patToken.getToken();
+	}
+
+	/**
+	 * Renew PAT token ahead of expiration. Current token is kept if renewal fails
+	 * and next attempt is made on next call
+	 */
+	public void renewPatTokenIfNeeded() {
+		PatToken patToken = this.umaPat.get();
+		if ((patToken == null) || (System.currentTimeMillis() < patToken.getRenewAt())) {
+			return;
+		}
+
+		if (!lock.tryLock()) {
+			return;
+		}
+
+		try {
+			log.debug("Renewing UMA PAT token which expires at '{}'", new Date(patToken.getExpiresAt()));
+			PatToken newPatToken = retrievePatToken();
+			if (newPatToken != null) {
+				this.umaPat.compareAndSet(patToken, newPatToken);
+			}
+		} catch (UmaProtectionException ex) {
+			log.warn("Failed to renew UMA PAT token. Current token will be used until '{}'",
+					new Date(patToken.getExpiresAt()), ex);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	protected boolean isEnabledUmaAuthentication() {
@@ -91,10 +129,9 @@ public abstract class BaseUmaProtectionService implements Serializable {
 		return umaMetadata.getIssuer();
 	}
 
-	private void retrievePatToken() throws UmaProtectionException {
-		this.umaPat = null;
+	private PatToken retrievePatToken() throws UmaProtectionException {
 		if (umaMetadata == null) {
-			return;
+			return null;
 		}
 
 		String umaClientKeyStoreFile = getClientKeyStoreFile();
@@ -111,21 +148,23 @@ public abstract class BaseUmaProtectionService implements Serializable {
 			}
 		}
 
+		Token token;
 		try {
-			this.umaPat = UmaClient.requestPat(umaMetadata.getTokenEndpoint(), umaClientKeyStoreFile,
+			token = UmaClient.requestPat(umaMetadata.getTokenEndpoint(), umaClientKeyStoreFile,
 					umaClientKeyStorePassword, getClientId(), getClientKeyId());
-			if (this.umaPat == null) {
-				this.umaPatAccessTokenExpiration = 0l;
-			} else {
-				this.umaPatAccessTokenExpiration = computeAccessTokenExpirationTime(this.umaPat.getExpiresIn());
-			}
 		} catch (Exception ex) {
 			throw new UmaProtectionException("Failed to obtain valid UMA PAT token", ex);
 		}
 
-		if ((this.umaPat == null) || (this.umaPat.getAccessToken() == null)) {
+		if ((token == null) || (token.getAccessToken() == null)) {
 			throw new UmaProtectionException("Failed to obtain valid UMA PAT token");
 		}
+
+		long now = System.currentTimeMillis();
+		long expiresAt = computeAccessTokenExpirationTime(token.getExpiresIn());
+
+		// Renew token when 3/4 of its lifetime passed
+		return new PatToken(token, now + (expiresAt - now) * 3 / 4, expiresAt);
 	}
 
 	protected long computeAccessTokenExpirationTime(Integer expiresIn) {
@@ -139,12 +178,11 @@ public abstract class BaseUmaProtectionService implements Serializable {
 		return calendar.getTimeInMillis();
 	}
 
-	private boolean isValidPatToken(Token validatePatToken, long validatePatTokenExpiration) {
+	private boolean isValidPatToken(PatToken patToken) {
 		final long now = System.currentTimeMillis();
 
 		// Get new access token only if is the previous one is missing or expired
-		return !((validatePatToken == null) || (validatePatToken.getAccessToken() == null)
-				|| (validatePatTokenExpiration <= now));
+		return !((patToken == null) || (patToken.getExpiresAt() <= now));
 	}
 
 	protected Response getErrorResponse(Response.Status status, String detail) {
@@ -217,4 +255,30 @@ public abstract class BaseUmaProtectionService implements Serializable {
 
 	public abstract Response processAuthorization(HttpHeaders headers, ResourceInfo resourceInfo);
 
-}
\ No newline at end of file
+	private static class PatToken {
+
+		private final Token token;
+		private final long renewAt;
+		private final long expiresAt;
+
+		PatToken(Token token, long renewAt, long expiresAt) {
+			this.token = token;
+			this.renewAt = renewAt;
+			this.expiresAt = expiresAt;
+		}
+
+		public Token getToken() {
+			return token;
+		}
+
+		public long getRenewAt() {
+			return renewAt;
+		}
+
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.auth.uma;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gluu.oxauth.model.uma.RptIntrospectionResponse;
+
+/**
+ * Bounded cache of active RPT introspection responses. Tokens are stored as
+ * SHA-256 digests only. Entry expires after cache TTL or when token expires,
+ * whichever comes first. Least recently used entries are evicted when cache is
+ * full
+ */
+public class RptIntrospectionCache {
+
+	/**
+	 * Allowed difference between oxAuth and local clocks
+	 */
+	private static final long CLOCK_SKEW = 60 * 1000L;
+
+	private final int maxSize;
+	private final long ttl;
+	private final LinkedHashMap<String, CacheEntry> entries;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            Maximum number of cached responses
+	 * @param ttl
+	 *            Maximum time to keep response in milliseconds
+	 */
+	public RptIntrospectionCache(final int maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 4329117513813373390L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > maxSize) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return (maxSize > 0) && (ttl > 0);
+	}
+
+	public RptIntrospectionResponse get(String rptToken) {
+		if (!isEnabled()) {
+			return null;
+		}
+
+		String key = digest(rptToken);
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			CacheEntry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.expiresAt > now) {
+					hitCount.incrementAndGet();
+					return entry.response;
+				}
+
+				entries.remove(key);
+				evictionCount.incrementAndGet();
+			}
+		}
+		missCount.incrementAndGet();
+
+		return null;
+	}
+
+	/**
+	 * Cache response if token is active and not expired. Tokens with issue time
+	 * in the future are not cached
+	 */
+	public void put(String rptToken, RptIntrospectionResponse response) {
+		if (!isEnabled() || (response == null) || !response.getActive()) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long expiresAt = now + ttl;
+
+		Number tokenExpiresAt = response.getExpiresAt();
+		if (tokenExpiresAt != null) {
+			expiresAt = Math.min(expiresAt, tokenExpiresAt.longValue() * 1000);
+		}
+
+		Number tokenIssuedAt = response.getIssuedAt();
+		if ((tokenIssuedAt != null) && (tokenIssuedAt.longValue() * 1000 > now + CLOCK_SKEW)) {
+			return;
+		}
+
+		if (expiresAt <= now) {
+			return;
+		}
+
+		String key = digest(rptToken);
+		synchronized (entries) {
+			entries.put(key, new CacheEntry(response, expiresAt));
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	private String digest(String rptToken) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(rptToken.getBytes(StandardCharsets.UTF_8));
+
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+
+			return sb.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 isn't supported", ex);
+		}
+	}
+
+	private static class CacheEntry {
+
+		private final RptIntrospectionResponse response;
+		private final long expiresAt;
+
+		CacheEntry(RptIntrospectionResponse response, long expiresAt) {
+			this.response = response;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+}
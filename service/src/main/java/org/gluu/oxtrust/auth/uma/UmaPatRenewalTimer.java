@@ -0,0 +1,77 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.auth.uma;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.service.cdi.event.UmaPatRenewalEvent;
+import org.gluu.service.cdi.async.Asynchronous;
+import org.gluu.service.cdi.event.Scheduled;
+import org.gluu.service.timer.event.TimerEvent;
+import org.gluu.service.timer.schedule.TimerSchedule;
+import org.slf4j.Logger;
+
+/**
+ * Renews UMA PAT tokens of protection services in background, so request
+ * threads don't wait for token renewal
+ */
+@ApplicationScoped
+@Named
+public class UmaPatRenewalTimer {
+
+	private final static int DEFAULT_INTERVAL = 10; // 10 seconds
+
+	@Inject
+	private Logger log;
+
+	@Inject
+	private Event<TimerEvent> timerEvent;
+
+	@Inject
+	private Instance<BaseUmaProtectionService> protectionServiceInstance;
+
+	private AtomicBoolean isActive;
+
+	public void initTimer() {
+		log.debug("Initializing UMA PAT Renewal Timer");
+		this.isActive = new AtomicBoolean(false);
+
+		timerEvent.fire(new TimerEvent(new TimerSchedule(DEFAULT_INTERVAL, DEFAULT_INTERVAL), new UmaPatRenewalEvent(),
+				Scheduled.Literal.INSTANCE));
+	}
+
+	@Asynchronous
+	public void process(@Observes @Scheduled UmaPatRenewalEvent umaPatRenewalEvent) {
+		if (this.isActive.get()) {
+			return;
+		}
+
+		if (!this.isActive.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			for (BaseUmaProtectionService protectionService : protectionServiceInstance) {
+				try {
+					protectionService.renewPatTokenIfNeeded();
+				} catch (Exception ex) {
+					log.error("Exception happened while renewing UMA PAT token", ex);
+				}
+			}
+		} finally {
+			this.isActive.set(false);
+		}
+	}
+
+}
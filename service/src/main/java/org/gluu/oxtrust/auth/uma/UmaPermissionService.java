@@ -6,6 +6,7 @@ import java.net.URL;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
@@ -37,8 +38,10 @@ import org.gluu.oxauth.model.uma.UmaMetadata;
 import org.gluu.oxauth.model.uma.UmaPermission;
 import org.gluu.oxauth.model.uma.UmaPermissionList;
 import org.gluu.oxauth.model.uma.wrapper.Token;
+import org.gluu.oxtrust.config.ConfigurationFactory;
 import org.gluu.util.Pair;
 import org.gluu.util.StringHelper;
+import org.gluu.util.properties.FileConfiguration;
 import org.jboss.resteasy.client.core.executors.ApacheHttpClient4Executor;
 import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
 import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient4Engine;
@@ -55,6 +58,17 @@ public class UmaPermissionService implements Serializable {
 
 	private static final long serialVersionUID = -3347131971095468866L;
 
+	private static final String RPT_CACHE_TTL_PROPERTY = "rptIntrospectionCacheTtl";
+	private static final int DEFAULT_RPT_CACHE_TTL = 60;
+
+	private static final String RPT_CACHE_MAX_SIZE_PROPERTY = "rptIntrospectionCacheMaxSize";
+	private static final int DEFAULT_RPT_CACHE_MAX_SIZE = 10000;
+
+	/**
+	 * Number of RPT validations between cache statistics log entries
+	 */
+	private static final int RPT_CACHE_STATISTICS_INTERVAL = 1000;
+
 	@Inject
 	private Logger log;
 
@@ -64,14 +78,24 @@ public class UmaPermissionService implements Serializable {
 	@Inject
 	protected AppConfiguration appConfiguration;
 
+	@Inject
+	private ConfigurationFactory configurationFactory;
+
 	private org.gluu.oxauth.client.uma.UmaPermissionService permissionService;
 	private UmaRptIntrospectionService rptStatusService;
+	private RptIntrospectionCache rptIntrospectionCache;
+	private final AtomicLong rptLookupCount = new AtomicLong();
 
 	private final Pair<Boolean, Response> authenticationFailure = new Pair<Boolean, Response>(false, null);
 	private final Pair<Boolean, Response> authenticationSuccess = new Pair<Boolean, Response>(true, null);
 
 	@PostConstruct
 	public void init() {
+		FileConfiguration baseConfiguration = configurationFactory.getBaseConfiguration();
+		this.rptIntrospectionCache = new RptIntrospectionCache(
+				baseConfiguration.getInt(RPT_CACHE_MAX_SIZE_PROPERTY, DEFAULT_RPT_CACHE_MAX_SIZE),
+				baseConfiguration.getInt(RPT_CACHE_TTL_PROPERTY, DEFAULT_RPT_CACHE_TTL) * 1000L);
+
 		if (this.umaMetadata != null) {
 			if (appConfiguration.isRptConnectionPoolUseConnectionPooling()) {
 
@@ -150,7 +174,14 @@ public class UmaPermissionService implements Serializable {
 		if (StringHelper.isNotEmpty(authorization) && authorization.startsWith("Bearer ")) {
 			String rptToken = authorization.substring(7);
 	
-	        RptIntrospectionResponse rptStatusResponse = getStatusResponse(patToken, rptToken);
+	        RptIntrospectionResponse rptStatusResponse = rptIntrospectionCache.get(rptToken);
+	        if (rptStatusResponse == null) {
+	        	rptStatusResponse = getStatusResponse(patToken, rptToken);
+	        	rptIntrospectionCache.put(rptToken, rptStatusResponse);
+	        } else {
+	        	log.trace("Using cached RPT status response");
+	        }
+	        logRptIntrospectionCacheStatistics();
             log.trace("RPT status response: {} ", rptStatusResponse);
 			if ((rptStatusResponse == null) || !rptStatusResponse.getActive()) {
 				log.error("Status response for RPT token: '{}' is invalid", rptToken);
@@ -184,6 +215,14 @@ public class UmaPermissionService implements Serializable {
         return new Pair<Boolean, Response>(true, registerPermissionsResponse);
 	}
 
+	private void logRptIntrospectionCacheStatistics() {
+		if (rptIntrospectionCache.isEnabled() && (rptLookupCount.incrementAndGet() % RPT_CACHE_STATISTICS_INTERVAL == 0)) {
+			log.info("RPT introspection cache statistics. Size: '{}', hits: '{}', misses: '{}', evictions: '{}'",
+					rptIntrospectionCache.size(), rptIntrospectionCache.getHitCount(),
+					rptIntrospectionCache.getMissCount(), rptIntrospectionCache.getEvictionCount());
+		}
+	}
+
 	private boolean isRptHasPermissions(RptIntrospectionResponse umaRptStatusResponse) {
         return !((umaRptStatusResponse.getPermissions() == null) || umaRptStatusResponse.getPermissions().isEmpty());
     }
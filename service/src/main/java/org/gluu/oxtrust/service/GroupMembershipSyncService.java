@@ -0,0 +1,318 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.gluu.oxtrust.model.GluuCustomPerson;
+import org.gluu.oxtrust.model.GluuPersonMembership;
+import org.gluu.oxtrust.model.GroupMembershipSyncStatistics;
+import org.gluu.oxtrust.util.DnUtil;
+import org.gluu.oxtrust.util.OxTrustConstants;
+import org.gluu.persist.PersistenceEntryManager;
+import org.gluu.persist.ldap.operation.LdapOperationService;
+import org.gluu.persist.operation.PersistenceOperationService;
+import org.joda.time.format.ISODateTimeFormat;
+import org.slf4j.Logger;
+
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+
+/**
+ * Synchronizes memberOf attribute of persons with group members.
+ *
+ * Only persons which were added to group or removed from it are updated.
+ * Persons are loaded and updated in batches which are processed in parallel.
+ * Each update modifies memberOf attribute and modification time of person.
+ */
+@ApplicationScoped
+public class GroupMembershipSyncService implements Serializable {
+
+	private static final long serialVersionUID = -2453519373460395862L;
+
+	private static final String MEMBER_OF_ATTRIBUTE = "memberOf";
+	private static final String UPDATED_AT_ATTRIBUTE = "updatedAt";
+	private static final String META_LAST_MODIFIED_ATTRIBUTE = "oxTrustMetaLastModified";
+	private static final String[] PERSON_RETURN_ATTRIBUTES = { OxTrustConstants.inum, MEMBER_OF_ATTRIBUTE,
+			META_LAST_MODIFIED_ATTRIBUTE };
+
+	private static final String SYNC_THREADS_PROPERTY = "groupMembershipSyncThreads";
+	private static final int DEFAULT_SYNC_THREADS = 4;
+
+	private static final String SYNC_BATCH_SIZE_PROPERTY = "groupMembershipSyncBatchSize";
+	private static final int DEFAULT_SYNC_BATCH_SIZE = 100;
+
+	@Inject
+	private Logger log;
+
+	@Inject
+	private PersistenceEntryManager ldapEntryManager;
+
+	@Inject
+	private PersonService personService;
+
+	@Inject
+	private ConfigurationFactory configurationFactory;
+
+	@Inject
+	private WorkerPoolService workerPoolService;
+
+	private final ConcurrentMap<String, GroupMembershipSyncStatistics> activeSyncs = new ConcurrentHashMap<String, GroupMembershipSyncStatistics>();
+
+	/**
+	 * Add group DN to memberOf of new members and remove it from memberOf of
+	 * removed members
+	 *
+	 * @param groupDn
+	 *            Group DN
+	 * @param beforeMemberDns
+	 *            Member DNs before group update or null for new group
+	 * @param afterMemberDns
+	 *            Member DNs after group update or null for removed group
+	 * @return Synchronization statistics
+	 */
+	public GroupMembershipSyncStatistics syncMemberOf(String groupDn, Collection<String> beforeMemberDns,
+			Collection<String> afterMemberDns) {
+		Set<String> before = toSet(beforeMemberDns);
+		Set<String> after = toSet(afterMemberDns);
+
+		List<String> addedMemberDns = new ArrayList<String>();
+		for (String dn : after) {
+			if (!before.contains(dn)) {
+				addedMemberDns.add(dn);
+			}
+		}
+
+		List<String> removedMemberDns = new ArrayList<String>();
+		for (String dn : before) {
+			if (!after.contains(dn)) {
+				removedMemberDns.add(dn);
+			}
+		}
+
+		final GroupMembershipSyncStatistics statistics = new GroupMembershipSyncStatistics(groupDn,
+				addedMemberDns.size() + removedMemberDns.size());
+		if (statistics.getTotalCount() == 0) {
+			statistics.finish();
+			return statistics;
+		}
+
+		log.debug("Synchronizing memberOf of group '{}'. Added members: '{}', removed members: '{}'", groupDn,
+				addedMemberDns.size(), removedMemberDns.size());
+
+		int batchSize = getSyncBatchSize();
+		List<Callable<Void>> syncTasks = new ArrayList<Callable<Void>>();
+		addSyncTasks(syncTasks, groupDn, addedMemberDns, true, batchSize, statistics);
+		addSyncTasks(syncTasks, groupDn, removedMemberDns, false, batchSize, statistics);
+
+		activeSyncs.put(groupDn, statistics);
+		try {
+			executeSyncTasks(syncTasks);
+		} finally {
+			statistics.finish();
+			activeSyncs.remove(groupDn, statistics);
+		}
+
+		log.info("Synchronized memberOf of '{}' persons of group '{}' in '{}' ms. Added: '{}', removed: '{}', skipped: '{}', failed: '{}'",
+				statistics.getTotalCount(), groupDn, statistics.getDuration(), statistics.getAddedCount(),
+				statistics.getRemovedCount(), statistics.getSkippedCount(), statistics.getFailedCount());
+
+		return statistics;
+	}
+
+	/**
+	 * @return Statistics of synchronizations which are in progress
+	 */
+	public List<GroupMembershipSyncStatistics> getActiveSyncs() {
+		return new ArrayList<GroupMembershipSyncStatistics>(activeSyncs.values());
+	}
+
+	private void addSyncTasks(List<Callable<Void>> syncTasks, final String groupDn, List<String> memberDns,
+			final boolean add, int batchSize, final GroupMembershipSyncStatistics statistics) {
+		for (int i = 0; i < memberDns.size(); i += batchSize) {
+			final List<String> batchMemberDns = memberDns.subList(i, Math.min(i + batchSize, memberDns.size()));
+			syncTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					syncBatch(groupDn, batchMemberDns, add, statistics);
+					return null;
+				}
+			});
+		}
+	}
+
+	private void executeSyncTasks(List<Callable<Void>> syncTasks) {
+		List<Future<Void>> futures;
+		try {
+			futures = workerPoolService.invokeAll(syncTasks, getSyncThreadsCount());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while synchronizing memberOf attribute", ex);
+			return;
+		}
+
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				log.error("Interrupted while synchronizing memberOf attribute", ex);
+				return;
+			} catch (ExecutionException ex) {
+				log.error("Failed to synchronize memberOf attribute", ex.getCause());
+			}
+		}
+	}
+
+	private void syncBatch(String groupDn, List<String> memberDns, boolean add,
+			GroupMembershipSyncStatistics statistics) {
+		long startTime = System.currentTimeMillis();
+
+		Map<String, GluuCustomPerson> persons;
+		try {
+			persons = loadPersons(memberDns);
+		} catch (Exception ex) {
+			log.error("Failed to load batch of members of group '{}'", groupDn, ex);
+			statistics.incrementFailed(memberDns.size());
+			return;
+		}
+
+		for (String memberDn : memberDns) {
+			GluuCustomPerson person = persons.get(DnUtil.normalize(memberDn));
+			if (person == null) {
+				log.warn("Failed to find member '{}' of group '{}'", memberDn, groupDn);
+				statistics.incrementFailed(1);
+				continue;
+			}
+
+			if (containsIgnoreCase(person.getMemberOf(), groupDn) == add) {
+				statistics.incrementSkipped();
+				continue;
+			}
+
+			boolean updated = false;
+			try {
+				updated = updateMemberOf(person, groupDn, add);
+			} catch (Exception ex) {
+				log.error("Failed to update memberOf of person '{}'", memberDn, ex);
+			}
+
+			if (!updated) {
+				log.error("An error occurred while {} user {} {} group {}", add ? "adding" : "removing", memberDn,
+						add ? "to" : "from", groupDn);
+				statistics.incrementFailed(1);
+			} else if (add) {
+				statistics.incrementAdded();
+			} else {
+				statistics.incrementRemoved();
+			}
+		}
+
+		log.debug("Synchronized batch of '{}' members of group '{}' in '{}' ms. Progress: '{}' of '{}'",
+				memberDns.size(), groupDn, System.currentTimeMillis() - startTime, statistics.getProcessedCount(),
+				statistics.getTotalCount());
+	}
+
+	private Map<String, GluuCustomPerson> loadPersons(List<String> memberDns) {
+		Map<String, GluuCustomPerson> result = new HashMap<String, GluuCustomPerson>();
+		for (GluuCustomPerson person : personService.getPersonsByDns(memberDns, PERSON_RETURN_ATTRIBUTES)) {
+			result.put(DnUtil.normalize(person.getDn()), person);
+		}
+
+		return result;
+	}
+
+	private boolean updateMemberOf(GluuCustomPerson person, String groupDn, boolean add) throws Exception {
+		// Modification time is updated in same way as PersonService.updatePerson does it
+		Date updateDate = new Date();
+		String metaLastModified = null;
+		if (person.getAttribute(META_LAST_MODIFIED_ATTRIBUTE) != null) {
+			metaLastModified = ISODateTimeFormat.dateTime().withZoneUTC().print(updateDate.getTime());
+		}
+
+		PersistenceOperationService operationService = ldapEntryManager.getOperationService();
+		if (operationService instanceof LdapOperationService) {
+			List<Modification> modifications = new ArrayList<Modification>();
+			modifications.add(new Modification(add ? ModificationType.ADD : ModificationType.DELETE,
+					MEMBER_OF_ATTRIBUTE, groupDn));
+			modifications.add(new Modification(ModificationType.REPLACE, UPDATED_AT_ATTRIBUTE,
+					ldapEntryManager.encodeTime(person.getDn(), updateDate)));
+			if (metaLastModified != null) {
+				modifications.add(
+						new Modification(ModificationType.REPLACE, META_LAST_MODIFIED_ATTRIBUTE, metaLastModified));
+			}
+			return ((LdapOperationService) operationService).updateEntry(person.getDn(), modifications);
+		}
+
+		// Other persistence types have no value level modifications. Replace memberOf attribute only
+		List<String> memberOf = new ArrayList<String>();
+		for (String memberOfDn : person.getMemberOf()) {
+			if (!memberOfDn.equalsIgnoreCase(groupDn)) {
+				memberOf.add(memberOfDn);
+			}
+		}
+		if (add) {
+			memberOf.add(groupDn);
+		}
+
+		GluuPersonMembership personMembership = new GluuPersonMembership();
+		personMembership.setDn(person.getDn());
+		personMembership.setMemberOf(memberOf.isEmpty() ? null : memberOf);
+		personMembership.setUpdatedAt(updateDate);
+		personMembership.setOxTrustMetaLastModified(metaLastModified);
+		ldapEntryManager.merge(personMembership);
+
+		return true;
+	}
+
+	private boolean containsIgnoreCase(List<String> values, String value) {
+		for (String item : values) {
+			if (item.equalsIgnoreCase(value)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private Set<String> toSet(Collection<String> dns) {
+		Set<String> result = new LinkedHashSet<String>();
+		if (dns != null) {
+			result.addAll(dns);
+		}
+
+		return result;
+	}
+
+	private int getSyncThreadsCount() {
+		return configurationFactory.getBaseConfiguration().getInt(SYNC_THREADS_PROPERTY, DEFAULT_SYNC_THREADS);
+	}
+
+	private int getSyncBatchSize() {
+		int batchSize = configurationFactory.getBaseConfiguration().getInt(SYNC_BATCH_SIZE_PROPERTY,
+				DEFAULT_SYNC_BATCH_SIZE);
+		return batchSize > 0 ? batchSize : DEFAULT_SYNC_BATCH_SIZE;
+	}
+
+}
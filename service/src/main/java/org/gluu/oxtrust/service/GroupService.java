@@ -8,6 +8,7 @@ package org.gluu.oxtrust.service;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -19,6 +20,7 @@ import javax.inject.Named;
 import org.gluu.oxtrust.model.GluuCustomPerson;
 import org.gluu.oxtrust.model.GluuGroup;
 import org.gluu.oxtrust.model.GluuGroupVisibility;
+import org.gluu.oxtrust.util.DnUtil;
 import org.gluu.oxtrust.util.OxTrustConstants;
 import org.gluu.persist.PersistenceEntryManager;
 import org.gluu.persist.exception.EntryPersistenceException;
@@ -40,6 +42,8 @@ public class GroupService implements Serializable, IGroupService {
 
 	private static final long serialVersionUID = -9167587377957719152L;
 
+	private static final int GROUPS_BY_DNS_BATCH_SIZE = 100;
+
 	@Inject
 	private Logger log;
 
@@ -50,7 +54,7 @@ public class GroupService implements Serializable, IGroupService {
 	private OrganizationService organizationService;
 
 	@Inject
-	private PersonService personService;
+	private GroupMembershipSyncService groupMembershipSyncService;
 
 	/*
 	 * (non-Javadoc)
@@ -92,27 +96,12 @@ public class GroupService implements Serializable, IGroupService {
 	 */
 	@Override
 	public void removeGroup(GluuGroup group) {
+		// clear references in gluuPerson entries
 		if (group.getMembers() != null) {
-			List<String> memberDNs = group.getMembers();
-			for (String memberDN : memberDNs) {
-				if (personService.contains(memberDN)) {
-					GluuCustomPerson person = personService.getPersonByDn(memberDN);
-					List<String> groupDNs = person.getMemberOf();
-					List<String> updatedGroupDNs = new ArrayList<String>();
-					updatedGroupDNs.addAll(groupDNs);
-					updatedGroupDNs.remove(group.getDn());
-					person.setMemberOf(updatedGroupDNs);
-					try {
-						personService.updatePerson(person);
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-				}
-			}
+			groupMembershipSyncService.syncMemberOf(group.getDn(), group.getMembers(), null);
 		}
 
 		ldapEntryManager.remove(group);
-		// clear references in gluuPerson entries
 	}
 
 	/*
@@ -275,6 +264,49 @@ public class GroupService implements Serializable, IGroupService {
 		return  ldapEntryManager.find(GluuGroup.class, Dn);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.gluu.oxtrust.ldap.service.IGroupService#getGroupsByDns(java.util.
+	 * Collection, java.lang.String[])
+	 */
+	@Override
+	public List<GluuGroup> getGroupsByDns(Collection<String> dns, String[] returnAttributes) {
+		List<GluuGroup> result = new ArrayList<GluuGroup>();
+
+		List<String> inums = new ArrayList<String>();
+		String parentDn = getDnForGroup(null);
+		for (String dn : dns) {
+			String inum = DnUtil.getChildRdnValue(dn, parentDn, OxTrustConstants.inum);
+			if (inum != null) {
+				inums.add(inum);
+				continue;
+			}
+
+			// Group which isn't direct child of groups branch
+			try {
+				result.add(ldapEntryManager.find(dn, GluuGroup.class, returnAttributes));
+			} catch (EntryPersistenceException ex) {
+				log.warn("Failed to find group by DN '{}'", dn);
+			}
+		}
+
+		for (int i = 0; i < inums.size(); i += GROUPS_BY_DNS_BATCH_SIZE) {
+			List<String> batchInums = inums.subList(i, Math.min(i + GROUPS_BY_DNS_BATCH_SIZE, inums.size()));
+
+			List<Filter> inumFilters = new ArrayList<Filter>(batchInums.size());
+			for (String inum : batchInums) {
+				inumFilters.add(Filter.createEqualityFilter(OxTrustConstants.inum, inum));
+			}
+			Filter filter = Filter.createORFilter(inumFilters);
+
+			result.addAll(ldapEntryManager.findEntries(getDnForGroup(null), GluuGroup.class, filter, returnAttributes));
+		}
+
+		return result;
+	}
+
 
 	/*
 	 * (non-Javadoc)
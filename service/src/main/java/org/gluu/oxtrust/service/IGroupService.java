@@ -5,6 +5,7 @@
  */
 package org.gluu.oxtrust.service;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.gluu.oxtrust.model.GluuGroup;
@@ -110,6 +111,18 @@ public interface IGroupService {
 
 	public abstract GluuGroup getGroupByDn(String Dn);
 
+	/**
+	 * Get groups by DNs. Groups are loaded using OR filters by inum. Groups
+	 * which don't exist are skipped
+	 * 
+	 * @param dns
+	 *            Group DNs
+	 * @param returnAttributes
+	 *            Attributes to load
+	 * @return List of found groups
+	 */
+	public abstract List<GluuGroup> getGroupsByDns(Collection<String> dns, String[] returnAttributes);
+
 	/**
 	 * Get group by DisplayName
 	 * 
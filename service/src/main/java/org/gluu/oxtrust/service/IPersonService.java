@@ -5,6 +5,7 @@
  */
 package org.gluu.oxtrust.service;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -97,6 +98,8 @@ public interface IPersonService {
 	public abstract List<GluuCustomPerson> findPersonsByUids(List<String> uids, String[] returnAttributes)
 			throws Exception;
 
+	public abstract List<GluuCustomPerson> findPersonsByInums(List<String> inums, String[] returnAttributes);
+
 	public abstract GluuCustomPerson findPersonByDn(String dn, String... returnAttributes);
 
 	/**
@@ -128,6 +131,30 @@ public interface IPersonService {
 	 */
 	public abstract GluuCustomPerson getPersonByInum(String inum);
 
+	/**
+	 * Get persons by inums. Persons are loaded using OR filters by inum in
+	 * batches. Persons which don't exist are skipped
+	 * 
+	 * @param inums
+	 *            Inums
+	 * @param returnAttributes
+	 *            Attributes to load
+	 * @return List of found persons
+	 */
+	public abstract List<GluuCustomPerson> getPersonsByInums(Collection<String> inums, String[] returnAttributes);
+
+	/**
+	 * Get persons by DNs. Persons are loaded using OR filters by inum in
+	 * batches. Persons which don't exist are skipped
+	 * 
+	 * @param dns
+	 *            Person DNs
+	 * @param returnAttributes
+	 *            Attributes to load
+	 * @return List of found persons
+	 */
+	public abstract List<GluuCustomPerson> getPersonsByDns(Collection<String> dns, String[] returnAttributes);
+
 	/**
 	 * Get person by uid
 	 * 
@@ -0,0 +1,474 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides entityIDs declared in SAML metadata files. Files are read with
+ * streaming StAX parser, so large federation aggregates aren't loaded into
+ * memory. Results are stored in index (in memory and in oxTrust folder set by
+ * <code>metadataEntityIdIndexFolder</code> property) keyed by file size,
+ * modification time and SHA-256 digest. Unchanged files are never parsed again,
+ * touched files with same content are only digested
+ */
+@ApplicationScoped
+@Named
+public class MetadataEntityIdIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(MetadataEntityIdIndex.class);
+
+	private static final String INDEX_FOLDER_PROPERTY = "metadataEntityIdIndexFolder";
+	private static final String DEFAULT_INDEX_FOLDER = "/var/ox/oxtrust/entityid-index";
+
+	// Folder which was created next to metadata files by previous versions
+	private static final String LEGACY_INDEX_FOLDER = ".entityid-index";
+
+	private static final String INDEX_FILE_SUFFIX = ".idx";
+	private static final String INDEX_HEADER_PREFIX = "#v2 ";
+
+	private static final String ENTITY_DESCRIPTOR_ELEMENT = "EntityDescriptor";
+	private static final String ENTITY_ID_ATTRIBUTE = "entityID";
+
+	private final ConcurrentHashMap<String, IndexEntry> entries = new ConcurrentHashMap<String, IndexEntry>();
+	private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	@Inject
+	private ConfigurationFactory configurationFactory;
+
+	private File indexFolder;
+
+	public MetadataEntityIdIndex() {
+	}
+
+	MetadataEntityIdIndex(File indexFolder) {
+		this.indexFolder = indexFolder;
+	}
+
+	@PostConstruct
+	public void init() {
+		this.indexFolder = new File(
+				configurationFactory.getBaseConfiguration().getString(INDEX_FOLDER_PROPERTY, DEFAULT_INDEX_FOLDER));
+	}
+
+	/**
+	 * Replacement of <code>SAMLMetadataParser.getEntityIdFromMetadataFile</code>
+	 *
+	 * @return entityIDs in order of appearance (duplicates included) or null if
+	 *         file doesn't exist or isn't well formed XML
+	 */
+	public List<String> getEntityIds(File metadataFile) {
+		EntityIds entityIds = update(metadataFile);
+
+		return (entityIds == null) ? null : entityIds.getEntityIds();
+	}
+
+	/**
+	 * @return entityIDs of the file along with changes since previous indexed
+	 *         version of the file, or null if file doesn't exist or isn't well
+	 *         formed XML
+	 */
+	public EntityIds update(File metadataFile) {
+		if (!metadataFile.isFile()) {
+			evict(metadataFile);
+			return null;
+		}
+
+		String path = metadataFile.getAbsolutePath();
+		Object lock = locks.computeIfAbsent(path, k -> new Object());
+		synchronized (lock) {
+			long size = metadataFile.length();
+			long lastModified = metadataFile.lastModified();
+
+			IndexEntry previous = entries.get(path);
+			if (previous == null) {
+				previous = readIndexFile(metadataFile, path);
+			}
+
+			if ((previous != null) && (previous.size == size) && (previous.lastModified == lastModified)) {
+				entries.put(path, previous);
+				return new EntityIds(previous.entityIds, previous.entityIds);
+			}
+
+			try {
+				if ((previous != null) && (previous.size == size) && previous.digest.equals(digest(metadataFile))) {
+					log.debug("Metadata file '{}' was touched but its content didn't change", path);
+					IndexEntry entry = new IndexEntry(size, lastModified, previous.digest, previous.entityIds);
+					store(metadataFile, entry);
+					return new EntityIds(entry.entityIds, entry.entityIds);
+				}
+
+				long startTime = System.currentTimeMillis();
+				IndexEntry entry = parse(metadataFile, size, lastModified);
+				log.debug("Extracted {} entityIds from metadata file '{}' in {} ms", entry.entityIds.size(), path,
+						System.currentTimeMillis() - startTime);
+				store(metadataFile, entry);
+
+				return new EntityIds(entry.entityIds,
+						(previous == null) ? Collections.<String>emptyList() : previous.entityIds);
+			} catch (XMLStreamException ex) {
+				log.error("Failed to parse metadata file '{}'", path, ex);
+			} catch (IOException ex) {
+				log.error("Failed to read metadata file '{}'", path, ex);
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Removes index entries and index files of metadata files which no longer
+	 * exist, along with index folders left next to metadata files by previous
+	 * versions
+	 */
+	public void removeStaleEntries() {
+		Set<File> metadataFolders = new HashSet<File>();
+		for (String path : entries.keySet()) {
+			File metadataFile = new File(path);
+			metadataFolders.add(metadataFile.getParentFile());
+			if (!metadataFile.isFile()) {
+				evict(metadataFile);
+			}
+		}
+
+		for (File metadataFolder : metadataFolders) {
+			File legacyIndexFolder = new File(metadataFolder, LEGACY_INDEX_FOLDER);
+			File[] legacyIndexFiles = legacyIndexFolder.listFiles();
+			if (legacyIndexFiles != null) {
+				for (File legacyIndexFile : legacyIndexFiles) {
+					deleteIndexFile(legacyIndexFile.toPath());
+				}
+				deleteIndexFile(legacyIndexFolder.toPath());
+			}
+		}
+
+		File[] indexFiles = indexFolder.listFiles((dir, name) -> name.endsWith(INDEX_FILE_SUFFIX));
+		if (indexFiles != null) {
+			for (File indexFile : indexFiles) {
+				String[] header = readIndexHeader(indexFile.toPath());
+				if ((header == null) || !new File(header[3]).isFile()) {
+					log.debug("Removing entityId index file '{}' of removed metadata file", indexFile);
+					deleteIndexFile(indexFile.toPath());
+				}
+			}
+		}
+	}
+
+	private void evict(File metadataFile) {
+		String path = metadataFile.getAbsolutePath();
+		Object lock = locks.computeIfAbsent(path, k -> new Object());
+		synchronized (lock) {
+			if (metadataFile.isFile()) {
+				// File was created again meanwhile
+				return;
+			}
+
+			entries.remove(path);
+			locks.remove(path, lock);
+			deleteIndexFile(getIndexFile(metadataFile));
+		}
+	}
+
+	/**
+	 * Streams through the document collecting entityID attribute of every
+	 * EntityDescriptor element. Digest of the file is computed on the same pass
+	 */
+	private IndexEntry parse(File metadataFile, long size, long lastModified) throws IOException, XMLStreamException {
+		MessageDigest messageDigest = newDigest();
+		List<String> entityIds = new ArrayList<String>();
+		try (InputStream is = new DigestInputStream(new BufferedInputStream(Files.newInputStream(metadataFile.toPath())),
+				messageDigest)) {
+			// Some StAX implementations close stream at the end of document
+			XMLStreamReader reader = newInputFactory().createXMLStreamReader(new FilterInputStream(is) {
+				@Override
+				public void close() {
+				}
+			});
+			try {
+				while (reader.hasNext()) {
+					if ((reader.next() == XMLStreamConstants.START_ELEMENT)
+							&& ENTITY_DESCRIPTOR_ELEMENT.equals(reader.getLocalName())) {
+						String entityId = reader.getAttributeValue(null, ENTITY_ID_ATTRIBUTE);
+						if (entityId != null) {
+							entityIds.add(entityId);
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+
+			// Digest whole file, including trailing content after root element
+			byte[] buffer = new byte[8192];
+			while (is.read(buffer) != -1) {
+			}
+		}
+
+		if (entityIds.isEmpty()) {
+			log.error("Failed to find entityId in metadata file '{}'", metadataFile.getAbsolutePath());
+		}
+
+		return new IndexEntry(size, lastModified, toHex(messageDigest.digest()), Collections.unmodifiableList(entityIds));
+	}
+
+	private XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// Metadata is untrusted input
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		try {
+			factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+		} catch (IllegalArgumentException ex) {
+			// Property isn't supported by implementation, DTD support is disabled anyway
+		}
+
+		return factory;
+	}
+
+	private String digest(File metadataFile) throws IOException {
+		MessageDigest messageDigest = newDigest();
+		try (InputStream is = new DigestInputStream(Files.newInputStream(metadataFile.toPath()), messageDigest)) {
+			byte[] buffer = new byte[8192];
+			while (is.read(buffer) != -1) {
+			}
+		}
+
+		return toHex(messageDigest.digest());
+	}
+
+	private void store(File metadataFile, IndexEntry entry) {
+		entries.put(metadataFile.getAbsolutePath(), entry);
+
+		Path indexFile = getIndexFile(metadataFile);
+		Path temp = null;
+		try {
+			Files.createDirectories(indexFile.getParent());
+			temp = indexFile.resolveSibling(indexFile.getFileName() + "." + UUID.randomUUID() + ".tmp");
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(INDEX_HEADER_PREFIX + entry.size + " " + entry.lastModified + " " + entry.digest + " "
+						+ metadataFile.getAbsolutePath());
+				writer.newLine();
+				for (String entityId : entry.entityIds) {
+					writer.write(entityId);
+					writer.newLine();
+				}
+			}
+			try {
+				Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		} catch (IOException ex) {
+			// Index is still kept in memory
+			log.warn("Failed to write entityId index file '{}'", indexFile, ex);
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ex) {
+					log.warn("Failed to remove temporary file '{}'", temp, ex);
+				}
+			}
+		}
+	}
+
+	private IndexEntry readIndexFile(File metadataFile, String path) {
+		Path indexFile = getIndexFile(metadataFile);
+		try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+			String[] fields = parseHeader(reader.readLine());
+			if ((fields == null) || !fields[3].equals(path)) {
+				return null;
+			}
+
+			List<String> entityIds = new ArrayList<String>();
+			for (String line; (line = reader.readLine()) != null;) {
+				entityIds.add(line);
+			}
+
+			return new IndexEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+					Collections.unmodifiableList(entityIds));
+		} catch (NoSuchFileException ex) {
+			return null;
+		} catch (IOException | NumberFormatException ex) {
+			log.warn("Ignoring invalid entityId index file '{}'", indexFile, ex);
+			return null;
+		}
+	}
+
+	private String[] readIndexHeader(Path indexFile) {
+		try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+			return parseHeader(reader.readLine());
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return size, modification time, digest and path of metadata file, or null
+	 *         if header isn't valid
+	 */
+	private String[] parseHeader(String header) {
+		if ((header == null) || !header.startsWith(INDEX_HEADER_PREFIX)) {
+			return null;
+		}
+
+		String[] fields = header.substring(INDEX_HEADER_PREFIX.length()).split(" ", 4);
+
+		return (fields.length == 4) ? fields : null;
+	}
+
+	private void deleteIndexFile(Path indexFile) {
+		try {
+			Files.deleteIfExists(indexFile);
+		} catch (IOException ex) {
+			log.warn("Failed to remove entityId index file '{}'", indexFile, ex);
+		}
+	}
+
+	/*
+	 * Metadata files with same name may exist in different folders (e.g.
+	 * temporary and validated metadata), so index file name includes digest of
+	 * full path
+	 */
+	private Path getIndexFile(File metadataFile) {
+		MessageDigest messageDigest = newDigest();
+		String pathDigest = toHex(
+				messageDigest.digest(metadataFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+
+		return new File(indexFolder, metadataFile.getName() + "." + pathDigest + INDEX_FILE_SUFFIX).toPath();
+	}
+
+	private MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 isn't supported", ex);
+		}
+	}
+
+	private String toHex(byte[] hash) {
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return sb.toString();
+	}
+
+	private static class IndexEntry {
+
+		private final long size;
+		private final long lastModified;
+		private final String digest;
+		private final List<String> entityIds;
+
+		IndexEntry(long size, long lastModified, String digest, List<String> entityIds) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+			this.entityIds = entityIds;
+		}
+
+	}
+
+	/**
+	 * EntityIDs of metadata file and changes since previous version of the file
+	 * known to index. All entityIDs are reported as added for file which wasn't
+	 * indexed before
+	 */
+	public static class EntityIds {
+
+		private final List<String> entityIds;
+		private final boolean changed;
+		private final Set<String> addedEntityIds;
+		private final Set<String> removedEntityIds;
+
+		EntityIds(List<String> entityIds, List<String> previousEntityIds) {
+			this.entityIds = entityIds;
+			this.changed = entityIds != previousEntityIds;
+
+			if (!changed) {
+				this.addedEntityIds = Collections.emptySet();
+				this.removedEntityIds = Collections.emptySet();
+			} else {
+				Set<String> current = new LinkedHashSet<String>(entityIds);
+				Set<String> previous = new LinkedHashSet<String>(previousEntityIds);
+
+				Set<String> added = new LinkedHashSet<String>(current);
+				added.removeAll(previous);
+				this.addedEntityIds = Collections.unmodifiableSet(added);
+
+				previous.removeAll(current);
+				this.removedEntityIds = Collections.unmodifiableSet(previous);
+			}
+		}
+
+		/**
+		 * @return entityIDs in order of appearance, duplicates included
+		 */
+		public List<String> getEntityIds() {
+			return entityIds;
+		}
+
+		/**
+		 * @return true if file was parsed because it's new to index or its content
+		 *         changed. False if entityIDs were taken from index
+		 */
+		public boolean isChanged() {
+			return changed;
+		}
+
+		public Set<String> getAddedEntityIds() {
+			return addedEntityIds;
+		}
+
+		public Set<String> getRemovedEntityIds() {
+			return removedEntityIds;
+		}
+
+	}
+
+}
@@ -9,6 +9,7 @@ package org.gluu.oxtrust.service;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -24,8 +25,10 @@ import org.gluu.oxtrust.exception.DuplicateEmailException;
 import org.gluu.oxtrust.model.GluuCustomAttribute;
 import org.gluu.oxtrust.model.GluuCustomPerson;
 import org.gluu.oxtrust.model.User;
+import org.gluu.oxtrust.util.DnUtil;
 import org.gluu.oxtrust.util.OxTrustConstants;
 import org.gluu.persist.PersistenceEntryManager;
+import org.gluu.persist.exception.EntryPersistenceException;
 import org.gluu.persist.exception.operation.DuplicateEntryException;
 import org.gluu.persist.model.AttributeData;
 import org.gluu.persist.model.SearchScope;
@@ -48,6 +51,8 @@ public class PersonService implements Serializable, IPersonService {
 
 	private static final long serialVersionUID = 6685720517520443399L;
 
+	private static final int PERSONS_BY_INUMS_BATCH_SIZE = 100;
+
 	@Inject
 	private Logger log;
 
@@ -269,6 +274,23 @@ public class PersonService implements Serializable, IPersonService {
 		return ldapEntryManager.findEntries(getDnForPerson(null), GluuCustomPerson.class, filter, returnAttributes);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.gluu.oxtrust.ldap.service.IPersonService#findPersonsByInums(java.util.
+	 * List, java.lang.String[])
+	 */
+	@Override
+	public List<GluuCustomPerson> findPersonsByInums(List<String> inums, String[] returnAttributes) {
+		List<Filter> inumFilters = new ArrayList<Filter>();
+		for (String inum : inums) {
+			inumFilters.add(Filter.createEqualityFilter(OxTrustConstants.inum, inum));
+		}
+		Filter filter = Filter.createORFilter(inumFilters);
+		return ldapEntryManager.findEntries(getDnForPerson(null), GluuCustomPerson.class, filter, returnAttributes);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -358,6 +380,59 @@ public class PersonService implements Serializable, IPersonService {
 		return person;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.gluu.oxtrust.ldap.service.IPersonService#getPersonsByInums(java.util.
+	 * Collection, java.lang.String[])
+	 */
+	@Override
+	public List<GluuCustomPerson> getPersonsByInums(Collection<String> inums, String[] returnAttributes) {
+		List<String> inumsList = new ArrayList<String>(inums);
+		List<GluuCustomPerson> result = new ArrayList<GluuCustomPerson>(inumsList.size());
+
+		for (int i = 0; i < inumsList.size(); i += PERSONS_BY_INUMS_BATCH_SIZE) {
+			List<String> batchInums = inumsList.subList(i, Math.min(i + PERSONS_BY_INUMS_BATCH_SIZE, inumsList.size()));
+			result.addAll(findPersonsByInums(batchInums, returnAttributes));
+		}
+
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.gluu.oxtrust.ldap.service.IPersonService#getPersonsByDns(java.util.
+	 * Collection, java.lang.String[])
+	 */
+	@Override
+	public List<GluuCustomPerson> getPersonsByDns(Collection<String> dns, String[] returnAttributes) {
+		List<GluuCustomPerson> result = new ArrayList<GluuCustomPerson>();
+
+		List<String> inums = new ArrayList<String>();
+		String parentDn = getDnForPerson(null);
+		for (String dn : dns) {
+			String inum = DnUtil.getChildRdnValue(dn, parentDn, OxTrustConstants.inum);
+			if (inum != null) {
+				inums.add(inum);
+				continue;
+			}
+
+			// Person which isn't direct child of people branch
+			try {
+				result.add(ldapEntryManager.find(dn, GluuCustomPerson.class, returnAttributes));
+			} catch (EntryPersistenceException ex) {
+				log.warn("Failed to find person by DN '{}'", dn);
+			}
+		}
+
+		result.addAll(getPersonsByInums(inums, returnAttributes));
+
+		return result;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -21,9 +21,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
@@ -63,6 +67,7 @@ import org.gluu.oxtrust.model.GluuMetadataSourceType;
 import org.gluu.oxtrust.model.GluuSAMLFederationProposal;
 import org.gluu.oxtrust.model.GluuSAMLTrustRelationship;
 import org.gluu.oxtrust.model.SamlAcr;
+import org.gluu.oxtrust.service.TemplateService.ConfFileUpdate;
 import org.gluu.oxtrust.util.EasyCASSLProtocolSocketFactory;
 import org.gluu.persist.PersistenceEntryManager;
 import org.gluu.saml.metadata.SAMLMetadataParser;
@@ -115,6 +120,9 @@ public class Shibboleth3ConfService implements Serializable {
 	private static final String SHIB3_SAML_NAMEID_FILE = "saml-nameid.xml";
 	private static final String SHIB3_SAML_NAMEID_PROPS_FILE = "saml-nameid.properties";
 
+	private static final String CONF_GENERATION_THREADS_PROPERTY = "shibbolethConfGenerationThreads";
+	private static final int DEFAULT_CONF_GENERATION_THREADS = 4;
+
 	private static final String SHIB3_SP_METADATA_FILE_PATTERN = "%s-sp-metadata.xml";
 	public static final String PUBLIC_CERTIFICATE_START_LINE = "-----BEGIN CERTIFICATE-----";
 	public static final String PUBLIC_CERTIFICATE_END_LINE = "-----END CERTIFICATE-----";
@@ -176,6 +184,12 @@ public class Shibboleth3ConfService implements Serializable {
 	@Inject
 	private PersonService personService;
 
+	@Inject
+	private MetadataEntityIdIndex metadataEntityIdIndex;
+
+	@Inject
+	private WorkerPoolService workerPoolService;
+
 	private Schema samlSchema;
 	
 	@PostConstruct
@@ -244,67 +258,114 @@ public class Shibboleth3ConfService implements Serializable {
 		VelocityContext context = prepareVelocityContext(trustParams, attrParams, casParams, attrResolverParams,
 				idpMetadataFolder);
 
-		// Generate metadata-providers.xml
-		String metadataProviders = templateService.generateConfFile(SHIB3_IDP_METADATA_PROVIDERS_FILE, context);
-		// Generate attribute-resolver.xml
-		String attributeResolver = templateService.generateConfFile(SHIB3_IDP_ATTRIBUTE_RESOLVER_FILE, context);
-
-		// Generate attribute-filter.xml
-		String attributeFilter = templateService.generateConfFile(SHIB3_IDP_ATTRIBUTE_FILTER_FILE, context);
-		// Generate relying-party.xml
-		String relyingParty = templateService.generateConfFile(SHIB3_IDP_RELYING_PARTY_FILE, context);
-		// Generate cas-protocol.xml
-		String casProtocol = templateService.generateConfFile(SHIB3_IDP_CAS_PROTOCOL_FILE, context);
-		// Generate shibboleth2.xml
-		String shibConfig = templateService.generateConfFile(SHIB3_SP_SHIBBOLETH2_FILE, context);
-		// Generate saml-nameid.xml
-		String samlnamedConfig = templateService.generateConfFile(SHIB3_SAML_NAMEID_FILE, context);
-		// Generate saml-nameid.properties
-		String samlnamedPropsConfig = templateService.generateConfFile(SHIB3_SAML_NAMEID_PROPS_FILE, context);
-		// Generate handler.xml
-		// String profileHandler =
-		// templateService.generateConfFile(SHIB3_IDP_PROFILE_HADLER, context);
-
-		// Generate attribute-map.xml
-		// String attributeMap =
-		// templateService.generateConfFile(SHIB2_SP_ATTRIBUTE_MAP, context);
-
-		// result = (metadataProviders != null) && (attributeFilter != null) &&
-		// (attributeResolver != null) && (relyingParty != null) && (shibConfig != null)
-		// && (profileHandler != null);
-		result = (metadataProviders != null) && (attributeFilter != null) && (attributeResolver != null)
-				&& (relyingParty != null) && (casProtocol != null) && (shibConfig != null);
-
-		// Write metadata-providers.xml
-		result &= templateService.writeConfFile(idpConfFolder + SHIB3_IDP_METADATA_PROVIDERS_FILE, metadataProviders);
-		// Write attribute-resolver.xml
-		result &= templateService.writeConfFile(idpConfFolder + SHIB3_IDP_ATTRIBUTE_RESOLVER_FILE, attributeResolver);
-		// Write attribute-filter.xml
-		result &= templateService.writeConfFile(idpConfFolder + SHIB3_IDP_ATTRIBUTE_FILTER_FILE, attributeFilter);
-		// Write relying-party.xml
-		result &= templateService.writeConfFile(idpConfFolder + SHIB3_IDP_RELYING_PARTY_FILE, relyingParty);
-		// Write cas-protocol.xml
-		result &= templateService.writeConfFile(idpConfFolder + SHIB3_IDP_CAS_PROTOCOL_FILE, casProtocol);
-		// Write shibboleth2.xml
-		result &= templateService.writeConfFile(getSpShibboleth3FilePath(), shibConfig);
-		// Write saml-nameid.xml
-		result &= templateService.writeConfFile(idpConfFolder + SHIB3_SAML_NAMEID_FILE, samlnamedConfig);
-		// Write saml-nameid.properties
-		result &= templateService.writeConfFile(idpConfFolder + SHIB3_SAML_NAMEID_PROPS_FILE, samlnamedPropsConfig);
-
-		// Write handler.xml
-		// result &= templateService.writeConfFile(idpConfFolder +
-		// SHIB3_IDP_PROFILE_HADLER, profileHandler);
-
-		// Write attribute-map.xml
-		// result &= templateService.writeConfFile(spConfFolder +
-		// SHIB2_SP_ATTRIBUTE_MAP, attributeMap);
+		// Templates and files generated from them. Generation of handler.xml
+		// (SHIB3_IDP_PROFILE_HADLER) and attribute-map.xml (SHIB2_SP_ATTRIBUTE_MAP)
+		// is disabled
+		Map<String, String> confFiles = new LinkedHashMap<String, String>();
+		confFiles.put(SHIB3_IDP_METADATA_PROVIDERS_FILE, idpConfFolder + SHIB3_IDP_METADATA_PROVIDERS_FILE);
+		confFiles.put(SHIB3_IDP_ATTRIBUTE_RESOLVER_FILE, idpConfFolder + SHIB3_IDP_ATTRIBUTE_RESOLVER_FILE);
+		confFiles.put(SHIB3_IDP_ATTRIBUTE_FILTER_FILE, idpConfFolder + SHIB3_IDP_ATTRIBUTE_FILTER_FILE);
+		confFiles.put(SHIB3_IDP_RELYING_PARTY_FILE, idpConfFolder + SHIB3_IDP_RELYING_PARTY_FILE);
+		confFiles.put(SHIB3_IDP_CAS_PROTOCOL_FILE, idpConfFolder + SHIB3_IDP_CAS_PROTOCOL_FILE);
+		confFiles.put(SHIB3_SP_SHIBBOLETH2_FILE, getSpShibboleth3FilePath());
+		confFiles.put(SHIB3_SAML_NAMEID_FILE, idpConfFolder + SHIB3_SAML_NAMEID_FILE);
+		confFiles.put(SHIB3_SAML_NAMEID_PROPS_FILE, idpConfFolder + SHIB3_SAML_NAMEID_PROPS_FILE);
+
+		result = generateConfFiles(confFiles, context);
 
 		log.info(">>>>>>>>>> LEAVING Shibboleth3ConfService.generateConfigurationFiles()...");
 
 		return result;
 	}
 
+	/**
+	 * Renders templates in parallel and writes only files which content changed.
+	 * File isn't touched if its template fails to render
+	 * 
+	 * @param confFiles
+	 *            Template names mapped to target files
+	 * @return true if all templates were rendered and stored
+	 */
+	private boolean generateConfFiles(Map<String, String> confFiles, final VelocityContext context) {
+		long startTime = System.currentTimeMillis();
+
+		List<String> templates = new ArrayList<String>(confFiles.keySet());
+		final long[] renderTimes = new long[templates.size()];
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>(templates.size());
+		for (int i = 0; i < templates.size(); i++) {
+			final int index = i;
+			final String template = templates.get(i);
+			tasks.add(new Callable<String>() {
+				@Override
+				public String call() {
+					long templateStartTime = System.currentTimeMillis();
+					// Wrap shared context to keep #set directives local to template
+					String conf = templateService.generateConfFile(template, new VelocityContext(context));
+					renderTimes[index] = System.currentTimeMillis() - templateStartTime;
+
+					return conf;
+				}
+			});
+		}
+
+		List<String> confs = renderConfFiles(tasks);
+
+		boolean result = true;
+		int written = 0;
+		for (int i = 0; i < templates.size(); i++) {
+			String template = templates.get(i);
+			String conf = confs.get(i);
+			if (conf == null) {
+				log.error("Failed to generate '{}', existing file is kept", template);
+				result = false;
+				continue;
+			}
+
+			ConfFileUpdate update = templateService.updateConfFile(confFiles.get(template), conf);
+			if (update == ConfFileUpdate.WRITTEN) {
+				written++;
+			}
+			result &= update != ConfFileUpdate.FAILED;
+			log.info("Generated '{}' in {} ms, file: {}", template, renderTimes[i], update);
+		}
+
+		log.info("IDP configuration generated in {} ms. Files changed: {} of {}", System.currentTimeMillis() - startTime,
+				written, templates.size());
+
+		return result;
+	}
+
+	/**
+	 * @return Rendered templates in order of tasks, null for failed ones
+	 */
+	private List<String> renderConfFiles(List<Callable<String>> tasks) {
+		List<String> confs = new ArrayList<String>(tasks.size());
+
+		try {
+			for (Future<String> future : workerPoolService.invokeAll(tasks, getConfGenerationThreadsCount())) {
+				try {
+					confs.add(future.get());
+				} catch (ExecutionException ex) {
+					log.error("Failed to generate IDP configuration file", ex.getCause());
+					confs.add(null);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			log.error("IDP configuration generation was interrupted", ex);
+			while (confs.size() < tasks.size()) {
+				confs.add(null);
+			}
+		}
+
+		return confs;
+	}
+
+	private int getConfGenerationThreadsCount() {
+		return configurationFactory.getBaseConfiguration().getInt(CONF_GENERATION_THREADS_PROPERTY,
+				DEFAULT_CONF_GENERATION_THREADS);
+	}
+
 	/*
 	 * Init attributes
 	 */
@@ -387,7 +448,7 @@ public class Shibboleth3ConfService implements Serializable {
 				String idpMetadataFolder = getIdpMetadataDir();
 
 				File metadataFile = new File(idpMetadataFolder + trustRelationship.getSpMetaDataFN());
-				List<String> entityIds = SAMLMetadataParser.getEntityIdFromMetadataFile(metadataFile);
+				List<String> entityIds = metadataEntityIdIndex.getEntityIds(metadataFile);
 
 				// if for some reason metadata is corrupted or missing - mark trust relationship
 				// INACTIVE
@@ -1038,7 +1099,7 @@ public class Shibboleth3ConfService implements Serializable {
 
 		String metadataFolder = getIdpMetadataDir();
 		File metadataFile = new File(metadataFolder + spMetaDataFN);
-		List<String> entityId = SAMLMetadataParser.getEntityIdFromMetadataFile(metadataFile);
+		List<String> entityId = metadataEntityIdIndex.getEntityIds(metadataFile);
 		return (entityId != null) && !entityId.isEmpty();
 	}
 
@@ -15,6 +15,14 @@ import java.net.JarURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
@@ -23,6 +31,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.UUID;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -30,7 +39,6 @@ import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.inject.Named;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.Velocity;
@@ -69,11 +77,84 @@ public class TemplateService implements Serializable {
 	}
 
 	public boolean writeConfFile(String confFile, String conf) {
+		return updateConfFile(confFile, conf) != ConfFileUpdate.FAILED;
+	}
+
+	/**
+	 * Writes configuration file only if its content differs from the file on
+	 * disk. New content is written to temporary file in the same folder and
+	 * renamed over the target, so readers (e.g. IDP reloading its
+	 * configuration) never see partially written file. If owner, group or
+	 * permissions of existing file can't be set on temporary file, the file is
+	 * overwritten in place instead. Untouched files keep their modification
+	 * time and don't trigger reloads
+	 */
+	public ConfFileUpdate updateConfFile(String confFile, String conf) {
+		Path target = new File(confFile).toPath();
+		Path temp = null;
 		try {
-			FileUtils.writeStringToFile(new File(confFile), conf, "UTF-8");
+			byte[] content = (conf == null) ? new byte[0] : conf.getBytes(StandardCharsets.UTF_8);
+			if (Files.isRegularFile(target) && (Files.size(target) == content.length)
+					&& Arrays.equals(Files.readAllBytes(target), content)) {
+				log.debug("IDP configuration file '{}' is up to date", confFile);
+				return ConfFileUpdate.UNCHANGED;
+			}
+
+			Path folder = target.toAbsolutePath().getParent();
+			Files.createDirectories(folder);
+
+			temp = folder.resolve("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+			Files.write(temp, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			if (!copyAttributes(target, temp)) {
+				log.debug("Can't keep attributes of IDP configuration file '{}', overwriting it in place", confFile);
+				Files.write(target, content);
+				return ConfFileUpdate.WRITTEN;
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
 		} catch (IOException ex) {
 			log.error("Failed to write IDP configuration file '{}'", confFile, ex);
-			ex.printStackTrace();
+			return ConfFileUpdate.FAILED;
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ex) {
+					log.warn("Failed to remove temporary file '{}'", temp, ex);
+				}
+			}
+		}
+
+		return ConfFileUpdate.WRITTEN;
+	}
+
+	/*
+	 * Keep access permissions, owner and group of existing file after replacing
+	 * it. Returns false if they can't be set on new file
+	 */
+	private boolean copyAttributes(Path source, Path target) {
+		PosixFileAttributeView targetView = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+		if (!Files.exists(source) || (targetView == null)) {
+			return true;
+		}
+
+		try {
+			PosixFileAttributes sourceAttributes = Files.readAttributes(source, PosixFileAttributes.class);
+			PosixFileAttributes targetAttributes = targetView.readAttributes();
+
+			targetView.setPermissions(sourceAttributes.permissions());
+			if (!sourceAttributes.owner().equals(targetAttributes.owner())) {
+				targetView.setOwner(sourceAttributes.owner());
+			}
+			if (!sourceAttributes.group().equals(targetAttributes.group())) {
+				targetView.setGroup(sourceAttributes.group());
+			}
+		} catch (IOException | SecurityException | UnsupportedOperationException ex) {
+			log.debug("Failed to copy attributes of file '{}'", source, ex);
 			return false;
 		}
 
@@ -230,4 +311,8 @@ public class TemplateService implements Serializable {
 		}
 	}
 
+	public enum ConfFileUpdate {
+		WRITTEN, UNCHANGED, FAILED
+	}
+
 }
@@ -0,0 +1,109 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.gluu.oxtrust.model.GluuSAMLTrustRelationship;
+import org.gluu.util.StringHelper;
+
+/**
+ * In-memory index of trust relationship DNs by unpunctuated inum, which can't
+ * be searched for in persistence. Only keys are kept, entries have to be loaded
+ * by DN. Index expires after TTL and has to be reloaded, changes made through
+ * {@link TrustService} are applied to it immediately
+ */
+public class TrustRelationshipIndex {
+
+	private final long ttl;
+
+	private long loadedAt;
+	private boolean loaded;
+
+	private final Map<String, String> unpunctuatedInumByDn = new HashMap<String, String>();
+	private final Map<String, String> dnByUnpunctuatedInum = new HashMap<String, String>();
+
+	/**
+	 * @param ttl
+	 *            Time after which index has to be reloaded in milliseconds
+	 */
+	public TrustRelationshipIndex(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public synchronized boolean isValid() {
+		return loaded && (System.currentTimeMillis() - loadedAt < ttl);
+	}
+
+	/**
+	 * Replaces content of index with specified trust relationships
+	 */
+	public synchronized void load(List<GluuSAMLTrustRelationship> trustRelationships) {
+		clear();
+		if (trustRelationships != null) {
+			for (GluuSAMLTrustRelationship trustRelationship : trustRelationships) {
+				add(trustRelationship);
+			}
+		}
+		loadedAt = System.currentTimeMillis();
+		loaded = true;
+	}
+
+	public synchronized void invalidate() {
+		clear();
+		loaded = false;
+	}
+
+	/**
+	 * Adds or replaces keys of trust relationship
+	 */
+	public synchronized void put(GluuSAMLTrustRelationship trustRelationship) {
+		if (!loaded) {
+			return;
+		}
+
+		remove(trustRelationship.getDn());
+		add(trustRelationship);
+	}
+
+	public synchronized void remove(String dn) {
+		String unpunctuatedInum = unpunctuatedInumByDn.remove(normalizeDn(dn));
+		if (unpunctuatedInum != null) {
+			dnByUnpunctuatedInum.remove(unpunctuatedInum);
+		}
+	}
+
+	public synchronized String getDnByUnpunctuatedInum(String unpunctuatedInum) {
+		return dnByUnpunctuatedInum.get(unpunctuatedInum);
+	}
+
+	private void add(GluuSAMLTrustRelationship trustRelationship) {
+		if (StringHelper.isEmpty(trustRelationship.getDn()) || (trustRelationship.getInum() == null)) {
+			return;
+		}
+
+		String unpunctuatedInum = StringHelper.removePunctuation(trustRelationship.getInum());
+		unpunctuatedInumByDn.put(normalizeDn(trustRelationship.getDn()), unpunctuatedInum);
+		dnByUnpunctuatedInum.put(unpunctuatedInum, trustRelationship.getDn());
+	}
+
+	private void clear() {
+		unpunctuatedInumByDn.clear();
+		dnByUnpunctuatedInum.clear();
+	}
+
+	/*
+	 * DNs are compared case insensitively
+	 */
+	private static String normalizeDn(String dn) {
+		return (dn == null) ? null : dn.toLowerCase(Locale.ROOT);
+	}
+
+}
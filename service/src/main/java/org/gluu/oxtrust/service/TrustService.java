@@ -10,8 +10,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
 import javax.ejb.Stateless;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
@@ -20,6 +20,7 @@ import javax.inject.Named;
 import org.gluu.model.GluuAttribute;
 import org.gluu.model.GluuStatus;
 import org.gluu.model.TrustContact;
+import org.gluu.oxtrust.config.ConfigurationFactory;
 import org.gluu.oxtrust.model.GluuMetadataSourceType;
 import org.gluu.oxtrust.model.GluuSAMLTrustRelationship;
 import org.gluu.oxtrust.util.OxTrustConstants;
@@ -57,30 +58,61 @@ public class TrustService implements Serializable {
 	@Inject
 	private XmlService xmlService;
 
+	@Inject
+	private ConfigurationFactory configurationFactory;
+
 	public static final String GENERATED_SSL_ARTIFACTS_DIR = "ssl";
 
+	private static final String INDEX_TTL_PROPERTY = "trustRelationshipIndexTtl";
+	private static final int DEFAULT_INDEX_TTL = 5 * 60; // 5 minutes
+
+	/**
+	 * Attributes needed to build index
+	 */
+	private static final String[] INDEX_RETURN_ATTRIBUTES = new String[] { "inum" };
+
+	private TrustRelationshipIndex trustRelationshipIndex;
+
+	@PostConstruct
+	public void init() {
+		int ttl = configurationFactory.getBaseConfiguration().getInt(INDEX_TTL_PROPERTY, DEFAULT_INDEX_TTL);
+		this.trustRelationshipIndex = new TrustRelationshipIndex(ttl * 1000L);
+	}
+
 	public void addTrustRelationship(GluuSAMLTrustRelationship trustRelationship) {
 		log.debug("Adding TR: {}", trustRelationship.getInum());
 		String dn = trustRelationship.getDn();
 
-		if (!containsTrustRelationship(dn)) {
-			log.debug("Adding TR: {}", dn);
-			ldapEntryManager.persist(trustRelationship);
-		} else {
-			ldapEntryManager.merge(trustRelationship);
+		try {
+			if (!containsTrustRelationship(dn)) {
+				log.debug("Adding TR: {}", dn);
+				ldapEntryManager.persist(trustRelationship);
+			} else {
+				ldapEntryManager.merge(trustRelationship);
+			}
+		} catch (RuntimeException ex) {
+			trustRelationshipIndex.invalidate();
+			throw ex;
 		}
+		trustRelationshipIndex.put(trustRelationship);
 	}
 
 	public void updateTrustRelationship(GluuSAMLTrustRelationship trustRelationship) {
 		String dn = trustRelationship.getDn();
 		boolean containsTrustRelationship = trustExist(dn);
-		if (containsTrustRelationship) {
-			log.info("Updating TR: {}", dn);
-			ldapEntryManager.merge(trustRelationship);
-		} else {
-			log.info("Adding TR: {}", dn);
-			ldapEntryManager.persist(trustRelationship);
+		try {
+			if (containsTrustRelationship) {
+				log.info("Updating TR: {}", dn);
+				ldapEntryManager.merge(trustRelationship);
+			} else {
+				log.info("Adding TR: {}", dn);
+				ldapEntryManager.persist(trustRelationship);
+			}
+		} catch (RuntimeException ex) {
+			trustRelationshipIndex.invalidate();
+			throw ex;
 		}
+		trustRelationshipIndex.put(trustRelationship);
 	}
 
 	public void removeTrustRelationship(GluuSAMLTrustRelationship trustRelationship) {
@@ -91,6 +123,7 @@ public class TrustService implements Serializable {
 			log.debug("Removing TR: {}", dn);
 			ldapEntryManager.remove(trustRelationship);
 		}
+		trustRelationshipIndex.remove(dn);
 	}
 
 	public GluuSAMLTrustRelationship getRelationshipByInum(String inum) {
@@ -238,35 +271,67 @@ public class TrustService implements Serializable {
 		}
 	}
 
+	/*
+	 * getTrustContainerFederation() resolves trust relationship by its own DN,
+	 * so the only match is the stored entry of this trust relationship
+	 */
 	public List<GluuSAMLTrustRelationship> getDeconstructedTrustRelationships(
 			GluuSAMLTrustRelationship trustRelationship) {
 		List<GluuSAMLTrustRelationship> result = new ArrayList<GluuSAMLTrustRelationship>();
-		for (GluuSAMLTrustRelationship trust : getAllTrustRelationships()) {
-			if (trustRelationship.equals(getTrustContainerFederation(trust))) {
-				result.add(trust);
-			}
+		GluuSAMLTrustRelationship trust = getRelationshipByDn(trustRelationship.getDn());
+		if ((trust != null) && trustRelationship.equals(trust)) {
+			result.add(trust);
 		}
 		return result;
 	}
 
 	public List<GluuSAMLTrustRelationship> getChildTrusts(GluuSAMLTrustRelationship trustRelationship) {
-		List<GluuSAMLTrustRelationship> all = getAllTrustRelationships();
-		if (all != null && !all.isEmpty()) {
-			return all.stream().filter(e -> !e.isFederation())
-					.filter(e -> e.getGluuContainerFederation().equalsIgnoreCase(trustRelationship.getDn()))
-					.collect(Collectors.toList());
-		} else {
-			return new ArrayList<GluuSAMLTrustRelationship>();
+		Filter filter = Filter.createEqualityFilter("gluuContainerFederation", trustRelationship.getDn());
+		List<GluuSAMLTrustRelationship> result = new ArrayList<GluuSAMLTrustRelationship>();
+		for (GluuSAMLTrustRelationship trust : ldapEntryManager.findEntries(getDnForTrustRelationShip(null),
+				GluuSAMLTrustRelationship.class, filter)) {
+			if (!trust.isFederation()) {
+				result.add(trust);
+			}
 		}
+		return result;
 	}
 
 	public GluuSAMLTrustRelationship getTrustByUnpunctuatedInum(String unpunctuated) {
-		for (GluuSAMLTrustRelationship trust : getAllTrustRelationships()) {
-			if (StringHelper.removePunctuation(trust.getInum()).equals(unpunctuated)) {
-				return trust;
+		GluuSAMLTrustRelationship trust = getIndexedTrustRelationship(unpunctuated);
+		if (trust == null) {
+			// Trust relationship could be added bypassing this service, reload index once
+			trustRelationshipIndex.invalidate();
+			trust = getIndexedTrustRelationship(unpunctuated);
+		}
+		return trust;
+	}
+
+	private GluuSAMLTrustRelationship getIndexedTrustRelationship(String unpunctuated) {
+		String dn = getTrustRelationshipIndex().getDnByUnpunctuatedInum(unpunctuated);
+		if (dn == null) {
+			return null;
+		}
+
+		GluuSAMLTrustRelationship trust = getRelationshipByDn(dn);
+		if ((trust == null) || !StringHelper.removePunctuation(trust.getInum()).equals(unpunctuated)) {
+			trustRelationshipIndex.remove(dn);
+			return null;
+		}
+		return trust;
+	}
+
+	private TrustRelationshipIndex getTrustRelationshipIndex() {
+		// Index updates are applied under the same lock, so reload can't lose them
+		synchronized (trustRelationshipIndex) {
+			if (!trustRelationshipIndex.isValid()) {
+				log.debug("Loading trust relationships index");
+				trustRelationshipIndex.load(ldapEntryManager.findEntries(getDnForTrustRelationShip(null),
+						GluuSAMLTrustRelationship.class, null, INDEX_RETURN_ATTRIBUTES));
 			}
 		}
-		return null;
+
+		return trustRelationshipIndex;
 	}
 
 	public GluuSAMLTrustRelationship getTrustContainerFederation(GluuSAMLTrustRelationship trustRelationship) {
@@ -303,7 +368,9 @@ public class TrustService implements Serializable {
 	 */
 	public boolean removeAttribute(GluuAttribute attribute) {
 		log.trace("Removing attribute from trustRelationships");
-		List<GluuSAMLTrustRelationship> trustRelationships = getAllTrustRelationships();
+		Filter filter = Filter.createEqualityFilter("gluuReleasedAttribute", attribute.getDn());
+		List<GluuSAMLTrustRelationship> trustRelationships = ldapEntryManager
+				.findEntries(getDnForTrustRelationShip(null), GluuSAMLTrustRelationship.class, filter);
 		log.trace(String.format("Iterating '%d' trustRelationships", trustRelationships.size()));
 		for (GluuSAMLTrustRelationship trustRelationship : trustRelationships) {
 			log.trace("Analyzing '%s'.", trustRelationship.getDisplayName());
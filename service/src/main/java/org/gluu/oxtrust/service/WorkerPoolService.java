@@ -0,0 +1,131 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.slf4j.Logger;
+
+/**
+ * Application wide pool of worker threads. Callers limit number of their tasks
+ * which are executed concurrently and execute tasks themselves while waiting,
+ * so nested calls from worker threads can't exhaust pool
+ */
+@ApplicationScoped
+@Named
+public class WorkerPoolService {
+
+	private static final String WORKER_POOL_THREADS_PROPERTY = "workerPoolThreads";
+	private static final int DEFAULT_WORKER_POOL_THREADS = 16;
+
+	@Inject
+	private Logger log;
+
+	@Inject
+	private ConfigurationFactory configurationFactory;
+
+	private ExecutorService executorService;
+
+	@PostConstruct
+	public void init() {
+		init(configurationFactory.getBaseConfiguration().getInt(WORKER_POOL_THREADS_PROPERTY,
+				DEFAULT_WORKER_POOL_THREADS));
+	}
+
+	void init(int threadsCount) {
+		this.executorService = Executors.newFixedThreadPool(Math.max(threadsCount, 1), new WorkerThreadFactory());
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (executorService != null) {
+			executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * Execute tasks using at most specified number of threads, including calling
+	 * thread. Tasks are executed in calling thread only if parallelism is 1 or
+	 * less
+	 *
+	 * @return Completed futures in same order as tasks
+	 */
+	public <T> List<Future<T>> invokeAll(List<? extends Callable<T>> tasks, int parallelism)
+			throws InterruptedException {
+		final List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+		for (Callable<T> task : tasks) {
+			futures.add(new FutureTask<T>(task));
+		}
+
+		final AtomicInteger nextTask = new AtomicInteger();
+		final CountDownLatch completed = new CountDownLatch(futures.size());
+		Runnable runner = new Runnable() {
+			@Override
+			public void run() {
+				for (int i = nextTask.getAndIncrement(); i < futures.size(); i = nextTask.getAndIncrement()) {
+					futures.get(i).run();
+					completed.countDown();
+				}
+			}
+		};
+
+		int workersCount = Math.min(parallelism, futures.size()) - 1;
+		for (int i = 0; i < workersCount; i++) {
+			try {
+				executorService.execute(runner);
+			} catch (RejectedExecutionException ex) {
+				log.debug("Worker pool is shut down, executing tasks in calling thread");
+				break;
+			}
+		}
+
+		try {
+			runner.run();
+			completed.await();
+		} catch (InterruptedException ex) {
+			// Don't start remaining tasks
+			nextTask.set(futures.size());
+			for (FutureTask<T> future : futures) {
+				future.cancel(true);
+			}
+			throw ex;
+		}
+
+		return new ArrayList<Future<T>>(futures);
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "oxtrust-worker-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
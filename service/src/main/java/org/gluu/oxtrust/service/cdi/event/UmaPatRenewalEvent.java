@@ -0,0 +1,8 @@
+package org.gluu.oxtrust.service.cdi.event;
+
+/**
+ * Timer event to renew UMA PAT tokens before expiration
+ */
+public class UmaPatRenewalEvent {
+
+}
@@ -0,0 +1,55 @@
+package org.gluu.oxtrust.util;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RDN;
+
+/**
+ * DN helpers which don't depend on spacing and case of DN components
+ */
+public final class DnUtil {
+
+	private DnUtil() {
+	}
+
+	/**
+	 * @return Normalized DN which can be used as map key, or trimmed lower case
+	 *         value if it's not valid DN
+	 */
+	public static String normalize(String dn) {
+		if (dn == null) {
+			return null;
+		}
+
+		try {
+			return DN.normalize(dn);
+		} catch (LDAPException ex) {
+			return dn.trim().toLowerCase();
+		}
+	}
+
+	/**
+	 * @return Value of single valued RDN with specified attribute if entry is
+	 *         direct child of parent DN, otherwise null
+	 */
+	public static String getChildRdnValue(String dn, String parentDn, String attributeName) {
+		try {
+			DN parsedDn = new DN(dn);
+			DN parent = parsedDn.getParent();
+			if ((parent == null) || !parent.equals(new DN(parentDn))) {
+				return null;
+			}
+
+			RDN rdn = parsedDn.getRDN();
+			String[] attributeNames = rdn.getAttributeNames();
+			if ((attributeNames.length != 1) || !attributeNames[0].equalsIgnoreCase(attributeName)) {
+				return null;
+			}
+
+			return rdn.getAttributeValues()[0];
+		} catch (LDAPException ex) {
+			return null;
+		}
+	}
+
+}